@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.bench;
+
+import one.jfr.JfrReader;
+import one.jfr.event.AllocationSample;
+import one.jfr.event.Event;
+import one.jfr.event.EventAggregator;
+import one.jfr.event.EventCollector;
+import one.jfr.event.ExecutionSample;
+import one.jfr.event.PackedEventAggregator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grouping of decoded events by stack trace, thread and class, as done by the converters.
+ * Events are read once per trial, so only aggregation is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AggregatorBenchmark {
+    @Param({"false", "true"})
+    public boolean threads;
+
+    private Event[] events;
+
+    @Setup(Level.Trial)
+    public void readEvents(Recording recording) throws IOException {
+        try (JfrReader jfr = new JfrReader(recording.file.getPath())) {
+            List<Event> list = jfr.readAllEvents();
+            events = list.toArray(new Event[0]);
+        }
+    }
+
+    @Benchmark
+    public EventAggregator eventAggregator() {
+        EventAggregator agg = new EventAggregator(threads, false);
+        for (Event e : events) {
+            agg.collect(e);
+        }
+        return agg;
+    }
+
+    @Benchmark
+    public PackedEventAggregator packedEventAggregator() {
+        PackedEventAggregator agg = new PackedEventAggregator(threads, false);
+        for (Event e : events) {
+            if (e instanceof ExecutionSample) {
+                agg.collect(EventCollector.EXECUTION_SAMPLE, e.time, e.tid, e.stackTraceId, ((ExecutionSample) e).threadState, 1);
+            } else {
+                AllocationSample a = (AllocationSample) e;
+                agg.collect(EventCollector.ALLOCATION_IN_NEW_TLAB, a.time, a.tid, a.stackTraceId, a.classId, a.tlabSize);
+            }
+        }
+        return agg;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.bench;
+
+import one.jfr.JfrReader;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * FlameGraph and jfr2flame live in the default package, which cannot be imported
+ * from a benchmark package. They are called through constant method handles,
+ * which the JIT inlines the same way as direct calls.
+ */
+final class Converters {
+    static final MethodHandle NEW_FLAME_GRAPH;
+    static final MethodHandle FRAME_ID;
+    static final MethodHandle ADD_SAMPLE;
+    static final MethodHandle DUMP;
+    static final MethodHandle NEW_JFR2FLAME;
+    static final MethodHandle CONVERT;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> flameGraph = Class.forName("FlameGraph");
+            Class<?> jfr2flame = Class.forName("jfr2flame");
+
+            NEW_FLAME_GRAPH = lookup.findConstructor(flameGraph, MethodType.methodType(void.class, String[].class))
+                    .asType(MethodType.methodType(Object.class, String[].class));
+            FRAME_ID = lookup.findVirtual(flameGraph, "frameId", MethodType.methodType(int.class, String.class))
+                    .asType(MethodType.methodType(int.class, Object.class, String.class));
+            ADD_SAMPLE = lookup.findVirtual(flameGraph, "addSample", MethodType.methodType(void.class, int[].class, long.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int[].class, long.class));
+            DUMP = lookup.findVirtual(flameGraph, "dump", MethodType.methodType(void.class, PrintStream.class))
+                    .asType(MethodType.methodType(void.class, Object.class, PrintStream.class));
+            NEW_JFR2FLAME = lookup.findConstructor(jfr2flame, MethodType.methodType(void.class, JfrReader.class))
+                    .asType(MethodType.methodType(Object.class, JfrReader.class));
+            CONVERT = lookup.findVirtual(jfr2flame, "convert", MethodType.methodType(void.class, flameGraph,
+                    boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, Class.class))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class,
+                            boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, Class.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Converters() {
+    }
+
+    static Object newFlameGraph() throws Throwable {
+        return (Object) NEW_FLAME_GRAPH.invokeExact(new String[0]);
+    }
+
+    // Discards output, but still encodes it, since the converter writes to a PrintStream
+    static PrintStream nullStream() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+    }
+}
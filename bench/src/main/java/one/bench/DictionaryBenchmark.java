@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.bench;
+
+import one.jfr.Dictionary;
+import one.jfr.IntDictionary;
+import one.jfr.LongDictionary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filling and querying the id maps used for constant pools.
+ * Keys are scattered like symbol ids, which carry the high bits of a base id.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DictionaryBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private long[] keys;
+    private Dictionary<Object> dictionary;
+    private LongDictionary longDictionary;
+    private IntDictionary intDictionary;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(1);
+        keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = (long) random.nextInt(16) << 32 | (random.nextInt() & 0x7fffffffL) | 1;
+        }
+
+        dictionary = new Dictionary<>();
+        longDictionary = new LongDictionary();
+        intDictionary = new IntDictionary();
+        for (long key : keys) {
+            dictionary.put(key, Boolean.TRUE);
+            longDictionary.put(key, key);
+            intDictionary.put(key, (int) key);
+        }
+    }
+
+    @Benchmark
+    public Dictionary<Object> dictionaryPut() {
+        Dictionary<Object> d = new Dictionary<>();
+        for (long key : keys) {
+            d.put(key, Boolean.TRUE);
+        }
+        return d;
+    }
+
+    @Benchmark
+    public int dictionaryGet() {
+        int found = 0;
+        for (long key : keys) {
+            if (dictionary.get(key) != null) found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public LongDictionary longDictionaryPut() {
+        LongDictionary d = new LongDictionary();
+        for (long key : keys) {
+            d.put(key, key);
+        }
+        return d;
+    }
+
+    @Benchmark
+    public long longDictionaryGet() {
+        long sum = 0;
+        for (long key : keys) {
+            sum += longDictionary.get(key, 0);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long intDictionaryGet() {
+        long sum = 0;
+        for (long key : keys) {
+            sum += intDictionary.get(key, 0);
+        }
+        return sum;
+    }
+}
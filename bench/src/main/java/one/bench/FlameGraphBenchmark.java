@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.bench;
+
+import one.jfr.JfrReader;
+import one.jfr.MethodRef;
+import one.jfr.StackTrace;
+import one.jfr.event.ExecutionSample;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the Flame Graph tree from resolved stack traces, writing HTML,
+ * and the whole jfr2flame pipeline from a file to HTML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FlameGraphBenchmark {
+    private int[][] samples;
+    private Object graph;
+    private PrintStream out;
+
+    // Resolves every sample to frame ids once, so that addSample is measured alone.
+    // Frame ids are local to a FlameGraph, so all samples go to the graph that assigned them
+    @Setup(Level.Trial)
+    public void setup(Recording recording) throws Throwable {
+        graph = Converters.newFlameGraph();
+        try (JfrReader jfr = new JfrReader(recording.file.getPath())) {
+            List<ExecutionSample> events = jfr.readAllEvents(ExecutionSample.class);
+            samples = new int[events.size()][];
+            for (int i = 0; i < samples.length; i++) {
+                StackTrace stackTrace = jfr.stackTraces.get(events.get(i).stackTraceId);
+                int[] trace = new int[stackTrace.methods.length];
+                for (int j = 0; j < trace.length; j++) {
+                    MethodRef method = jfr.methods.get(stackTrace.methods[trace.length - 1 - j]);
+                    String name = new String(jfr.symbols.get(method.name), StandardCharsets.UTF_8);
+                    trace[j] = (int) Converters.FRAME_ID.invokeExact(graph, name);
+                }
+                samples[i] = trace;
+            }
+        }
+
+        addSamples();
+        out = Converters.nullStream();
+    }
+
+    // The tree has the same shape after every invocation, only counters grow
+    @Benchmark
+    public Object addSample() throws Throwable {
+        addSamples();
+        return graph;
+    }
+
+    @Benchmark
+    public void dumpHtml() throws Throwable {
+        Converters.DUMP.invokeExact(graph, out);
+    }
+
+    @Benchmark
+    public void jfr2flame(Recording recording) throws Throwable {
+        try (JfrReader jfr = new JfrReader(recording.file.getPath())) {
+            Object fg = Converters.newFlameGraph();
+            Object converter = (Object) Converters.NEW_JFR2FLAME.invokeExact(jfr);
+            Converters.CONVERT.invokeExact(converter, fg, false, false, false, false, false,
+                    (Class<?>) ExecutionSample.class);
+            Converters.DUMP.invokeExact(fg, out);
+        }
+    }
+
+    private void addSamples() throws Throwable {
+        for (int[] trace : samples) {
+            Converters.ADD_SAMPLE.invokeExact(graph, trace, 1L);
+        }
+    }
+}
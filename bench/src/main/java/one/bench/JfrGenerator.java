@@ -0,0 +1,548 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Writes a synthetic recording in the same layout as async-profiler's flightRecorder.cpp:
+ * every chunk starts with metadata, followed by events, and ends with the constant pool.
+ * Stack traces share prefixes like real ones do, and samples follow a skewed distribution,
+ * so that a few stacks are hot and most are rare. The output depends only on the parameters.
+ */
+public class JfrGenerator {
+    private static final int T_METADATA = 0;
+    private static final int T_CPOOL = 1;
+    private static final int T_BOOLEAN = 4;
+    private static final int T_INT = 10;
+    private static final int T_LONG = 11;
+    private static final int T_STRING = 20;
+    private static final int T_CLASS = 21;
+    private static final int T_THREAD = 22;
+    private static final int T_CLASS_LOADER = 23;
+    private static final int T_FRAME_TYPE = 24;
+    private static final int T_THREAD_STATE = 25;
+    private static final int T_STACK_TRACE = 26;
+    private static final int T_STACK_FRAME = 27;
+    private static final int T_METHOD = 28;
+    private static final int T_PACKAGE = 29;
+    private static final int T_SYMBOL = 30;
+    private static final int T_EXECUTION_SAMPLE = 101;
+    private static final int T_ALLOC_IN_NEW_TLAB = 102;
+    private static final int T_ALLOC_OUTSIDE_TLAB = 103;
+
+    private static final long TICKS_PER_SEC = 1000000000;
+    private static final String[] FRAME_TYPES = {"Interpreted", "JIT compiled", "Inlined", "Native", "C++", "Kernel"};
+
+    public int chunks = 4;
+    public int events = 1000000;
+    public int depth = 40;
+    public int methods = 5000;
+    public int stackTraces = 20000;
+    public int threads = 32;
+    public int classes = 200;
+    // Percentage of allocation samples among events
+    public int allocations = 20;
+    public long seed = 1;
+
+    private final Buf buf = new Buf();
+    private int[][] traces;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java " + JfrGenerator.class.getName() + " [options] output.jfr");
+            System.out.println("Options: --chunks N --events N --depth N --methods N --stacks N --threads N --classes N --alloc PERCENT --seed N");
+            System.exit(1);
+        }
+
+        JfrGenerator gen = new JfrGenerator();
+        for (int i = 0; i < args.length - 1; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "--chunks": gen.chunks = value; break;
+                case "--events": gen.events = value; break;
+                case "--depth": gen.depth = value; break;
+                case "--methods": gen.methods = value; break;
+                case "--stacks": gen.stackTraces = value; break;
+                case "--threads": gen.threads = value; break;
+                case "--classes": gen.classes = value; break;
+                case "--alloc": gen.allocations = value; break;
+                case "--seed": gen.seed = value; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        gen.generate(args[args.length - 1]);
+    }
+
+    public void generate(String fileName) throws IOException {
+        try (OutputStream out = new FileOutputStream(fileName)) {
+            generate(out);
+        }
+    }
+
+    public void generate(OutputStream out) throws IOException {
+        Random random = new Random(seed);
+        traces = generateTraces(random);
+
+        long startNanos = 1600000000000000000L;
+        long startTicks = 1000000;
+        long ticksPerChunk = 60 * TICKS_PER_SEC;
+
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int count = events / chunks + (chunk < events % chunks ? 1 : 0);
+            writeChunk(random, count, startNanos + chunk * ticksPerChunk, startTicks + chunk * ticksPerChunk, ticksPerChunk);
+            buf.writeTo(out);
+        }
+    }
+
+    // A stack trace continues the parent trace with a few frames picked from a small fan-out,
+    // which yields a tree of shared prefixes, as in real applications
+    private int[][] generateTraces(Random random) {
+        int[][] traces = new int[stackTraces][];
+        for (int i = 0; i < traces.length; i++) {
+            int[] parent = i == 0 ? new int[0] : traces[random.nextInt(i)];
+            int prefix = random.nextInt(Math.min(parent.length, depth - 1) + 1);
+            int length = Math.max(prefix + 1, Math.min(depth, prefix + 1 + random.nextInt(Math.max(depth / 4, 1))));
+
+            int[] trace = new int[length];
+            System.arraycopy(parent, 0, trace, 0, prefix);
+            for (int j = prefix; j < length; j++) {
+                int prev = j == 0 ? 0 : trace[j - 1];
+                trace[j] = (int) ((prev * 31L + j * 7 + random.nextInt(4)) % methods);
+            }
+            traces[i] = trace;
+        }
+        return traces;
+    }
+
+    private void writeChunk(Random random, int count, long startNanos, long startTicks, long durationTicks) {
+        buf.reset();
+        buf.put32(0x464c5200);  // FLR\0
+        buf.put16(2);
+        buf.put16(0);
+        buf.put64(0);           // size, cpool offset and meta offset are patched below
+        buf.put64(0);
+        buf.put64(0);
+        buf.put64(startNanos);
+        buf.put64(durationTicks);
+        buf.put64(startTicks);
+        buf.put64(TICKS_PER_SEC);
+        buf.put32(1);
+
+        int metaOffset = buf.size();
+        writeMetadata(startTicks);
+
+        // Event time grows monotonically within the chunk
+        boolean[] usedTraces = new boolean[traces.length];
+        long time = startTicks;
+        long step = Math.max(durationTicks / Math.max(count, 1), 1);
+        for (int i = 0; i < count; i++) {
+            int stackTraceId = hotIndex(random, traces.length);
+            int tid = 1000 + hotIndex(random, threads);
+            usedTraces[stackTraceId] = true;
+            time += step;
+
+            int start = buf.skipSize();
+            if (random.nextInt(100) < allocations) {
+                boolean tlab = random.nextInt(4) != 0;
+                buf.putVarint(tlab ? T_ALLOC_IN_NEW_TLAB : T_ALLOC_OUTSIDE_TLAB);
+                buf.putVarlong(time);
+                buf.putVarint(tid);
+                buf.putVarint(stackTraceId + 1);
+                buf.putVarint(1 + hotIndex(random, classes));
+                buf.putVarlong(16 + 8 * random.nextInt(64));
+                if (tlab) {
+                    buf.putVarlong(4096 + 1024 * random.nextInt(256));
+                }
+            } else {
+                buf.putVarint(T_EXECUTION_SAMPLE);
+                buf.putVarlong(time);
+                buf.putVarint(tid);
+                buf.putVarint(stackTraceId + 1);
+                buf.putVarint(random.nextInt(10) == 0 ? 2 : 1);
+            }
+            buf.patchSize(start);
+        }
+
+        int cpOffset = buf.size();
+        writeConstantPool(startTicks, usedTraces);
+
+        buf.patch64(8, buf.size());
+        buf.patch64(16, cpOffset);
+        buf.patch64(24, metaOffset);
+    }
+
+    // Picks small indices more often: index = n * r^3 for uniform r
+    private static int hotIndex(Random random, int n) {
+        double r = random.nextDouble();
+        return Math.min((int) (n * r * r * r), n - 1);
+    }
+
+    private void writeMetadata(long startTicks) {
+        Element metadata = new Element("metadata");
+        Element root = new Element("root").add(metadata);
+
+        metadata.add(type(T_BOOLEAN, "boolean"));
+        metadata.add(type(T_INT, "int"));
+        metadata.add(type(T_LONG, "long"));
+        metadata.add(type(T_STRING, "java.lang.String"));
+
+        metadata.add(type(T_CLASS, "java.lang.Class")
+                .add(field("classLoader", T_CLASS_LOADER, true))
+                .add(field("name", T_SYMBOL, true))
+                .add(field("package", T_PACKAGE, true))
+                .add(field("modifiers", T_INT, false)));
+        metadata.add(type(T_THREAD, "java.lang.Thread")
+                .add(field("osName", T_STRING, false))
+                .add(field("osThreadId", T_LONG, false))
+                .add(field("javaName", T_STRING, false))
+                .add(field("javaThreadId", T_LONG, false)));
+        metadata.add(type(T_CLASS_LOADER, "jdk.types.ClassLoader")
+                .add(field("type", T_CLASS, true))
+                .add(field("name", T_SYMBOL, true)));
+        metadata.add(type(T_FRAME_TYPE, "jdk.types.FrameType", true)
+                .add(field("description", T_STRING, false)));
+        metadata.add(type(T_THREAD_STATE, "jdk.types.ThreadState", true)
+                .add(field("name", T_STRING, false)));
+        metadata.add(type(T_STACK_TRACE, "jdk.types.StackTrace")
+                .add(field("truncated", T_BOOLEAN, false))
+                .add(field("frames", T_STACK_FRAME, false).attr("dimension", "1")));
+        metadata.add(type(T_STACK_FRAME, "jdk.types.StackFrame")
+                .add(field("method", T_METHOD, true))
+                .add(field("lineNumber", T_INT, false))
+                .add(field("bytecodeIndex", T_INT, false))
+                .add(field("type", T_FRAME_TYPE, true)));
+        metadata.add(type(T_METHOD, "jdk.types.Method")
+                .add(field("type", T_CLASS, true))
+                .add(field("name", T_SYMBOL, true))
+                .add(field("descriptor", T_SYMBOL, true))
+                .add(field("modifiers", T_INT, false))
+                .add(field("hidden", T_BOOLEAN, false)));
+        metadata.add(type(T_PACKAGE, "jdk.types.Package")
+                .add(field("name", T_SYMBOL, true)));
+        metadata.add(type(T_SYMBOL, "jdk.types.Symbol", true)
+                .add(field("string", T_STRING, false)));
+
+        metadata.add(event(T_EXECUTION_SAMPLE, "jdk.ExecutionSample")
+                .add(field("sampledThread", T_THREAD, true))
+                .add(field("stackTrace", T_STACK_TRACE, true))
+                .add(field("state", T_THREAD_STATE, true)));
+        metadata.add(event(T_ALLOC_IN_NEW_TLAB, "jdk.ObjectAllocationInNewTLAB")
+                .add(field("eventThread", T_THREAD, true))
+                .add(field("stackTrace", T_STACK_TRACE, true))
+                .add(field("objectClass", T_CLASS, true))
+                .add(field("allocationSize", T_LONG, false))
+                .add(field("tlabSize", T_LONG, false)));
+        metadata.add(event(T_ALLOC_OUTSIDE_TLAB, "jdk.ObjectAllocationOutsideTLAB")
+                .add(field("eventThread", T_THREAD, true))
+                .add(field("stackTrace", T_STACK_TRACE, true))
+                .add(field("objectClass", T_CLASS, true))
+                .add(field("allocationSize", T_LONG, false)));
+
+        root.add(new Element("region").attr("gmtOffset", "0").attr("locale", "en_US"));
+
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        root.collectStrings(strings);
+
+        int start = buf.skipSize();
+        buf.putVarint(T_METADATA);
+        buf.putVarlong(startTicks);
+        buf.putVarint(0);
+        buf.putVarint(1);
+        buf.putVarint(strings.size());
+        for (String s : strings.keySet()) {
+            buf.putUtf8(s);
+        }
+        root.write(buf, strings);
+        buf.patchSize(start);
+    }
+
+    private static Element type(int id, String name) {
+        return new Element("class").attr("id", Integer.toString(id)).attr("name", name);
+    }
+
+    // Values of a simple type are replaced with its only field, e.g. a Symbol with its string
+    private static Element type(int id, String name, boolean simple) {
+        Element e = type(id, name);
+        return simple ? e.attr("simpleType", "true") : e;
+    }
+
+    private static Element event(int id, String name) {
+        return type(id, name).attr("superType", "jdk.jfr.Event")
+                .add(field("startTime", T_LONG, false));
+    }
+
+    private static Element field(String name, int type, boolean constantPool) {
+        Element e = new Element("field").attr("name", name).attr("class", Integer.toString(type));
+        return constantPool ? e.attr("constantPool", "true") : e;
+    }
+
+    // Like in flightRecorder.cpp, ids are assigned once per recording, so the same stack trace,
+    // method, class or symbol has the same id in every chunk that lists it
+    private void writeConstantPool(long startTicks, boolean[] usedTraces) {
+        int start = buf.skipSize();
+        buf.putVarint(T_CPOOL);
+        buf.putVarlong(startTicks);
+        buf.putVarint(0);
+        buf.putVarint(0);
+        buf.putVarint(1);
+        buf.putVarint(7);
+
+        buf.putVarint(T_FRAME_TYPE);
+        buf.putVarint(FRAME_TYPES.length);
+        for (int i = 0; i < FRAME_TYPES.length; i++) {
+            buf.putVarint(i);
+            buf.putUtf8(FRAME_TYPES[i]);
+        }
+
+        buf.putVarint(T_THREAD_STATE);
+        buf.putVarint(2);
+        buf.putVarint(1);
+        buf.putUtf8("STATE_RUNNABLE");
+        buf.putVarint(2);
+        buf.putUtf8("STATE_SLEEPING");
+
+        buf.putVarint(T_THREAD);
+        buf.putVarint(threads);
+        for (int i = 0; i < threads; i++) {
+            String name = "worker-" + i;
+            buf.putVarint(1000 + i);
+            buf.putUtf8(name);
+            buf.putVarint(1000 + i);
+            buf.putUtf8(name);
+            buf.putVarlong(i + 1);
+        }
+
+        // Symbols: class names, then method names, then one signature
+        Map<Integer, Integer> usedMethods = new HashMap<>();
+        List<int[]> used = new ArrayList<>();
+        for (int i = 0; i < traces.length; i++) {
+            if (usedTraces[i]) {
+                used.add(new int[]{i});
+                for (int method : traces[i]) {
+                    if (!usedMethods.containsKey(method)) {
+                        usedMethods.put(method, usedMethods.size());
+                    }
+                }
+            }
+        }
+
+        buf.putVarint(T_STACK_TRACE);
+        buf.putVarint(used.size());
+        for (int[] u : used) {
+            int[] trace = traces[u[0]];
+            buf.putVarint(u[0] + 1);
+            buf.putVarint(0);
+            buf.putVarint(trace.length);
+            // Frames are stored from the top of the stack
+            for (int j = trace.length - 1; j >= 0; j--) {
+                int method = trace[j];
+                buf.putVarint(method + 1);
+                buf.putVarint(10 + method % 500);
+                buf.putVarint(method % 100);
+                buf.put8(method % 7 == 0 ? 2 : method % 11 == 0 ? 3 : 1);
+            }
+        }
+
+        int methodClasses = Math.max(methods / 8, 1);
+        buf.putVarint(T_METHOD);
+        buf.putVarint(usedMethods.size());
+        for (int method : usedMethods.keySet()) {
+            buf.putVarint(method + 1);
+            buf.putVarint(classes + 1 + method % methodClasses);
+            buf.putVarlong(classes + methodClasses + 2 + method);
+            buf.putVarlong(classes + methodClasses + 1);
+            buf.putVarint(1);
+            buf.putVarint(0);
+        }
+
+        // Classes of allocated objects come first, then classes declaring methods
+        buf.putVarint(T_CLASS);
+        buf.putVarint(classes + methodClasses);
+        for (int i = 1; i <= classes + methodClasses; i++) {
+            buf.putVarint(i);
+            buf.putVarint(0);
+            buf.putVarlong(i);
+            buf.putVarlong(0);
+            buf.putVarint(1);
+        }
+
+        buf.putVarint(T_SYMBOL);
+        buf.putVarint(classes + methodClasses + 1 + methods);
+        for (int i = 1; i <= classes; i++) {
+            buf.putVarlong(i);
+            buf.putUtf8(i % 3 == 0 ? "[B" : "com/example/model/Entity" + i);
+        }
+        for (int i = 0; i < methodClasses; i++) {
+            buf.putVarlong(classes + 1 + i);
+            buf.putUtf8("com/example/service/package" + i % 16 + "/Service" + i);
+        }
+        buf.putVarlong(classes + methodClasses + 1);
+        buf.putUtf8("()V");
+        for (int i = 0; i < methods; i++) {
+            buf.putVarlong(classes + methodClasses + 2 + i);
+            buf.putUtf8("method" + i);
+        }
+
+        buf.patchSize(start);
+    }
+
+    static class Element {
+        final String name;
+        final List<String> attributes = new ArrayList<>();
+        final List<Element> children = new ArrayList<>();
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        Element attr(String key, String value) {
+            attributes.add(key);
+            attributes.add(value);
+            return this;
+        }
+
+        Element add(Element child) {
+            children.add(child);
+            return this;
+        }
+
+        void collectStrings(Map<String, Integer> strings) {
+            intern(strings, name);
+            for (String s : attributes) {
+                intern(strings, s);
+            }
+            for (Element child : children) {
+                child.collectStrings(strings);
+            }
+        }
+
+        void write(Buf buf, Map<String, Integer> strings) {
+            buf.putVarint(strings.get(name));
+            buf.putVarint(attributes.size() / 2);
+            for (String s : attributes) {
+                buf.putVarint(strings.get(s));
+            }
+            buf.putVarint(children.size());
+            for (Element child : children) {
+                child.write(buf, strings);
+            }
+        }
+
+        private static void intern(Map<String, Integer> strings, String s) {
+            if (!strings.containsKey(s)) {
+                strings.put(s, strings.size());
+            }
+        }
+    }
+
+    // Growable big-endian buffer with JFR varint encoding
+    static class Buf {
+        private byte[] data = new byte[1024 * 1024];
+        private int size;
+
+        void reset() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(data, 0, size);
+        }
+
+        void put8(int v) {
+            ensureCapacity(1);
+            data[size++] = (byte) v;
+        }
+
+        void put16(int v) {
+            put8(v >>> 8);
+            put8(v);
+        }
+
+        void put32(int v) {
+            put16(v >>> 16);
+            put16(v);
+        }
+
+        void put64(long v) {
+            put32((int) (v >>> 32));
+            put32((int) v);
+        }
+
+        void patch64(int offset, long v) {
+            for (int i = 7; i >= 0; i--, v >>>= 8) {
+                data[offset + i] = (byte) v;
+            }
+        }
+
+        void putVarint(int v) {
+            putVarlong(v & 0xffffffffL);
+        }
+
+        void putVarlong(long v) {
+            for (int i = 0; i < 8 && (v >>> 7) != 0; i++, v >>>= 7) {
+                put8((int) v | 0x80);
+            }
+            put8((int) v);
+        }
+
+        void putUtf8(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            put8(3);
+            putVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        // Reserves 5 bytes for the size of an event, which is patched when the event is complete
+        int skipSize() {
+            ensureCapacity(5);
+            size += 5;
+            return size - 5;
+        }
+
+        void patchSize(int start) {
+            int v = size - start;
+            for (int i = 0; i < 4; i++, v >>>= 7) {
+                data[start + i] = (byte) (v | 0x80);
+            }
+            data[start + 4] = (byte) (v & 0x7f);
+        }
+
+        private void ensureCapacity(int n) {
+            if (size + n > data.length) {
+                byte[] newData = new byte[Math.max(data.length * 2, size + n)];
+                System.arraycopy(data, 0, newData, 0, size);
+                data = newData;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.bench;
+
+import one.jfr.JfrReader;
+import one.jfr.ParallelReader;
+import one.jfr.event.EventCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a whole recording: chunk metadata, constant pools and events.
+ * Measures JfrReader.getVarint and friends in all reading modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"buffer", "mmap", "lazy"})
+    public String mode;
+
+    @Benchmark
+    public long readEvents(Recording recording) throws IOException {
+        try (JfrReader jfr = open(recording)) {
+            Counter counter = new Counter();
+            jfr.readEvents(null, counter);
+            return counter.sum;
+        }
+    }
+
+    @Benchmark
+    public void readAllEvents(Recording recording, Blackhole bh) throws IOException {
+        try (JfrReader jfr = open(recording)) {
+            bh.consume(jfr.readAllEvents());
+        }
+    }
+
+    // Same as jfr2flame --parallel. Chunk readers decode their constant pools in full
+    // in every mode, since all constants of a chunk are merged anyway
+    @Benchmark
+    public long readEventsParallel(Recording recording) throws IOException {
+        try (JfrReader jfr = open(recording)) {
+            Counter counter = new Counter();
+            new ParallelReader(jfr).readEvents(null, counter);
+            return counter.sum;
+        }
+    }
+
+    private JfrReader open(Recording recording) throws IOException {
+        int flags = mode.equals("mmap") ? JfrReader.MMAP : mode.equals("lazy") ? JfrReader.LAZY : 0;
+        return new JfrReader(recording.file.getPath(), flags);
+    }
+
+    static class Counter implements EventCollector {
+        long sum;
+
+        @Override
+        public void collect(int kind, long time, int tid, int stackTraceId, int extra, long value) {
+            sum += stackTraceId + value;
+        }
+    }
+}
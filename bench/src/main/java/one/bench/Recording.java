@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Synthetic recording shared by all benchmarks of a trial.
+ * Its size and shape are controlled with JMH parameters, e.g. -p events=5000000 -p depth=100
+ */
+@State(Scope.Benchmark)
+public class Recording {
+    @Param("1000000")
+    public int events;
+
+    @Param("40")
+    public int depth;
+
+    @Param("20000")
+    public int stackTraces;
+
+    @Param("5000")
+    public int methods;
+
+    public File file;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        JfrGenerator gen = new JfrGenerator();
+        gen.events = events;
+        gen.depth = depth;
+        gen.stackTraces = stackTraces;
+        gen.methods = methods;
+
+        file = File.createTempFile("bench", ".jfr");
+        gen.generate(file.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        file.delete();
+    }
+}
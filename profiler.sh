@@ -31,6 +31,7 @@ usage() {
     echo "  --title string    FlameGraph title"
     echo "  --minwidth pct    skip frames smaller than pct%"
     echo "  --reverse         generate stack-reversed FlameGraph / Call tree"
+    echo "  --compact         compact binary encoding of FlameGraph frames"
     echo ""
     echo "  --alloc bytes     allocation profiling interval in bytes"
     echo "  --lock duration   lock profiling threshold in nanoseconds"
@@ -42,6 +43,7 @@ usage() {
     echo "  --end function    end profiling when function is executed"
     echo "  --ttsp            time-to-safepoint profiling"
     echo "  --jfrsync config  synchronize profiler with JFR recording"
+    echo "  --jfrasync        write JFR events from a background thread"
     echo "  --fdtransfer      use fdtransfer to serve perf requests"
     echo "                    from the non-privileged target"
     echo ""
@@ -205,8 +207,8 @@ while [ $# -gt 0 ]; do
             FORMAT="$FORMAT,${1#--}=$2"
             shift
             ;;
-        --reverse)
-            FORMAT="$FORMAT,reverse"
+        --reverse|--compact)
+            FORMAT="$FORMAT,${1#--}"
             ;;
         --samples|--total)
             FORMAT="$FORMAT,${1#--}"
@@ -237,6 +239,9 @@ while [ $# -gt 0 ]; do
             PARAMS="$PARAMS,jfrsync=$2"
             shift
             ;;
+        --jfrasync)
+            PARAMS="$PARAMS,jfrasync"
+            ;;
         --fdtransfer)
             PARAMS="$PARAMS,fdtransfer"
             USE_FDTRANSFER="true"
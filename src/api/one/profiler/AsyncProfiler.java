@@ -17,6 +17,9 @@
 package one.profiler;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Java API for in-process profiling. Serves as a wrapper around
@@ -25,8 +28,12 @@ import java.io.IOException;
  * libasyncProfiler.so.
  */
 public class AsyncProfiler implements AsyncProfilerMXBean {
+    private static final int DUMP_BUFFER_SIZE = 1024 * 1024;
+
     private static AsyncProfiler instance;
 
+    private SnapshotScheduler snapshotScheduler;
+
     private AsyncProfiler() {
     }
 
@@ -174,6 +181,113 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
         }
     }
 
+    /**
+     * Dump profile in a compact binary format directly into the given buffer,
+     * without creating an intermediate String. All numbers are big-endian,
+     * which is the default byte order of ByteBuffer:
+     * <pre>
+     * u32 magic 0x41535042 ('ASPB'), u32 version (1), u32 stringCount, u32 traceCount
+     * stringCount times: u32 length, UTF-8 bytes of a frame name
+     * traceCount times:  u64 samples, u64 counter, u32 frameCount, frameCount string indices from the root
+     * </pre>
+     * The profile is written at the buffer position, and the position is advanced past it.
+     * If the profile does not fit in the remaining space, the buffer is left unchanged,
+     * and the returned size tells how much space is needed.
+     *
+     * @param options Comma-separated output options, e.g. "include=java/*,simple", or null
+     * @param buf Direct buffer to write the profile to
+     * @return Size of the profile in bytes
+     * @throws IllegalArgumentException If the buffer is not direct or failed to parse the options
+     */
+    public long dumpBinary(String options, ByteBuffer buf) {
+        if (!buf.isDirect()) {
+            throw new IllegalArgumentException("Direct buffer required");
+        }
+        return dumpBinary(options, buf, false);
+    }
+
+    // Same as dumpBinary, but only the samples collected since the previous snapshot.
+    // Returns 0 if the profiler has not started yet
+    long snapshot(String options, ByteBuffer buf) {
+        return dumpBinary(options, buf, true);
+    }
+
+    private long dumpBinary(String options, ByteBuffer buf, boolean reset) {
+        long size = dumpBinary0(options, buf, buf.position(), buf.remaining(), reset);
+        if (size <= buf.remaining()) {
+            buf.position(buf.position() + (int) size);
+        }
+        return size;
+    }
+
+    /**
+     * Dump profile in the binary format described in {@link #dumpBinary(String, ByteBuffer)}
+     * to the given channel
+     *
+     * @param options Comma-separated output options, or null
+     * @param ch Channel to write the profile to
+     * @throws IOException If failed to write to the channel
+     */
+    public void dumpBinary(String options, WritableByteChannel ch) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(DUMP_BUFFER_SIZE);
+        for (long size; (size = dumpBinary(options, buf)) > buf.capacity(); ) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Profile is too large: " + size + " bytes");
+            }
+            // The profile may grow until the next attempt
+            buf = ByteBuffer.allocateDirect((int) Math.min(size + size / 8, Integer.MAX_VALUE));
+        }
+
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    /**
+     * Start delivering profiles of consecutive time intervals to the listener, e.g. for continuous profiling.
+     * Every snapshot contains only the samples collected since the previous one. The profiler keeps sampling
+     * while a snapshot is taken, and regular dumps still include all samples since the start.
+     * Intervals before the profiler has started are skipped. If a snapshot fails or the listener
+     * throws an exception, no further snapshots are taken, and the failure is rethrown
+     * by {@link #stopSnapshots()}.
+     *
+     * @param options Comma-separated output options, as in {@link #dumpBinary(String, ByteBuffer)}, or null
+     * @param period Time between snapshots
+     * @param unit Time unit of the period
+     * @param listener Receiver of the snapshots
+     * @throws IllegalArgumentException If failed to parse the options
+     * @throws IllegalStateException If snapshots are already scheduled
+     */
+    public synchronized void startSnapshots(String options, long period, TimeUnit unit, SnapshotListener listener) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        if (snapshotScheduler != null) {
+            throw new IllegalStateException("Snapshots are already scheduled");
+        }
+        enableSnapshots0(options, true);
+        snapshotScheduler = new SnapshotScheduler(this, options, listener);
+        snapshotScheduler.start(period, unit);
+    }
+
+    /**
+     * Stop taking snapshots. Waits for a snapshot in progress, so that the listener
+     * is not called after this method returns
+     *
+     * @throws IllegalStateException If snapshots have stopped earlier because of a failure
+     */
+    public synchronized void stopSnapshots() {
+        if (snapshotScheduler != null) {
+            RuntimeException failure = snapshotScheduler.stop();
+            snapshotScheduler = null;
+            enableSnapshots0(null, false);
+            if (failure != null) {
+                throw new IllegalStateException("Snapshots failed", failure);
+            }
+        }
+    }
+
     /**
      * Add the given thread to the set of profiled threads.
      * 'filter' option must be enabled to use this method.
@@ -212,4 +326,6 @@ public class AsyncProfiler implements AsyncProfilerMXBean {
     private native void stop0() throws IllegalStateException;
     private native String execute0(String command) throws IllegalArgumentException, IllegalStateException, IOException;
     private native void filterThread0(Thread thread, boolean enable);
+    private native long dumpBinary0(String options, ByteBuffer buf, int offset, int length, boolean reset);
+    private native void enableSnapshots0(String options, boolean enable);
 }
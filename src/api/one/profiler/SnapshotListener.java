@@ -0,0 +1,36 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.profiler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives profiles taken periodically by {@link AsyncProfiler#startSnapshots}.
+ */
+public interface SnapshotListener {
+    /**
+     * Called from the snapshot thread with the samples collected since the previous snapshot.
+     * The buffer holds the binary format described in {@link AsyncProfiler#dumpBinary(String, ByteBuffer)}
+     * between its position and limit. The buffer is reused for the next snapshot,
+     * so the data must be copied if it is needed after the method returns.
+     *
+     * @param profile Binary profile of the interval
+     * @param startMillis Start of the interval, as returned by System.currentTimeMillis()
+     * @param endMillis End of the interval
+     */
+    void onSnapshot(ByteBuffer profile, long startMillis, long endMillis);
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.profiler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes interval profiles on a daemon thread. The native call trace storage counts samples
+ * in two generations: while one is being dumped, sampling goes on into the other,
+ * so profiling does not stop and no samples are lost between snapshots.
+ */
+class SnapshotScheduler implements Runnable {
+    private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+
+    private final AsyncProfiler profiler;
+    private final String options;
+    private final SnapshotListener listener;
+    private final ScheduledExecutorService executor;
+    private ByteBuffer buf = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private long startMillis = System.currentTimeMillis();
+    private volatile RuntimeException failure;
+    private volatile Thread thread;
+
+    SnapshotScheduler(AsyncProfiler profiler, String options, SnapshotListener listener) {
+        this.profiler = profiler;
+        this.options = options;
+        this.listener = listener;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                thread = new Thread(r, "Async-profiler Snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void start(long period, TimeUnit unit) {
+        executor.scheduleAtFixedRate(this, period, period, unit);
+    }
+
+    // Waits until a running snapshot completes, so that the listener is not called after stop() returns.
+    // When called from the listener itself, the current snapshot is the last one.
+    // Returns the failure that stopped snapshots, if any
+    RuntimeException stop() {
+        executor.shutdown();
+        if (Thread.currentThread() != thread) {
+            awaitTermination();
+        }
+        return failure;
+    }
+
+    private void awaitTermination() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            takeSnapshot();
+        } catch (RuntimeException e) {
+            // Cancels further snapshots; stopSnapshots() reports the failure
+            failure = e;
+            throw e;
+        }
+    }
+
+    private void takeSnapshot() {
+        long endMillis = System.currentTimeMillis();
+        long size;
+        buf.clear();
+        while ((size = profiler.snapshot(options, buf)) > buf.capacity()) {
+            // The previous generation is kept until the profile fits, so nothing is lost
+            buf = ByteBuffer.allocateDirect((int) Math.min(size + size / 8, Integer.MAX_VALUE));
+        }
+
+        if (size == 0) {
+            // Profiler has not started during this interval
+            startMillis = endMillis;
+            return;
+        }
+
+        buf.flip();
+        listener.onSnapshot(buf, startMillis, endMillis);
+        startMillis = endMillis;
+    }
+}
@@ -73,6 +73,8 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     total            - count the total value (time, bytes, etc.) instead of samples
 //     chunksize=N      - approximate size of JFR chunk in bytes (default: 100 MB)
 //     chunktime=N      - duration of JFR chunk in seconds (default: 1 hour)
+//     jfrasync[=BYTES] - write JFR events from a background thread using buffers of the given size
+//                        (default: scaled by the number of CPUs)
 //     interval=N       - sampling interval in ns (default: 10'000'000, i.e. 10 ms)
 //     jstackdepth=N    - maximum Java stack depth (default: 2048)
 //     safemode=BITS    - disable stack recovery techniques (default: 0, i.e. everything enabled)
@@ -97,6 +99,7 @@ static const Multiplier UNIVERSAL[] = {{'n', 1}, {'u', 1000}, {'m', 1000000}, {'
 //     title=TITLE      - FlameGraph title
 //     minwidth=PCT     - FlameGraph minimum frame width in percent
 //     reverse          - generate stack-reversed FlameGraph / Call tree
+//     compact          - encode FlameGraph frames as a compact binary payload
 //
 // It is possible to specify multiple dump options at the same time
 
@@ -189,6 +192,13 @@ Error Arguments::parse(const char* args) {
                 if (value == NULL || (_chunk_time = parseUnits(value, SECONDS)) < 0) {
                     msg = "Invalid chunktime";
                 }
+
+            CASE("jfrasync")
+                if (value == NULL) {
+                    _jfr_async = 0;
+                } else if ((_jfr_async = parseUnits(value, BYTES)) < 0) {
+                    msg = "Invalid jfrasync";
+                }
             
             // Basic options
             CASE("event")
@@ -303,6 +313,9 @@ Error Arguments::parse(const char* args) {
 
             CASE("reverse")
                 _reverse = true;
+
+            CASE("compact")
+                _compact = true;
         }
     }
 
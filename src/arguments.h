@@ -149,6 +149,7 @@ class Arguments {
     Output _output;
     long _chunk_size;
     long _chunk_time;
+    long _jfr_async;
     const char* _jfr_sync;
     int _jfr_options;
     int _dump_traces;
@@ -159,6 +160,7 @@ class Arguments {
     const char* _title;
     double _minwidth;
     bool _reverse;
+    bool _compact;
 
     Arguments() :
         _buf(NULL),
@@ -186,6 +188,7 @@ class Arguments {
         _output(OUTPUT_NONE),
         _chunk_size(100 * 1024 * 1024),
         _chunk_time(3600),
+        _jfr_async(-1),
         _jfr_sync(NULL),
         _jfr_options(0),
         _dump_traces(0),
@@ -194,7 +197,8 @@ class Arguments {
         _end(NULL),
         _title(NULL),
         _minwidth(0),
-        _reverse(false) {
+        _reverse(false),
+        _compact(false) {
     }
 
     ~Arguments();
@@ -33,8 +33,9 @@ class LongHashTable {
     volatile u32 _size;
     u32 _padding2[15];
 
+    // Generations take no physical memory until double buffering is used
     static size_t getSize(u32 capacity) {
-        size_t size = sizeof(LongHashTable) + (sizeof(u64) + sizeof(CallTraceSample)) * capacity;
+        size_t size = sizeof(LongHashTable) + (sizeof(u64) + sizeof(CallTraceSample) + 2 * sizeof(SampleCounters)) * capacity;
         return (size + OS::page_mask) & ~OS::page_mask;
     }
 
@@ -79,10 +80,18 @@ class LongHashTable {
         return (CallTraceSample*)(keys() + _capacity);
     }
 
+    SampleCounters* generation(int epoch) {
+        return (SampleCounters*)(values() + _capacity) + epoch * _capacity;
+    }
+
     void clear() {
         memset(keys(), 0, (sizeof(u64) + sizeof(CallTraceSample)) * _capacity);
         _size = 0;
     }
+
+    void clearGeneration(int epoch) {
+        memset(generation(epoch), 0, sizeof(SampleCounters) * _capacity);
+    }
 };
 
 
@@ -91,12 +100,20 @@ CallTrace CallTraceStorage::_overflow_trace = {1, {BCI_ERROR, (jmethodID)"storag
 CallTraceStorage::CallTraceStorage() : _allocator(CALL_TRACE_CHUNK) {
     _current_table = LongHashTable::allocate(NULL, INITIAL_CAPACITY);
     _overflow = 0;
+    _double_buffered = false;
+    _epoch = 0;
+    _writers = NULL;
+    _writer_stripes = 0;
+    _pending = false;
 }
 
 CallTraceStorage::~CallTraceStorage() {
     while (_current_table != NULL) {
         _current_table = _current_table->destroy();
     }
+    if (_writers != NULL) {
+        OS::safeFree(_writers, _writer_stripes * sizeof(WriterCount));
+    }
 }
 
 void CallTraceStorage::clear() {
@@ -104,8 +121,13 @@ void CallTraceStorage::clear() {
         _current_table = _current_table->destroy();
     }
     _current_table->clear();
+    if (_double_buffered) {
+        clearGeneration(0);
+        clearGeneration(1);
+    }
     _allocator.clear();
     _overflow = 0;
+    _pending = false;
 }
 
 void CallTraceStorage::collectTraces(std::map<u32, CallTrace*>& map) {
@@ -156,6 +178,79 @@ void CallTraceStorage::collectSamples(std::map<u64, CallTraceSample>& map) {
     }
 }
 
+// The number of stripes must be a power of 2; it does not change once writers are allocated
+bool CallTraceStorage::setDoubleBuffered(bool enabled, int stripes) {
+    if (enabled && _writers == NULL) {
+        _writers = (WriterCount*)OS::safeAlloc(stripes * sizeof(WriterCount));
+        if (_writers == NULL) {
+            return false;
+        }
+        _writer_stripes = stripes;
+    }
+
+    _double_buffered = enabled;
+    __sync_synchronize();
+    waitForWriters(0);
+    waitForWriters(1);
+
+    // Intervals start from zero, when double buffering is turned on
+    if (enabled) {
+        clearGeneration(0);
+        clearGeneration(1);
+        _pending = false;
+    }
+    return true;
+}
+
+// Switches sampling to the other generation, unless the previous one has not been reset yet,
+// and returns counters of the previous generation. No put() modifies them afterwards
+void CallTraceStorage::collectPreviousGeneration(std::vector<CallTraceSample>& samples) {
+    if (!_pending) {
+        int epoch = _epoch;
+        __sync_lock_test_and_set(&_epoch, epoch ^ 1);
+        __sync_synchronize();
+        waitForWriters(epoch);
+        _pending = true;
+    }
+
+    int previous = _epoch ^ 1;
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        u64* keys = table->keys();
+        CallTraceSample* values = table->values();
+        SampleCounters* counters = table->generation(previous);
+        u32 capacity = table->capacity();
+
+        for (u32 slot = 0; slot < capacity; slot++) {
+            if (keys[slot] != 0 && counters[slot].samples != 0) {
+                CallTraceSample s = {values[slot].trace, counters[slot].samples, counters[slot].counter};
+                samples.push_back(s);
+            }
+        }
+    }
+}
+
+// Marks the previous generation consumed; the next collect will switch generations again
+void CallTraceStorage::resetPreviousGeneration() {
+    if (_pending) {
+        clearGeneration(_epoch ^ 1);
+        _pending = false;
+    }
+}
+
+void CallTraceStorage::waitForWriters(int epoch) {
+    for (int i = 0; i < _writer_stripes; i++) {
+        while (_writers[i].count[epoch] > 0) {
+            spinPause();
+        }
+    }
+}
+
+void CallTraceStorage::clearGeneration(int epoch) {
+    for (LongHashTable* table = _current_table; table != NULL; table = table->prev()) {
+        table->clearGeneration(epoch);
+    }
+}
+
 // Adaptation of MurmurHash64A by Austin Appleby
 u64 CallTraceStorage::calcHash(int num_frames, ASGCT_CallFrame* frames) {
     const u64 M = 0xc6a4a7935bd1e995ULL;
@@ -220,7 +315,7 @@ CallTrace* CallTraceStorage::findCallTrace(LongHashTable* table, u64 hash) {
     return table->values()[slot].trace;
 }
 
-u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter) {
+u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter, int stripe) {
     u64 hash = calcHash(num_frames, frames);
 
     LongHashTable* table = _current_table;
@@ -265,5 +360,23 @@ u32 CallTraceStorage::put(int num_frames, ASGCT_CallFrame* frames, u64 counter)
     atomicInc(s.samples);
     atomicInc(s.counter, counter);
 
+    if (_double_buffered) {
+        // Register as a writer of the current generation. If the epoch has changed meanwhile,
+        // the dumper may not wait for us, so retry with the new epoch
+        volatile int* writers = _writers[stripe & (_writer_stripes - 1)].count;
+        int epoch;
+        while (true) {
+            epoch = _epoch;
+            atomicInc(writers[epoch]);
+            if (epoch == _epoch) break;
+            atomicInc(writers[epoch], -1);
+        }
+
+        SampleCounters& g = table->generation(epoch)[slot];
+        atomicInc(g.samples);
+        atomicInc(g.counter, counter);
+        atomicInc(writers[epoch], -1);
+    }
+
     return capacity - (INITIAL_CAPACITY - 1) + slot;
 }
@@ -48,6 +48,17 @@ struct CallTraceSample {
     }
 };
 
+struct SampleCounters {
+    u64 samples;
+    u64 counter;
+};
+
+// put() calls in progress per generation; one cache line per stripe
+struct WriterCount {
+    volatile int count[2];
+    char padding[56];
+};
+
 class CallTraceStorage {
   private:
     static CallTrace _overflow_trace;
@@ -56,6 +67,19 @@ class CallTraceStorage {
     LongHashTable* _current_table;
     u64 _overflow;
 
+    // Double buffering: besides the total counters, put() counts samples in the generation
+    // of the current epoch, while the other generation is drained by a dumper.
+    // Writers are striped by the sampling slot, so that CPUs do not contend for the counters
+    // Only binary snapshots read generations; other dumps use the total counters
+    volatile bool _double_buffered;
+    volatile int _epoch;
+    WriterCount* _writers;
+    int _writer_stripes;
+    bool _pending;
+
+    void waitForWriters(int epoch);
+    void clearGeneration(int epoch);
+
     u64 calcHash(int num_frames, ASGCT_CallFrame* frames);
     CallTrace* storeCallTrace(int num_frames, ASGCT_CallFrame* frames);
     CallTrace* findCallTrace(LongHashTable* table, u64 hash);
@@ -69,7 +93,11 @@ class CallTraceStorage {
     void collectSamples(std::vector<CallTraceSample*>& samples);
     void collectSamples(std::map<u64, CallTraceSample>& map);
 
-    u32 put(int num_frames, ASGCT_CallFrame* frames, u64 counter);
+    bool setDoubleBuffered(bool enabled, int stripes);
+    void collectPreviousGeneration(std::vector<CallTraceSample>& samples);
+    void resetPreviousGeneration();
+
+    u32 put(int num_frames, ASGCT_CallFrame* frames, u64 counter, int stripe);
 };
 
 #endif // _CALLTRACESTORAGE
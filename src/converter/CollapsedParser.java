@@ -0,0 +1,250 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses collapsed stacks straight from the bytes of a memory-mapped file.
+ * The file is split into line-aligned ranges; every thread takes ranges one by one
+ * and adds their samples to its own partial FlameGraph, then partial graphs are merged.
+ */
+class CollapsedParser implements Callable<FlameGraph> {
+    private static final int RANGE_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel ch;
+    private final long[] bounds;
+    private final AtomicInteger nextRange;
+    private final FlameGraph graph;
+
+    private int[] trace = new int[256];
+
+    private CollapsedParser(FileChannel ch, long[] bounds, AtomicInteger nextRange, FlameGraph target) {
+        this.ch = ch;
+        this.bounds = bounds;
+        this.nextRange = nextRange;
+        this.graph = new FlameGraph();
+        this.graph.reverse = target.reverse;
+        this.graph.skip = target.skip;
+    }
+
+    static void parse(FlameGraph fg, String fileName, int parallelism) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long[] bounds = splitLines(ch, RANGE_SIZE);
+            int threads = Math.max(1, Math.min(parallelism, bounds.length - 1));
+            AtomicInteger nextRange = new AtomicInteger();
+
+            List<CollapsedParser> tasks = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                tasks.add(new CollapsedParser(ch, bounds, nextRange, fg));
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                for (Future<FlameGraph> partial : pool.invokeAll(tasks)) {
+                    fg.merge(partial.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // Returns range boundaries: every range ends right after a line feed or at the end of file
+    private static long[] splitLines(FileChannel ch, long rangeSize) throws IOException {
+        long fileSize = ch.size();
+        long[] bounds = new long[(int) ((fileSize + rangeSize - 1) / rangeSize) + 1];
+        int count = 1;
+
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        for (long pos = rangeSize; pos < fileSize; pos += rangeSize) {
+            pos = nextLine(ch, pos, buf);
+            bounds[count++] = pos;
+        }
+        if (bounds[count - 1] < fileSize) {
+            bounds[count++] = fileSize;
+        }
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static long nextLine(FileChannel ch, long pos, ByteBuffer buf) throws IOException {
+        while (true) {
+            buf.clear();
+            int bytes = ch.read(buf, pos);
+            if (bytes <= 0) {
+                return ch.size();
+            }
+            for (int i = 0; i < bytes; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += bytes;
+        }
+    }
+
+    @Override
+    public FlameGraph call() throws IOException {
+        for (int range; (range = nextRange.getAndIncrement()) < bounds.length - 1; ) {
+            long start = bounds[range];
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, bounds[range + 1] - start);
+            parseRange(buf);
+        }
+        return graph;
+    }
+
+    // Single pass over the range: frames are interned as soon as their terminating ';' is found
+    private void parseRange(ByteBuffer buf) {
+        int limit = buf.limit();
+        int lineStart = 0;
+        int frameStart = 0;
+        int count = 0;
+        int nonEmpty = 0;
+
+        for (int i = 0; i < limit; i++) {
+            byte b = buf.get(i);
+            if (b == ';') {
+                count = addFrame(count, buf, frameStart, i);
+                if (i > frameStart) {
+                    nonEmpty = count;
+                }
+                frameStart = i + 1;
+            } else if (b == '\n') {
+                endLine(buf, lineStart, frameStart, i, count, nonEmpty);
+                lineStart = frameStart = i + 1;
+                count = nonEmpty = 0;
+            }
+        }
+
+        if (lineStart < limit) {
+            endLine(buf, lineStart, frameStart, limit, count, nonEmpty);
+        }
+    }
+
+    private void endLine(ByteBuffer buf, int lineStart, int frameStart, int end, int count, int nonEmpty) {
+        if (end > lineStart && buf.get(end - 1) == '\r') {
+            end--;
+        }
+
+        // The counter normally follows the last frame; otherwise parse the line again the slow way
+        int space = end - 1;
+        while (space >= frameStart && buf.get(space) != ' ') {
+            space--;
+        }
+        if (space < frameStart || space == lineStart) {
+            parseLine(buf, lineStart, end);
+            return;
+        }
+
+        long ticks = parseLong(buf, space + 1, end);
+        count = addFrame(count, buf, frameStart, space);
+        if (space > frameStart) {
+            nonEmpty = count;
+        }
+        graph.addSample(trace, nonEmpty, ticks);
+    }
+
+    // Frame titles go straight into the symbol table of the partial graph, copied only when new
+    private int addFrame(int count, ByteBuffer buf, int start, int end) {
+        if (count == trace.length) {
+            trace = Arrays.copyOf(trace, count * 2);
+        }
+        trace[count] = graph.frameId(buf, start, end - start);
+        return count + 1;
+    }
+
+    // Equivalent of FlameGraph.parse(Reader) for a single line
+    private void parseLine(ByteBuffer buf, int start, int end) {
+        int space = end - 1;
+        while (space >= start && buf.get(space) != ' ') {
+            space--;
+        }
+        if (space <= start) return;
+
+        long ticks = parseLong(buf, space + 1, end);
+
+        // Trailing empty frames are dropped, as String.split does
+        int count = 0;
+        int nonEmpty = 0;
+        for (int frameStart = start, i = start; i <= space; i++) {
+            if (i == space || buf.get(i) == ';') {
+                count = addFrame(count, buf, frameStart, i);
+                if (i > frameStart) {
+                    nonEmpty = count;
+                }
+                frameStart = i + 1;
+            }
+        }
+
+        graph.addSample(trace, nonEmpty, ticks);
+    }
+
+    private static long parseLong(ByteBuffer buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i++) == '-';
+        }
+        if (i == end) {
+            throw numberFormatException(buf, start, end);
+        }
+
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw numberFormatException(buf, start, end);
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    private static NumberFormatException numberFormatException(ByteBuffer buf, int start, int end) {
+        return new NumberFormatException("For input string: \"" + new String(getBytes(buf, start, end), StandardCharsets.UTF_8) + '"');
+    }
+
+    private static byte[] getBytes(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return bytes;
+    }
+}
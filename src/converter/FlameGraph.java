@@ -14,29 +14,55 @@
  * limitations under the License.
  */
 
+import one.jfr.SymbolTable;
+
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.Comparator;
 
 public class FlameGraph {
     public String title = "Flame Graph";
     public boolean reverse;
+    public boolean compact;
     public double minwidth;
     public int skip;
     public String input;
     public String output;
+    public String diff;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Frame titles are interned as UTF-8: the trie refers to them by index, which is symbol id - 1
+    private final SymbolTable titles = new SymbolTable();
+
+    // Trie nodes in parallel arrays; node 0 is the root
+    private int[] nodeParent = new int[INITIAL_CAPACITY];
+    private int[] nodeFrame = new int[INITIAL_CAPACITY];
+    private long[] nodeTotal = new long[INITIAL_CAPACITY];
+    private long[] nodeSelf = new long[INITIAL_CAPACITY];
+    private int nodeCount = 1;
+
+    // Open-addressing table (parent node, frame id) -> child node; 0 marks an empty slot
+    private long[] childKeys = new long[INITIAL_CAPACITY];
+    private int[] childNodes = new int[INITIAL_CAPACITY];
+
+    // Counters of the baseline profile in differential mode; swapped with nodeTotal and nodeSelf
+    // while the baseline is being added
+    private long[] baseTotal;
+    private long[] baseSelf;
+    private boolean baseline;
 
-    private final Frame root = new Frame();
     private int depth;
     private long mintotal;
+    private long deltaTotal;
+    private long deltaBaseTotal;
 
     public FlameGraph(String... args) {
         for (int i = 0; i < args.length; i++) {
@@ -51,16 +77,25 @@ public class FlameGraph {
                 title = args[++i];
             } else if (arg.equals("--reverse")) {
                 reverse = true;
+            } else if (arg.equals("--compact")) {
+                compact = true;
             } else if (arg.equals("--minwidth")) {
                 minwidth = Double.parseDouble(args[++i]);
             } else if (arg.equals("--skip")) {
                 skip = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--diff")) {
+                diff = args[++i];
             }
         }
     }
 
     public void parse() throws IOException {
-        parse(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8));
+        if (diff != null) {
+            setBaseline(true);
+            CollapsedParser.parse(this, diff, Runtime.getRuntime().availableProcessors());
+            setBaseline(false);
+        }
+        CollapsedParser.parse(this, input, Runtime.getRuntime().availableProcessors());
     }
 
     public void parse(Reader in) throws IOException {
@@ -77,22 +112,148 @@ public class FlameGraph {
     }
 
     public void addSample(String[] trace, long ticks) {
-        Frame frame = root;
+        int[] frames = new int[trace.length];
+        for (int i = skip; i < trace.length; i++) {
+            frames[i] = frameId(trace[i]);
+        }
+        addSample(frames, ticks);
+    }
+
+    // Same as addSample(String[], long) for a trace of ids returned by frameId()
+    public void addSample(int[] trace, long ticks) {
+        addSample(trace, trace.length, ticks);
+    }
+
+    void addSample(int[] trace, int length, long ticks) {
+        int node = 0;
         if (reverse) {
-            for (int i = trace.length; --i >= skip; ) {
-                frame.total += ticks;
-                frame = frame.child(trace[i]);
+            for (int i = length; --i >= skip; ) {
+                nodeTotal[node] += ticks;
+                node = child(node, trace[i]);
             }
         } else {
-            for (int i = skip; i < trace.length; i++) {
-                frame.total += ticks;
-                frame = frame.child(trace[i]);
+            for (int i = skip; i < length; i++) {
+                nodeTotal[node] += ticks;
+                node = child(node, trace[i]);
+            }
+        }
+        nodeTotal[node] += ticks;
+        nodeSelf[node] += ticks;
+
+        depth = Math.max(depth, length);
+    }
+
+    // Adds all samples of another graph built with the same skip and reverse settings
+    void merge(FlameGraph other) {
+        int[] frameMap = new int[other.titles.size()];
+        for (int i = 0; i < frameMap.length; i++) {
+            frameMap[i] = (int) titles.intern(other.titles, i + 1) - 1;
+        }
+
+        // A parent node is always created before its children
+        int[] nodeMap = new int[other.nodeCount];
+        for (int i = 1; i < nodeMap.length; i++) {
+            nodeMap[i] = child(nodeMap[other.nodeParent[i]], frameMap[other.nodeFrame[i]]);
+        }
+        for (int i = 0; i < nodeMap.length; i++) {
+            nodeTotal[nodeMap[i]] += other.nodeTotal[i];
+            nodeSelf[nodeMap[i]] += other.nodeSelf[i];
+        }
+
+        depth = Math.max(depth, other.depth);
+    }
+
+    // Samples added in baseline mode form the "before" profile of a differential Flame Graph.
+    // Frames are laid out by the main profile and colored by the change of their share of samples
+    public void setBaseline(boolean baseline) {
+        if (baseTotal == null) {
+            baseTotal = new long[nodeTotal.length];
+            baseSelf = new long[nodeSelf.length];
+        }
+        if (this.baseline != baseline) {
+            long[] tmp = nodeTotal;
+            nodeTotal = baseTotal;
+            baseTotal = tmp;
+            tmp = nodeSelf;
+            nodeSelf = baseSelf;
+            baseSelf = tmp;
+            this.baseline = baseline;
+        }
+    }
+
+    public int frameId(String title) {
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        return frameId(bytes, 0, bytes.length);
+    }
+
+    // Same as frameId(String) for a title in UTF-8; the bytes are copied only if the title is new
+    public int frameId(byte[] title, int offset, int length) {
+        return (int) titles.intern(title, offset, length) - 1;
+    }
+
+    public int frameId(ByteBuffer title, int offset, int length) {
+        return (int) titles.intern(title, offset, length) - 1;
+    }
+
+    private int child(int parent, int frame) {
+        long key = (long) parent << 32 | frame;
+        int mask = childKeys.length - 1;
+        int i = hashCode(key) & mask;
+        while (childNodes[i] != 0) {
+            if (childKeys[i] == key) {
+                return childNodes[i];
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (nodeCount == nodeParent.length) {
+            int newCapacity = nodeCount * 2;
+            nodeParent = Arrays.copyOf(nodeParent, newCapacity);
+            nodeFrame = Arrays.copyOf(nodeFrame, newCapacity);
+            nodeTotal = Arrays.copyOf(nodeTotal, newCapacity);
+            nodeSelf = Arrays.copyOf(nodeSelf, newCapacity);
+            if (baseTotal != null) {
+                baseTotal = Arrays.copyOf(baseTotal, newCapacity);
+                baseSelf = Arrays.copyOf(baseSelf, newCapacity);
+            }
+        }
+
+        int node = nodeCount++;
+        nodeParent[node] = parent;
+        nodeFrame[node] = frame;
+        childKeys[i] = key;
+        childNodes[i] = node;
+
+        if (nodeCount * 2 > childKeys.length) {
+            resizeChildren(childKeys.length * 2);
+        }
+        return node;
+    }
+
+    private void resizeChildren(int newCapacity) {
+        long[] newKeys = new long[newCapacity];
+        int[] newNodes = new int[newCapacity];
+        int mask = newCapacity - 1;
+
+        for (int i = 0; i < childKeys.length; i++) {
+            if (childNodes[i] != 0) {
+                for (int j = hashCode(childKeys[i]) & mask; ; j = (j + 1) & mask) {
+                    if (newNodes[j] == 0) {
+                        newKeys[j] = childKeys[i];
+                        newNodes[j] = childNodes[i];
+                        break;
+                    }
+                }
             }
         }
-        frame.total += ticks;
-        frame.self += ticks;
 
-        depth = Math.max(depth, trace.length);
+        childKeys = newKeys;
+        childNodes = newNodes;
+    }
+
+    private static int hashCode(long key) {
+        key *= 0xc6a4a7935bd1e995L;
+        return (int) (key ^ (key >>> 32));
     }
 
     public void dump() throws IOException {
@@ -107,18 +268,48 @@ public class FlameGraph {
     }
 
     public void dump(PrintStream out) {
+        if (baseline) {
+            setBaseline(false);
+        }
+
         out.print(applyReplacements(HEADER,
                 "{title}", title,
                 "{height}", (depth + 1) * 16,
                 "{depth}", depth + 1,
                 "{reverse}", reverse));
 
-        mintotal = (long) (root.total * minwidth / 100);
-        printFrame(out, "all", root, 0, 0);
+        mintotal = (long) (nodeTotal[0] * minwidth / 100);
+        if (baseTotal != null) {
+            deltaTotal = Math.max(nodeTotal[0], 1);
+            deltaBaseTotal = Math.max(baseTotal[0], 1);
+            long maxDelta = 0;
+            for (int node = 1; node < nodeCount; node++) {
+                maxDelta = Math.max(maxDelta, Math.abs(delta(node)));
+            }
+            out.println("maxDelta = " + formatDelta(maxDelta) + ";");
+        }
+        int[] children = new int[nodeCount];
+        int[] childStart = sortChildren(children);
+        if (compact) {
+            printCompact(out, children, childStart);
+        } else {
+            printFrame(out, -1, 0, 0, 0, children, childStart);
+        }
 
         out.print(FOOTER);
     }
 
+    // Change of the share of samples in thousandths of a percent
+    private long delta(int node) {
+        return Math.round(1e5 * nodeTotal[node] / deltaTotal - 1e5 * baseTotal[node] / deltaBaseTotal);
+    }
+
+    private static String formatDelta(long delta) {
+        long abs = Math.abs(delta);
+        String fraction = Long.toString(1000 + abs % 1000).substring(1);
+        return (delta < 0 ? "-" : "") + abs / 1000 + "." + fraction;
+    }
+
     // Replace ${variables} in the given string with field values
     private String applyReplacements(String s, Object... params) {
         StringBuilder result = new StringBuilder(s.length() + 256);
@@ -140,26 +331,187 @@ public class FlameGraph {
         return result.toString();
     }
 
-    private void printFrame(PrintStream out, String title, Frame frame, int level, long x) {
-        int type = frameType(title);
-        title = stripSuffix(title);
-        if (title.indexOf('\'') >= 0) {
-            title = title.replace("'", "\\'");
+    // Lists children of every node ordered by title, like a TreeMap would do.
+    // Children of node n are children[childStart[n]] .. children[childStart[n + 1] - 1]
+    private int[] sortChildren(int[] children) {
+        int frameCount = titles.size();
+        Integer[] sortedFrames = new Integer[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            sortedFrames[i] = i;
+        }
+        // Don't use lambda for faster startup
+        Arrays.sort(sortedFrames, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return titles.compare(a + 1, b + 1);
+            }
+        });
+        int[] rank = new int[frameCount];
+        int[] byRank = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            int frame = sortedFrames[i];
+            rank[frame] = i;
+            byRank[i] = frame;
         }
 
-        out.println("f(" + level + "," + x + "," + frame.total + "," + type + ",'" + title + "')");
+        // (parent, rank) is unique per node, so sorting these pairs orders all siblings at once
+        long[] keys = new long[nodeCount - 1];
+        for (int node = 1; node < nodeCount; node++) {
+            keys[node - 1] = (long) nodeParent[node] << 32 | rank[nodeFrame[node]];
+        }
+        Arrays.sort(keys);
 
-        x += frame.self;
-        for (Map.Entry<String, Frame> e : frame.entrySet()) {
-            Frame child = e.getValue();
-            if (child.total >= mintotal) {
-                printFrame(out, e.getKey(), child, level + 1, x);
+        int[] childStart = new int[nodeCount + 1];
+        for (int i = 0; i < keys.length; i++) {
+            int parent = (int) (keys[i] >>> 32);
+            children[i] = child(parent, byRank[(int) keys[i]]);
+            childStart[parent + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        return childStart;
+    }
+
+    // frame is -1 for the root
+    private void printFrame(PrintStream out, int frame, int node, int level, long x,
+                            int[] children, int[] childStart) {
+        out.print("f(" + level + "," + x + "," + nodeTotal[node] + "," + frameType(frame) + ",'");
+        printTitle(out, frame);
+        if (baseTotal == null) {
+            out.println("')");
+        } else {
+            out.println("'," + formatDelta(delta(node)) + ")");
+        }
+
+        x += nodeSelf[node];
+        for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+            int child = children[i];
+            // Frames that exist only in the baseline have no width to be drawn with
+            if (nodeTotal[child] >= mintotal && (baseTotal == null || nodeTotal[child] > 0)) {
+                printFrame(out, nodeFrame[child], child, level + 1, x, children, childStart);
             }
-            x += child.total;
+            x += nodeTotal[child];
+        }
+    }
+
+    // Writes the title bytes as a JS string literal body: without the type suffix and with quotes escaped
+    private void printTitle(PrintStream out, int frame) {
+        if (frame < 0) {
+            out.print("all");
+            return;
+        }
+
+        long id = frame + 1;
+        int end = titles.length(id) - suffixLength(id);
+        int start = 0;
+        for (int quote; (quote = titles.indexOf(id, '\'', start)) >= 0 && quote < end; start = quote + 1) {
+            titles.write(id, start, quote, out);
+            out.print("\\'");
+        }
+        titles.write(id, start, end, out);
+    }
+
+    // Instead of a call per frame, emits a table of distinct titles and a base64 string of varints.
+    // Every frame is encoded as (previous level + 1 - level), (left - end of the previous frame
+    // on the same level), width, (title index << 3 | type) and, in differential mode, zigzag delta
+    private void printCompact(PrintStream out, int[] children, int[] childStart) {
+        CompactWriter writer = new CompactWriter(titles.size(), depth);
+        writer.addFrame(this, -1, 0, 0, 0);
+        packFrame(writer, 0, 0, 0, children, childStart);
+
+        out.print("unpack([");
+        for (int i = 0; i < writer.titleCount; i++) {
+            if (i > 0) out.print(',');
+            out.print('\'');
+            printTitle(out, writer.titles[i]);
+            out.print('\'');
         }
+        out.print("], '");
+        writer.printBase64(out);
+        out.println("');");
     }
 
-    private String stripSuffix(String title) {
+    private void packFrame(CompactWriter writer, int node, int level, long x, int[] children, int[] childStart) {
+        x += nodeSelf[node];
+        for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+            int child = children[i];
+            if (nodeTotal[child] >= mintotal && (baseTotal == null || nodeTotal[child] > 0)) {
+                writer.addFrame(this, nodeFrame[child], level + 1, x, child);
+                packFrame(writer, child, level + 1, x, children, childStart);
+            }
+            x += nodeTotal[child];
+        }
+    }
+
+    // Length of the _[j], _[i] or _[k] suffix, if the title has one
+    private int suffixLength(long id) {
+        int len = titles.length(id);
+        if (len >= 4 && titles.byteAt(id, len - 1) == ']'
+                && titles.byteAt(id, len - 4) == '_' && titles.byteAt(id, len - 3) == '[') {
+            return 4;
+        }
+        return 0;
+    }
+
+    // Same as frameType(String) for an interned title
+    private int frameType(int frame) {
+        if (frame < 0) {
+            return frameType("all");
+        }
+
+        long id = frame + 1;
+        int len = titles.length(id);
+        if (suffixLength(id) > 0) {
+            switch (titles.byteAt(id, len - 2)) {
+                case 'j':
+                    return 0;
+                case 'i':
+                    return 1;
+                case 'k':
+                    return 2;
+            }
+        }
+
+        if (len == 0) {
+            return 4;
+        }
+        byte first = titles.byteAt(id, 0);
+        if (containsColons(id) || len >= 2 && (first == '-' || first == '+') && titles.byteAt(id, 1) == '[') {
+            return 3;
+        } else if (titles.indexOf(id, '/', 0) > 0 && first != '['
+                || titles.indexOf(id, '.', 0) > 0 && Character.isUpperCase(firstChar(id))) {
+            return 0;
+        } else {
+            return 4;
+        }
+    }
+
+    private boolean containsColons(long id) {
+        for (int i = 0; (i = titles.indexOf(id, ':', i)) >= 0; i++) {
+            if (i + 1 < titles.length(id) && titles.byteAt(id, i + 1) == ':') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The first UTF-16 char of the title, as String.charAt(0) would return
+    private char firstChar(long id) {
+        int b = titles.byteAt(id, 0) & 0xff;
+        int len = titles.length(id);
+        if (b < 0x80) {
+            return (char) b;
+        } else if (b >= 0xc0 && b < 0xe0 && len >= 2) {
+            return (char) ((b & 0x1f) << 6 | (titles.byteAt(id, 1) & 0x3f));
+        } else if (b >= 0xe0 && b < 0xf0 && len >= 3) {
+            return (char) ((b & 0x0f) << 12 | (titles.byteAt(id, 1) & 0x3f) << 6 | (titles.byteAt(id, 2) & 0x3f));
+        }
+        // A supplementary character starts with a high surrogate, which is not a letter
+        return Character.MIN_HIGH_SURROGATE;
+    }
+
+    static String stripSuffix(String title) {
         int len = title.length();
         if (len >= 4 && title.charAt(len - 1) == ']' && title.regionMatches(len - 4, "_[", 0, 2)) {
             return title.substring(0, len - 4);
@@ -167,7 +519,7 @@ public class FlameGraph {
         return title;
     }
 
-    private int frameType(String title) {
+    static int frameType(String title) {
         if (title.endsWith("_[j]")) {
             return 0;
         } else if (title.endsWith("_[i]")) {
@@ -184,6 +536,83 @@ public class FlameGraph {
         }
     }
 
+    static class CompactWriter {
+        private static final byte[] BASE64 =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+        // Frames of distinct titles in the order of their indices; -1 is the root
+        int[] titles = new int[256];
+        int titleCount;
+        private final int[] titleIndex;
+        private final long[] levelEnd;
+        private int prevLevel = -1;
+        private byte[] data = new byte[65536];
+        private int size;
+
+        CompactWriter(int frameCount, int depth) {
+            this.titleIndex = new int[frameCount];
+            this.levelEnd = new long[depth + 2];
+        }
+
+        // frame is -1 for the root, which is not interned
+        void addFrame(FlameGraph fg, int frame, int level, long x, int node) {
+            int index = frame >= 0 ? titleIndex[frame] - 1 : -1;
+            int type = fg.frameType(frame);
+            if (index < 0) {
+                if (titleCount == titles.length) {
+                    titles = Arrays.copyOf(titles, titleCount * 2);
+                }
+                titles[titleCount] = frame;
+                index = titleCount++;
+                if (frame >= 0) {
+                    titleIndex[frame] = index + 1;
+                }
+            }
+
+            putVarlong(prevLevel + 1 - level);
+            putVarlong(x - levelEnd[level]);
+            putVarlong(fg.nodeTotal[node]);
+            putVarlong((long) index << 3 | type);
+            if (fg.baseTotal != null) {
+                long delta = fg.delta(node);
+                putVarlong(delta << 1 ^ delta >> 63);
+            }
+
+            prevLevel = level;
+            levelEnd[level] = x + fg.nodeTotal[node];
+        }
+
+        private void putVarlong(long n) {
+            if (size + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((n >>> 7) != 0) {
+                data[size++] = (byte) (n | 0x80);
+                n >>>= 7;
+            }
+            data[size++] = (byte) n;
+        }
+
+        void printBase64(PrintStream out) {
+            byte[] buf = new byte[65536];
+            int n = 0;
+            for (int i = 0; i < size; i += 3) {
+                int b = (data[i] & 0xff) << 16
+                        | (i + 1 < size ? (data[i + 1] & 0xff) << 8 : 0)
+                        | (i + 2 < size ? data[i + 2] & 0xff : 0);
+                buf[n++] = BASE64[b >>> 18];
+                buf[n++] = BASE64[(b >>> 12) & 63];
+                buf[n++] = i + 1 < size ? BASE64[(b >>> 6) & 63] : (byte) '=';
+                buf[n++] = i + 2 < size ? BASE64[b & 63] : (byte) '=';
+                if (n == buf.length) {
+                    out.write(buf, 0, n);
+                    n = 0;
+                }
+            }
+            out.write(buf, 0, n);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         FlameGraph fg = new FlameGraph(args);
         if (fg.input == null) {
@@ -192,8 +621,10 @@ public class FlameGraph {
             System.out.println("Options:");
             System.out.println("  --title TITLE");
             System.out.println("  --reverse");
+            System.out.println("  --compact");
             System.out.println("  --minwidth PERCENT");
             System.out.println("  --skip FRAMES");
+            System.out.println("  --diff BASELINE.collapsed");
             System.exit(1);
         }
 
@@ -201,70 +632,8 @@ public class FlameGraph {
         fg.dump();
     }
 
-    static class Frame extends TreeMap<String, Frame> {
-        long total;
-        long self;
-
-        Frame child(String title) {
-            Frame child = get(title);
-            if (child == null) {
-                put(title, child = new Frame());
-            }
-            return child;
-        }
-    }
-
-    private static final String HEADER = "<!DOCTYPE html>\n" +
-            "<html lang='en'>\n" +
-            "<head>\n" +
-            "<meta charset='utf-8'>\n" +
-            "<style>\n" +
-            "\tbody {margin: 0; padding: 10px; background-color: #ffffff}\n" +
-            "\th1 {margin: 5px 0 0 0; font-size: 18px; font-weight: normal; text-align: center}\n" +
-            "\theader {margin: -24px 0 5px 0; line-height: 24px}\n" +
-            "\tbutton {font: 12px sans-serif; cursor: pointer}\n" +
-            "\tp {margin: 5px 0 5px 0}\n" +
-            "\ta {color: #0366d6}\n" +
-            "\t#hl {position: absolute; display: none; overflow: hidden; white-space: nowrap; pointer-events: none; background-color: #ffffe0; outline: 1px solid #ffc000; height: 15px}\n" +
-            "\t#hl span {padding: 0 3px 0 3px}\n" +
-            "\t#status {overflow: hidden; white-space: nowrap}\n" +
-            "\t#match {overflow: hidden; white-space: nowrap; display: none; float: right; text-align: right}\n" +
-            "\t#reset {cursor: pointer}\n" +
-            "</style>\n" +
-            "</head>\n" +
-            "<body style='font: 12px Verdana, sans-serif'>\n" +
-            "<h1>${title}</h1>\n" +
-            "<header style='text-align: left'><button id='reverse' title='Reverse'>&#x1f53b;</button>&nbsp;&nbsp;<button id='search' title='Search'>&#x1f50d;</button></header>\n" +
-            "<header style='text-align: right'>Produced by <a href='https://github.com/jvm-profiling-tools/async-profiler'>async-profiler</a></header>\n" +
-            "<canvas id='canvas' style='width: 100%; height: ${height}px'></canvas>\n" +
-            "<div id='hl'><span></span></div>\n" +
-            "<p id='match'>Matched: <span id='matchval'></span> <span id='reset' title='Clear'>&#x274c;</span></p>\n" +
-            "<p id='status'>&nbsp;</p>\n" +
-            "<script>\n" +
-            "\t// Copyright 2020 Andrei Pangin\n" +
-            "\t// Licensed under the Apache License, Version 2.0.\n" +
-            "\t'use strict';\n" +
-            "\tvar root, rootLevel, px, pattern;\n" +
-            "\tvar reverse = ${reverse};\n" +
-            "\tconst levels = Array(${depth});\n" +
-            "\tfor (let h = 0; h < levels.length; h++) {\n" +
-            "\t\tlevels[h] = [];\n" +
-            "\t}\n" +
-            "\n" +
-            "\tconst canvas = document.getElementById('canvas');\n" +
-            "\tconst c = canvas.getContext('2d');\n" +
-            "\tconst hl = document.getElementById('hl');\n" +
-            "\tconst status = document.getElementById('status');\n" +
-            "\n" +
-            "\tconst canvasWidth = canvas.offsetWidth;\n" +
-            "\tconst canvasHeight = canvas.offsetHeight;\n" +
-            "\tcanvas.style.width = canvasWidth + 'px';\n" +
-            "\tcanvas.width = canvasWidth * (devicePixelRatio || 1);\n" +
-            "\tcanvas.height = canvasHeight * (devicePixelRatio || 1);\n" +
-            "\tif (devicePixelRatio) c.scale(devicePixelRatio, devicePixelRatio);\n" +
-            "\tc.font = document.body.style.font;\n" +
-            "\n" +
-            "\tconst palette = [\n" +
+    // Shared with jfr2heatmap, which draws Flame Graphs of the selected time range
+    static final String PALETTE = "\tconst palette = [\n" +
             "\t\t[0x50e150, 30, 30, 30],\n" +
             "\t\t[0x50bebe, 30, 30, 30],\n" +
             "\t\t[0xe17d00, 30, 30,  0],\n" +
@@ -276,12 +645,11 @@ public class FlameGraph {
             "\t\tconst v = Math.random();\n" +
             "\t\treturn '#' + (p[0] + ((p[1] * v) << 16 | (p[2] * v) << 8 | (p[3] * v))).toString(16);\n" +
             "\t}\n" +
-            "\n" +
-            "\tfunction f(level, left, width, type, title) {\n" +
-            "\t\tlevels[level].push({left: left, width: width, color: getColor(palette[type]), title: title});\n" +
-            "\t}\n" +
-            "\n" +
-            "\tfunction samples(n) {\n" +
+            "\n";
+
+    // Draws levels[] on the canvas and handles mouse, reverse and search events. The page defines
+    // levels, canvas, canvasWidth, canvasHeight and the elements referenced below
+    static final String RENDERER = "\tfunction samples(n) {\n" +
             "\t\treturn n === 1 ? '1 sample' : n.toString().replace(/\\B(?=(\\d{3})+(?!\\d))/g, ',') + ' samples';\n" +
             "\t}\n" +
             "\n" +
@@ -393,7 +761,7 @@ public class FlameGraph {
             "\t\t\t\thl.style.top = ((reverse ? h * 16 : canvasHeight - (h + 1) * 16) + canvas.offsetTop) + 'px';\n" +
             "\t\t\t\thl.firstChild.textContent = f.title;\n" +
             "\t\t\t\thl.style.display = 'block';\n" +
-            "\t\t\t\tcanvas.title = f.title + '\\n(' + samples(f.width) + ', ' + pct(f.width, levels[0][0].width) + '%)';\n" +
+            "\t\t\t\tcanvas.title = f.title + '\\n(' + samples(f.width) + ', ' + pct(f.width, levels[0][0].width) + '%' + (f.delta === undefined ? '' : ', ' + (f.delta > 0 ? '+' : '') + f.delta + '%') + ')';\n" +
             "\t\t\t\tcanvas.style.cursor = 'pointer';\n" +
             "\t\t\t\tcanvas.onclick = function() {\n" +
             "\t\t\t\t\tif (f != root) {\n" +
@@ -438,6 +806,100 @@ public class FlameGraph {
             "\t\t}\n" +
             "\t}\n";
 
+    private static final String HEADER = "<!DOCTYPE html>\n" +
+            "<html lang='en'>\n" +
+            "<head>\n" +
+            "<meta charset='utf-8'>\n" +
+            "<style>\n" +
+            "\tbody {margin: 0; padding: 10px; background-color: #ffffff}\n" +
+            "\th1 {margin: 5px 0 0 0; font-size: 18px; font-weight: normal; text-align: center}\n" +
+            "\theader {margin: -24px 0 5px 0; line-height: 24px}\n" +
+            "\tbutton {font: 12px sans-serif; cursor: pointer}\n" +
+            "\tp {margin: 5px 0 5px 0}\n" +
+            "\ta {color: #0366d6}\n" +
+            "\t#hl {position: absolute; display: none; overflow: hidden; white-space: nowrap; pointer-events: none; background-color: #ffffe0; outline: 1px solid #ffc000; height: 15px}\n" +
+            "\t#hl span {padding: 0 3px 0 3px}\n" +
+            "\t#status {overflow: hidden; white-space: nowrap}\n" +
+            "\t#match {overflow: hidden; white-space: nowrap; display: none; float: right; text-align: right}\n" +
+            "\t#reset {cursor: pointer}\n" +
+            "</style>\n" +
+            "</head>\n" +
+            "<body style='font: 12px Verdana, sans-serif'>\n" +
+            "<h1>${title}</h1>\n" +
+            "<header style='text-align: left'><button id='reverse' title='Reverse'>&#x1f53b;</button>&nbsp;&nbsp;<button id='search' title='Search'>&#x1f50d;</button></header>\n" +
+            "<header style='text-align: right'>Produced by <a href='https://github.com/jvm-profiling-tools/async-profiler'>async-profiler</a></header>\n" +
+            "<canvas id='canvas' style='width: 100%; height: ${height}px'></canvas>\n" +
+            "<div id='hl'><span></span></div>\n" +
+            "<p id='match'>Matched: <span id='matchval'></span> <span id='reset' title='Clear'>&#x274c;</span></p>\n" +
+            "<p id='status'>&nbsp;</p>\n" +
+            "<script>\n" +
+            "\t// Copyright 2020 Andrei Pangin\n" +
+            "\t// Licensed under the Apache License, Version 2.0.\n" +
+            "\t'use strict';\n" +
+            "\tvar root, rootLevel, px, pattern, maxDelta;\n" +
+            "\tvar reverse = ${reverse};\n" +
+            "\tconst levels = Array(${depth});\n" +
+            "\tfor (let h = 0; h < levels.length; h++) {\n" +
+            "\t\tlevels[h] = [];\n" +
+            "\t}\n" +
+            "\n" +
+            "\tconst canvas = document.getElementById('canvas');\n" +
+            "\tconst c = canvas.getContext('2d');\n" +
+            "\tconst hl = document.getElementById('hl');\n" +
+            "\tconst status = document.getElementById('status');\n" +
+            "\n" +
+            "\tconst canvasWidth = canvas.offsetWidth;\n" +
+            "\tconst canvasHeight = canvas.offsetHeight;\n" +
+            "\tcanvas.style.width = canvasWidth + 'px';\n" +
+            "\tcanvas.width = canvasWidth * (devicePixelRatio || 1);\n" +
+            "\tcanvas.height = canvasHeight * (devicePixelRatio || 1);\n" +
+            "\tif (devicePixelRatio) c.scale(devicePixelRatio, devicePixelRatio);\n" +
+            "\tc.font = document.body.style.font;\n" +
+            "\n" +
+            PALETTE +
+            "\tfunction getDiffColor(delta) {\n" +
+            "\t\tconst v = maxDelta > 0 ? Math.round(200 * Math.min(Math.abs(delta) / maxDelta, 1)) : 0;\n" +
+            "\t\treturn 'rgb(' + (delta > 0 ? [255, 255 - v, 255 - v] : [255 - v, 255 - v, 255]) + ')';\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction f(level, left, width, type, title, delta) {\n" +
+            "\t\tlevels[level].push({left: left, width: width, color: delta === undefined ? getColor(palette[type]) : getDiffColor(delta), title: title, delta: delta});\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction unpack(titles, data) {\n" +
+            "\t\tconst bytes = atob(data);\n" +
+            "\t\tconst levelEnd = [];\n" +
+            "\t\tlet pos = 0;\n" +
+            "\t\tlet level = -1;\n" +
+            "\n" +
+            "\t\tfunction next() {\n" +
+            "\t\t\tlet result = 0;\n" +
+            "\t\t\tlet b, mul = 1;\n" +
+            "\t\t\tdo {\n" +
+            "\t\t\t\tb = bytes.charCodeAt(pos++);\n" +
+            "\t\t\t\tresult += (b & 0x7f) * mul;\n" +
+            "\t\t\t\tmul *= 128;\n" +
+            "\t\t\t} while (b >= 0x80);\n" +
+            "\t\t\treturn result;\n" +
+            "\t\t}\n" +
+            "\n" +
+            "\t\twhile (pos < bytes.length) {\n" +
+            "\t\t\tlevel = level + 1 - next();\n" +
+            "\t\t\tconst left = (levelEnd[level] || 0) + next();\n" +
+            "\t\t\tconst width = next();\n" +
+            "\t\t\tconst title = next();\n" +
+            "\t\t\tlet delta;\n" +
+            "\t\t\tif (maxDelta !== undefined) {\n" +
+            "\t\t\t\tconst d = next();\n" +
+            "\t\t\t\tdelta = (d % 2 ? -(d + 1) / 2 : d / 2) / 1000;\n" +
+            "\t\t\t}\n" +
+            "\t\t\tf(level, left, width, title % 8, titles[Math.floor(title / 8)], delta);\n" +
+            "\t\t\tlevelEnd[level] = left + width;\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            RENDERER;
+
     private static final String FOOTER = "render();\n" +
             "</script></body></html>\n";
 }
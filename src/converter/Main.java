@@ -27,5 +27,7 @@ public class Main {
         System.out.println("  FlameGraph input.collapsed output.html");
         System.out.println("  jfr2flame  input.jfr       output.html");
         System.out.println("  jfr2nflx   input.jfr       output.nflx");
+        System.out.println("  jfr2pprof  input.jfr       output.pb.gz");
+        System.out.println("  jfr2heatmap input.jfr      output.html");
     }
 }
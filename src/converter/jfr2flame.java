@@ -14,21 +14,27 @@
  * limitations under the License.
  */
 
+import one.jfr.ChunkIndex;
 import one.jfr.ClassRef;
-import one.jfr.Dictionary;
+import one.jfr.EventFilter;
+import one.jfr.IntDictionary;
 import one.jfr.JfrReader;
 import one.jfr.MethodRef;
+import one.jfr.ParallelReader;
 import one.jfr.StackTrace;
 import one.jfr.event.AllocationSample;
 import one.jfr.event.ContendedLock;
 import one.jfr.event.Event;
-import one.jfr.event.EventAggregator;
+import one.jfr.event.EventCollector;
 import one.jfr.event.ExecutionSample;
+import one.jfr.event.PackedEventAggregator;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashSet;
+import java.util.List;
 
 /**
  * Converts .jfr output produced by async-profiler to HTML Flame Graph.
@@ -36,9 +42,16 @@ import java.util.HashSet;
 public class jfr2flame {
 
     private static final String[] FRAME_SUFFIX = {"_[j]", "_[j]", "_[i]", "", "", "_[k]"};
+    private static final long FOLLOW_POLL_INTERVAL = 1000;
 
     private final JfrReader jfr;
-    private final Dictionary<String> methodNames = new Dictionary<>();
+    private final IntDictionary frameIds = new IntDictionary();
+    private final IntDictionary classFrameIds = new IntDictionary();
+    private final IntDictionary threadFrameIds = new IntDictionary();
+
+    // Frame titles are assembled here in UTF-8 straight from the symbol table, without Strings
+    private byte[] title = new byte[256];
+    private int titleLength;
 
     public jfr2flame(JfrReader jfr) {
         this.jfr = jfr;
@@ -47,41 +60,72 @@ public class jfr2flame {
     public void convert(final FlameGraph fg, final boolean threads, final boolean total,
                         final boolean lines, final boolean bci,
                         final Class<? extends Event> eventClass) throws IOException {
-        EventAggregator agg = new EventAggregator(threads, total);
-        for (Event event; (event = jfr.readEvent(eventClass)) != null; ) {
-            agg.collect(event);
+        convert(fg, threads, total, lines, bci, false, eventClass);
+    }
+
+    public void convert(final FlameGraph fg, final boolean threads, final boolean total,
+                        final boolean lines, final boolean bci, final boolean parallel,
+                        final Class<? extends Event> eventClass) throws IOException {
+        PackedEventAggregator agg = new PackedEventAggregator(threads, total);
+        if (parallel) {
+            new ParallelReader(jfr).readEvents(eventClass, agg);
+        } else {
+            jfr.readEvents(eventClass, agg);
         }
+        addSamples(fg, agg, threads, total, lines, bci, eventClass);
+    }
 
+    // Rewrites the Flame Graph every time the profiler finishes a chunk of a live recording.
+    // The reader must be opened with JfrReader.FOLLOW
+    public void follow(final FlameGraph fg, final boolean threads, final boolean total,
+                       final boolean lines, final boolean bci,
+                       final Class<? extends Event> eventClass) throws IOException {
+        final PackedEventAggregator agg = new PackedEventAggregator(threads, total);
+        jfr.follow(eventClass, agg, FOLLOW_POLL_INTERVAL, new JfrReader.FollowListener() {
+            @Override
+            public boolean chunksRead(int count) throws IOException {
+                if (count > 0) {
+                    addSamples(fg, agg, threads, total, lines, bci, eventClass);
+                    agg.clear();
+                    fg.dump();
+                }
+                return true;
+            }
+        });
+    }
+
+    private void addSamples(final FlameGraph fg, PackedEventAggregator agg, final boolean threads, boolean total,
+                            final boolean lines, final boolean bci, Class<? extends Event> eventClass) {
         final double ticksToNanos = 1e9 / jfr.ticksPerSec;
         final boolean scale = total && eventClass == ContendedLock.class && ticksToNanos != 1.0;
 
         // Don't use lambda for faster startup
-        agg.forEach(new EventAggregator.Visitor() {
+        agg.forEach(new PackedEventAggregator.Visitor() {
             @Override
-            public void visit(Event event, long value) {
-                StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
+            public void visit(int kind, int stackTraceId, int tid, int classId, long value) {
+                StackTrace stackTrace = jfr.stackTraces.get(stackTraceId);
                 if (stackTrace != null) {
                     long[] methods = stackTrace.methods;
                     byte[] types = stackTrace.types;
                     int[] locations = stackTrace.locations;
-                    String classFrame = getClassFrame(event);
-                    String[] trace = new String[methods.length + (threads ? 1 : 0) + (classFrame != null ? 1 : 0)];
+                    int classFrame = getClassFrameId(fg, kind, classId);
+                    int[] trace = new int[methods.length + (threads ? 1 : 0) + (classFrame >= 0 ? 1 : 0)];
                     if (threads) {
-                        trace[0] = getThreadFrame(event.tid);
+                        trace[0] = getThreadFrameId(fg, tid);
                     }
                     int idx = trace.length;
-                    if (classFrame != null) {
+                    if (classFrame >= 0) {
                         trace[--idx] = classFrame;
                     }
                     for (int i = 0; i < methods.length; i++) {
-                        String methodName = getMethodName(methods[i]);
                         int location;
                         if (lines && (location = locations[i] >>> 16) != 0) {
-                            methodName += ":" + location;
+                            trace[--idx] = getFrameId(fg, methods[i], ':', location, types[i]);
                         } else if (bci && (location = locations[i] & 0xffff) != 0) {
-                            methodName += "@" + location;
+                            trace[--idx] = getFrameId(fg, methods[i], '@', location, types[i]);
+                        } else {
+                            trace[--idx] = getFrameId(fg, methods[i], types[i]);
                         }
-                        trace[--idx] = methodName + FRAME_SUFFIX[types[i]];
                     }
                     fg.addSample(trace, scale ? (long) (value * ticksToNanos) : value);
                 }
@@ -89,96 +133,241 @@ public class jfr2flame {
         });
     }
 
-    private String getThreadFrame(int tid) {
-        String threadName = jfr.threads.get(tid);
-        return threadName == null ? "[tid=" + tid + ']' : '[' + threadName + " tid=" + tid + ']';
+    private int getThreadFrameId(FlameGraph fg, int tid) {
+        long key = tid & 0xffffffffL | 1L << 32;
+        int id = threadFrameIds.get(key, -1);
+        if (id < 0) {
+            String threadName = jfr.threads.get(tid);
+            String title = threadName == null ? "[tid=" + tid + ']' : '[' + threadName + " tid=" + tid + ']';
+            threadFrameIds.put(key, id = fg.frameId(title));
+        }
+        return id;
     }
 
-    private String getClassFrame(Event event) {
-        long classId;
+    // Returns -1 if the event has no class frame
+    private int getClassFrameId(FlameGraph fg, int kind, long classId) {
         String suffix;
-        if (event instanceof AllocationSample) {
-            classId = ((AllocationSample) event).classId;
-            suffix = ((AllocationSample) event).tlabSize == 0 ? "_[k]" : "_[i]";
-        } else if (event instanceof ContendedLock) {
-            classId = ((ContendedLock) event).classId;
-            suffix = "_[i]";
-        } else {
-            return null;
+        switch (kind) {
+            case EventCollector.ALLOCATION_IN_NEW_TLAB:
+            case EventCollector.CONTENDED_LOCK:
+                suffix = "_[i]";
+                break;
+            case EventCollector.ALLOCATION_OUTSIDE_TLAB:
+                suffix = "_[k]";
+                break;
+            default:
+                return -1;
+        }
+
+        long key = classId * 2 + (kind == EventCollector.ALLOCATION_OUTSIDE_TLAB ? 1 : 0) + 1;
+        int id = classFrameIds.get(key, -1);
+        if (id < 0) {
+            titleLength = 0;
+            ClassRef cls = jfr.classes.get(classId);
+            if (cls == null) {
+                append("null");
+            } else {
+                appendClassName(cls.name);
+                append(suffix);
+            }
+            classFrameIds.put(key, id = fg.frameId(title, 0, titleLength));
         }
+        return id;
+    }
 
-        ClassRef cls = jfr.classes.get(classId);
-        if (cls == null) {
-            return "null";
+    // Frame id of a method without location, cached per method and frame type
+    private int getFrameId(FlameGraph fg, long methodId, byte type) {
+        long key = methodId * FRAME_SUFFIX.length + type + 1;
+        int id = frameIds.get(key, -1);
+        if (id < 0) {
+            titleLength = 0;
+            appendMethodName(methodId);
+            append(FRAME_SUFFIX[type]);
+            frameIds.put(key, id = fg.frameId(title, 0, titleLength));
         }
-        byte[] className = jfr.symbols.get(cls.name);
+        return id;
+    }
 
-        int arrayDepth = 0;
-        while (className[arrayDepth] == '[') {
-            arrayDepth++;
+    // Frame id of a method with a line number or bytecode index
+    private int getFrameId(FlameGraph fg, long methodId, char separator, int location, byte type) {
+        titleLength = 0;
+        appendMethodName(methodId);
+        append(separator);
+        appendInt(location);
+        append(FRAME_SUFFIX[type]);
+        return fg.frameId(title, 0, titleLength);
+    }
+
+    private void appendMethodName(long methodId) {
+        MethodRef method = jfr.methods.get(methodId);
+        if (method == null) {
+            append("unknown");
+            return;
         }
 
-        StringBuilder sb = new StringBuilder(toJavaClassName(className, arrayDepth));
-        while (arrayDepth-- > 0) {
-            sb.append("[]");
+        ClassRef cls = jfr.classes.get(method.cls);
+        if (jfr.symbols.length(cls.name) > 0) {
+            appendSymbol(cls.name);
+            append('.');
         }
-        return sb.append(suffix).toString();
+        appendSymbol(method.name);
     }
 
-    private String toJavaClassName(byte[] symbol, int start) {
-        switch (symbol[start]) {
+    // Converts a JVM class name like [[Ljava/lang/String; to java.lang.String[][]
+    private void appendClassName(long name) {
+        int length = jfr.symbols.length(name);
+        int arrayDepth = 0;
+        while (jfr.symbols.byteAt(name, arrayDepth) == '[') {
+            arrayDepth++;
+        }
+
+        switch (jfr.symbols.byteAt(name, arrayDepth)) {
             case 'B':
-                return "byte";
+                append("byte");
+                break;
             case 'C':
-                return "char";
+                append("char");
+                break;
             case 'S':
-                return "short";
+                append("short");
+                break;
             case 'I':
-                return "int";
+                append("int");
+                break;
             case 'J':
-                return "long";
+                append("long");
+                break;
             case 'Z':
-                return "boolean";
+                append("boolean");
+                break;
             case 'F':
-                return "float";
+                append("float");
+                break;
             case 'D':
-                return "double";
+                append("double");
+                break;
             case 'L':
-                return new String(symbol, start + 1, symbol.length - start - 2, StandardCharsets.UTF_8).replace('/', '.');
+                appendSymbol(name, arrayDepth + 1, length - 1);
+                break;
             default:
-                return new String(symbol, start, symbol.length - start, StandardCharsets.UTF_8).replace('/', '.');
+                appendSymbol(name, arrayDepth, length);
+        }
+
+        while (arrayDepth-- > 0) {
+            append("[]");
         }
     }
 
-    private String getMethodName(long methodId) {
-        String result = methodNames.get(methodId);
-        if (result != null) {
-            return result;
+    private void appendSymbol(long id) {
+        int length = jfr.symbols.length(id);
+        if (length > 0) {
+            ensureTitleCapacity(length);
+            titleLength += jfr.symbols.copy(id, title, titleLength);
         }
+    }
 
-        MethodRef method = jfr.methods.get(methodId);
-        if (method == null) {
-            result = "unknown";
-        } else {
-            ClassRef cls = jfr.classes.get(method.cls);
-            byte[] className = jfr.symbols.get(cls.name);
-            byte[] methodName = jfr.symbols.get(method.name);
+    // Appends a part of the symbol with slashes replaced by dots
+    private void appendSymbol(long id, int from, int to) {
+        ensureTitleCapacity(to - from);
+        for (int i = from; i < to; i++) {
+            byte b = jfr.symbols.byteAt(id, i);
+            title[titleLength++] = b == '/' ? (byte) '.' : b;
+        }
+    }
 
-            if (className == null || className.length == 0) {
-                result = new String(methodName, StandardCharsets.UTF_8);
-            } else {
-                String classStr = new String(className, StandardCharsets.UTF_8);
-                String methodStr = new String(methodName, StandardCharsets.UTF_8);
-                result = classStr + '.' + methodStr;
-            }
+    // Only ASCII strings are appended this way
+    private void append(String s) {
+        ensureTitleCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            title[titleLength++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void append(char c) {
+        ensureTitleCapacity(1);
+        title[titleLength++] = (byte) c;
+    }
+
+    private void appendInt(int n) {
+        ensureTitleCapacity(10);
+        int start = titleLength;
+        do {
+            title[titleLength++] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n > 0);
+        for (int i = start, j = titleLength - 1; i < j; i++, j--) {
+            byte b = title[i];
+            title[i] = title[j];
+            title[j] = b;
+        }
+    }
+
+    private void ensureTitleCapacity(int length) {
+        if (titleLength + length > title.length) {
+            title = Arrays.copyOf(title, Math.max(title.length * 2, titleLength + length));
+        }
+    }
+
+    // Accepts time of day (HH:mm[:ss]) on the date of the recording start,
+    // or an offset with an optional unit (ms, s, m, h) from the start, or from the end if negative
+    private static long parseTime(String time, ChunkIndex index) {
+        if (time.indexOf(':') > 0) {
+            String[] hms = time.split(":");
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(index.startNanos() / 1000000);
+            cal.set(Calendar.HOUR_OF_DAY, Integer.parseInt(hms[0]));
+            cal.set(Calendar.MINUTE, Integer.parseInt(hms[1]));
+            cal.set(Calendar.SECOND, hms.length > 2 ? Integer.parseInt(hms[2]) : 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            return cal.getTimeInMillis() * 1000000;
+        }
+
+        long multiplier = 1000000000;
+        if (time.endsWith("ms")) {
+            multiplier = 1000000;
+            time = time.substring(0, time.length() - 2);
+        } else if (time.endsWith("s")) {
+            time = time.substring(0, time.length() - 1);
+        } else if (time.endsWith("m")) {
+            multiplier = 60 * 1000000000L;
+            time = time.substring(0, time.length() - 1);
+        } else if (time.endsWith("h")) {
+            multiplier = 3600 * 1000000000L;
+            time = time.substring(0, time.length() - 1);
         }
 
-        methodNames.put(methodId, result);
+        long offset = (long) (Double.parseDouble(time) * multiplier);
+        return time.startsWith("-") ? index.endNanos() + offset : index.startNanos() + offset;
+    }
+
+    private static int[] parseThreads(String list) {
+        String[] tids = list.split(",");
+        int[] result = new int[tids.length];
+        for (int i = 0; i < tids.length; i++) {
+            result[i] = Integer.parseInt(tids[i].trim());
+        }
         return result;
     }
 
     public static void main(String[] args) throws Exception {
-        FlameGraph fg = new FlameGraph(args);
+        // Options with values are handled here, the rest goes to FlameGraph
+        String from = null;
+        String to = null;
+        String threadsInclude = null;
+        List<String> fgArgs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--from") && i + 1 < args.length) {
+                from = args[++i];
+            } else if (args[i].equals("--to") && i + 1 < args.length) {
+                to = args[++i];
+            } else if (args[i].equals("--threads-include") && i + 1 < args.length) {
+                threadsInclude = args[++i];
+            } else {
+                fgArgs.add(args[i]);
+            }
+        }
+
+        FlameGraph fg = new FlameGraph(fgArgs.toArray(new String[0]));
         if (fg.input == null) {
             System.out.println("Usage: java " + jfr2flame.class.getName() + " [options] input.jfr [output.html]");
             System.out.println();
@@ -189,14 +378,27 @@ public class jfr2flame {
             System.out.println("  --total    Accumulate the total value (time, bytes, etc.)");
             System.out.println("  --lines    Show line numbers");
             System.out.println("  --bci      Show bytecode indices");
+            System.out.println("  --mmap     Read memory-mapped file");
+            System.out.println("  --lazy     Decode constant pools on demand");
+            System.out.println("  --parallel Parse chunks in parallel");
+            System.out.println("  --follow   Follow a live recording: update the output as chunks are finished");
+            System.out.println("  --from TIME, --to TIME");
+            System.out.println("             Time range: HH:mm[:ss] or offset from the start (negative from the end), e.g. 90s");
+            System.out.println("  --threads-include TID[,TID...]");
+            System.out.println("             Only include samples of the given threads");
+            System.out.println("  --diff BASELINE.jfr");
+            System.out.println("             Differential Flame Graph: color frames by the change against the baseline");
             System.exit(1);
         }
 
-        HashSet<String> options = new HashSet<>(Arrays.asList(args));
+        HashSet<String> options = new HashSet<>(fgArgs);
         boolean threads = options.contains("--threads");
         boolean total = options.contains("--total");
         boolean lines = options.contains("--lines");
         boolean bci = options.contains("--bci");
+        boolean parallel = options.contains("--parallel");
+        boolean follow = options.contains("--follow");
+        int flags = (options.contains("--mmap") ? JfrReader.MMAP : 0) | (options.contains("--lazy") ? JfrReader.LAZY : 0);
 
         Class<? extends Event> eventClass;
         if (options.contains("--alloc")) {
@@ -207,8 +409,46 @@ public class jfr2flame {
             eventClass = ExecutionSample.class;
         }
 
-        try (JfrReader jfr = new JfrReader(fg.input)) {
-            new jfr2flame(jfr).convert(fg, threads, total, lines, bci, eventClass);
+        // A live recording has neither a known time range nor a final chunk index
+        if (follow && (from != null || to != null)) {
+            System.err.println("--from and --to cannot be used with --follow");
+            System.exit(1);
+        }
+
+        // A chunk index allows to skip chunks outside the requested range without reading them
+        ChunkIndex index = null;
+        EventFilter filter = null;
+        if (follow && threadsInclude != null) {
+            filter = new EventFilter(Long.MIN_VALUE, Long.MAX_VALUE, parseThreads(threadsInclude));
+        } else if (from != null || to != null || threadsInclude != null) {
+            index = ChunkIndex.forFile(fg.input);
+            filter = new EventFilter(
+                    from == null ? Long.MIN_VALUE : parseTime(from, index),
+                    to == null ? Long.MAX_VALUE : parseTime(to, index),
+                    threadsInclude == null ? null : parseThreads(threadsInclude));
+            // Only a fraction of stack traces is usually needed for a subset of events
+            flags |= JfrReader.LAZY;
+        }
+
+        // Time range and thread filters apply to the main recording only
+        if (fg.diff != null) {
+            fg.setBaseline(true);
+            try (JfrReader jfr = new JfrReader(fg.diff, flags & ~JfrReader.LAZY)) {
+                new jfr2flame(jfr).convert(fg, threads, total, lines, bci, parallel, eventClass);
+            }
+            fg.setBaseline(false);
+        }
+
+        // follow() runs until the process is stopped
+        if (follow) {
+            try (JfrReader jfr = new JfrReader(fg.input, flags | JfrReader.FOLLOW, filter, null)) {
+                new jfr2flame(jfr).follow(fg, threads, total, lines, bci, eventClass);
+            }
+            return;
+        }
+
+        try (JfrReader jfr = new JfrReader(fg.input, flags, filter, index)) {
+            new jfr2flame(jfr).convert(fg, threads, total, lines, bci, parallel, eventClass);
         }
 
         fg.dump();
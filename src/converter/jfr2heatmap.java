@@ -0,0 +1,562 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.ChunkHeader;
+import one.jfr.ClassRef;
+import one.jfr.Dictionary;
+import one.jfr.IntDictionary;
+import one.jfr.JfrReader;
+import one.jfr.MethodRef;
+import one.jfr.StackTrace;
+import one.jfr.event.EventCollector;
+import one.jfr.event.ExecutionSample;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts .jfr output produced by async-profiler to an HTML heatmap of execution samples.
+ * Every cell of the heatmap is a time bucket; selecting a range of cells
+ * shows the Flame Graph of samples within that range.
+ *
+ * Samples are counted per (bucket, thread group, stack trace) in a single pass over the recording.
+ * Once the table grows to MAX_ENTRIES, its content is written to the output and the table is cleared,
+ * so memory does not depend on the recording length. The same bucket may then appear
+ * in the output more than once, and the page sums such entries up.
+ */
+public class jfr2heatmap implements EventCollector {
+
+    private static final String[] FRAME_SUFFIX = {"_[j]", "_[j]", "_[i]", "", "", "_[k]"};
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_ENTRIES = 1 << 20;
+
+    private final JfrReader jfr;
+    private final long bucketMillis;
+    private final long startNanos;
+    private final double bucketNanos;
+    private PrintStream out;
+
+    // Open-addressing table (stack trace, thread group, bucket) -> number of samples
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] buckets = new int[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int size;
+    private int maxBucket;
+
+    // Threads are grouped by name with the trailing number stripped, e.g. pool-1-thread-*
+    private final Map<String, Integer> groupIds = new HashMap<>();
+    private final List<String> groups = new ArrayList<>();
+    private final IntDictionary threadGroups = new IntDictionary();
+
+    private final Dictionary<Boolean> sampledStackTraces = new Dictionary<>();
+    private final IntDictionary frameIds = new IntDictionary();
+    private final List<String> frameTitles = new ArrayList<>();
+
+    public jfr2heatmap(JfrReader jfr, long bucketMillis) {
+        this(jfr, bucketMillis, jfr.startNanos);
+    }
+
+    // Chunks of a concatenated recording may go out of time order, so the earliest chunk
+    // must be known in advance: buckets are numbered from startNanos
+    public jfr2heatmap(JfrReader jfr, long bucketMillis, long startNanos) {
+        this.jfr = jfr;
+        this.bucketMillis = bucketMillis;
+        this.startNanos = startNanos;
+        this.bucketNanos = bucketMillis * 1e6;
+    }
+
+    public void convert(String title, PrintStream out) throws IOException {
+        this.out = out;
+        out.print(HEADER.replace("${bucket}", Long.toString(bucketMillis)).replace("${title}", escapeHtml(title)));
+
+        jfr.readEvents(ExecutionSample.class, this);
+        flush();
+
+        printStackTraces();
+        printTitles();
+        printGroups();
+        out.print("init(" + (maxBucket + 1) + ");\n</script></body></html>\n");
+    }
+
+    @Override
+    public void collect(int kind, long time, int tid, int stackTraceId, int extra, long value) {
+        // Ticks count from the start of the chunk, which may belong to another recording
+        double nanos = jfr.chunkStartNanos - startNanos + (time - jfr.chunkStartTicks) * 1e9 / jfr.ticksPerSec;
+        int bucket = (int) Math.max(0, Math.min(nanos / bucketNanos, Integer.MAX_VALUE - 1));
+        long key = (long) stackTraceId << 32 | getThreadGroup(tid);
+
+        int mask = keys.length - 1;
+        int i = hash(key, bucket) & mask;
+        while (buckets[i] != 0) {
+            if (keys[i] == key && buckets[i] == bucket + 1) {
+                counts[i]++;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        buckets[i] = bucket + 1;
+        counts[i] = 1;
+        maxBucket = Math.max(maxBucket, bucket);
+        if (stackTraceId != 0) {
+            sampledStackTraces.put(stackTraceId, Boolean.TRUE);
+        }
+
+        if (++size >= MAX_ENTRIES) {
+            flush();
+        } else if (size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    // Writes all collected entries as d(bucket, [group, stackTraceId, count, ...]) and clears the table
+    private void flush() {
+        long[] order = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (buckets[i] != 0) {
+                order[n++] = (long) (buckets[i] - 1) << 32 | i;
+            }
+        }
+        Arrays.sort(order);
+
+        StringBuilder sb = new StringBuilder();
+        for (int start = 0; start < n; ) {
+            int bucket = (int) (order[start] >>> 32);
+            sb.setLength(0);
+            sb.append("d(").append(bucket).append(",[");
+
+            int end = start;
+            for (; end < n && (int) (order[end] >>> 32) == bucket; end++) {
+                int i = (int) order[end];
+                if (end > start) sb.append(',');
+                sb.append((int) keys[i]).append(',').append((int) (keys[i] >>> 32)).append(',').append(counts[i]);
+            }
+
+            out.println(sb.append("])"));
+            start = end;
+        }
+
+        Arrays.fill(buckets, 0);
+        size = 0;
+    }
+
+    private void printStackTraces() {
+        final StringBuilder sb = new StringBuilder();
+
+        // Don't use lambda for faster startup
+        sampledStackTraces.forEach(new Dictionary.Visitor<Boolean>() {
+            @Override
+            public void visit(long stackTraceId, Boolean value) {
+                StackTrace stackTrace = jfr.stackTraces.get(stackTraceId);
+                if (stackTrace != null) {
+                    long[] methods = stackTrace.methods;
+                    byte[] types = stackTrace.types;
+                    sb.setLength(0);
+                    sb.append("s(").append(stackTraceId).append(",[");
+                    for (int i = methods.length; --i >= 0; ) {
+                        sb.append(getFrameId(methods[i], types[i]));
+                        if (i > 0) sb.append(',');
+                    }
+                    out.println(sb.append("])"));
+                }
+            }
+        });
+    }
+
+    private void printTitles() {
+        StringBuilder titles = new StringBuilder("titles = [");
+        StringBuilder types = new StringBuilder("types = [");
+        for (int i = 0; i < frameTitles.size(); i++) {
+            String title = frameTitles.get(i);
+            if (i > 0) {
+                titles.append(',');
+                types.append(',');
+            }
+            quote(titles, FlameGraph.stripSuffix(title));
+            types.append(FlameGraph.frameType(title));
+        }
+        out.println(titles.append("];"));
+        out.println(types.append("];"));
+    }
+
+    private void printGroups() {
+        StringBuilder sb = new StringBuilder("groups = [");
+        for (int i = 0; i < groups.size(); i++) {
+            if (i > 0) sb.append(',');
+            quote(sb, groups.get(i));
+        }
+        out.println(sb.append("];"));
+    }
+
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('\'').append(s.replace("\\", "\\\\").replace("'", "\\'")).append('\'');
+    }
+
+    private static String escapeHtml(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private int getThreadGroup(int tid) {
+        int group = threadGroups.get(tid, -1);
+        if (group < 0) {
+            String name = jfr.threads.get(tid);
+            if (name == null) {
+                name = "[unknown]";
+            } else {
+                int end = name.length();
+                while (end > 0 && Character.isDigit(name.charAt(end - 1))) {
+                    end--;
+                }
+                if (end < name.length()) {
+                    name = name.substring(0, end) + '*';
+                }
+            }
+
+            Integer id = groupIds.get(name);
+            if (id == null) {
+                groupIds.put(name, id = groups.size());
+                groups.add(name);
+            }
+            threadGroups.put(tid, group = id);
+        }
+        return group;
+    }
+
+    private int getFrameId(long methodId, byte type) {
+        long key = methodId * FRAME_SUFFIX.length + type + 1;
+        int id = frameIds.get(key, -1);
+        if (id < 0) {
+            frameIds.put(key, id = frameTitles.size());
+            frameTitles.add(getMethodName(methodId) + FRAME_SUFFIX[type]);
+        }
+        return id;
+    }
+
+    private String getMethodName(long methodId) {
+        MethodRef method = jfr.methods.get(methodId);
+        if (method == null) {
+            return "unknown";
+        }
+
+        ClassRef cls = jfr.classes.get(method.cls);
+        byte[] className = jfr.symbols.get(cls.name);
+        byte[] methodName = jfr.symbols.get(method.name);
+
+        if (className == null || className.length == 0) {
+            return new String(methodName, StandardCharsets.UTF_8);
+        } else {
+            return new String(className, StandardCharsets.UTF_8) + '.' + new String(methodName, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int hash(long key, int bucket) {
+        long h = (key ^ bucket * 31L) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private void resize(int newCapacity) {
+        long[] newKeys = new long[newCapacity];
+        int[] newBuckets = new int[newCapacity];
+        int[] newCounts = new int[newCapacity];
+        int mask = newCapacity - 1;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (buckets[i] != 0) {
+                for (int j = hash(keys[i], buckets[i] - 1) & mask; ; j = (j + 1) & mask) {
+                    if (newBuckets[j] == 0) {
+                        newKeys[j] = keys[i];
+                        newBuckets[j] = buckets[i];
+                        newCounts[j] = counts[i];
+                        break;
+                    }
+                }
+            }
+        }
+
+        keys = newKeys;
+        buckets = newBuckets;
+        counts = newCounts;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long bucketMillis = 20;
+        String title = "Heatmap";
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--bucket") && i + 1 < args.length) {
+                bucketMillis = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--title") && i + 1 < args.length) {
+                title = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+
+        if (files.size() < 2 || bucketMillis <= 0) {
+            System.out.println("Usage: java " + jfr2heatmap.class.getName() + " [options] input.jfr output.html");
+            System.out.println();
+            System.out.println("options:");
+            System.out.println("  --bucket MS    Duration of a heatmap cell in milliseconds, default 20");
+            System.out.println("  --title TEXT   Page title");
+            System.exit(1);
+        }
+
+        File dst = new File(files.get(1));
+        if (dst.isDirectory()) {
+            dst = new File(dst, new File(files.get(0)).getName().replace(".jfr", ".html"));
+        }
+
+        long startNanos = Long.MAX_VALUE;
+        try (FileChannel ch = FileChannel.open(Paths.get(files.get(0)), StandardOpenOption.READ)) {
+            for (ChunkHeader header : ChunkHeader.readAll(ch)) {
+                startNanos = Math.min(startNanos, header.startNanos);
+            }
+        }
+
+        try (JfrReader jfr = new JfrReader(files.get(0));
+             PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(dst), 32768), false, "UTF-8")) {
+            new jfr2heatmap(jfr, bucketMillis, Math.min(startNanos, jfr.startNanos)).convert(title, out);
+        }
+    }
+
+    private static final String HEADER = "<!DOCTYPE html>\n" +
+            "<html lang='en'>\n" +
+            "<head>\n" +
+            "<meta charset='utf-8'>\n" +
+            "<style>\n" +
+            "\tbody {margin: 0; padding: 10px; background-color: #ffffff}\n" +
+            "\th1 {margin: 5px 0 0 0; font-size: 18px; font-weight: normal; text-align: center}\n" +
+            "\theader {margin: 5px 0 5px 0; line-height: 24px}\n" +
+            "\tselect, button {font: 12px sans-serif}\n" +
+            "\tbutton {cursor: pointer}\n" +
+            "\tp {margin: 5px 0 5px 0}\n" +
+            "\ta {color: #0366d6}\n" +
+            "\t#heatmap-box {overflow-x: auto}\n" +
+            "\t#hl {position: absolute; display: none; overflow: hidden; white-space: nowrap; pointer-events: none; background-color: #ffffe0; outline: 1px solid #ffc000; height: 15px}\n" +
+            "\t#hl span {padding: 0 3px 0 3px}\n" +
+            "\t#status {overflow: hidden; white-space: nowrap}\n" +
+            "\t#match {overflow: hidden; white-space: nowrap; display: none; float: right; text-align: right}\n" +
+            "\t#reset {cursor: pointer}\n" +
+            "</style>\n" +
+            "</head>\n" +
+            "<body style='font: 12px Verdana, sans-serif'>\n" +
+            "<h1>${title}</h1>\n" +
+            "<header>Threads: <select id='group'><option value='-1'>All</option></select>&nbsp;&nbsp;<button id='reverse' title='Reverse'>&#x1f53b;</button>&nbsp;&nbsp;<button id='search' title='Search'>&#x1f50d;</button>&nbsp;&nbsp;<span id='range'>Click a cell to show the Flame Graph of a time bucket, shift-click another cell to select a range</span></header>\n" +
+            "<div id='heatmap-box'><canvas id='heatmap'></canvas></div>\n" +
+            "<p id='match'>Matched: <span id='matchval'></span> <span id='reset' title='Clear'>&#x274c;</span></p>\n" +
+            "<p id='status'>&nbsp;</p>\n" +
+            "<canvas id='canvas' style='width: 100%; height: 0'></canvas>\n" +
+            "<div id='hl'><span></span></div>\n" +
+            "<script>\n" +
+            "\t// Copyright 2021 Andrei Pangin\n" +
+            "\t// Licensed under the Apache License, Version 2.0.\n" +
+            "\t'use strict';\n" +
+            "\tconst bucketMs = ${bucket};\n" +
+            "\tconst rows = Math.ceil(1000 / bucketMs);\n" +
+            "\tconst cellWidth = 8;\n" +
+            "\tconst cellHeight = Math.max(2, Math.floor(300 / rows));\n" +
+            "\tconst data = [];\n" +
+            "\tconst stacks = {};\n" +
+            "\tvar titles, types, groups, counts, maxCount, first = -1, last = -1;\n" +
+            "\tvar root, rootLevel, px, pattern, reverse = false;\n" +
+            "\tvar levels = [[{left: 0, width: 0, title: 'all'}]], canvasHeight = 0;\n" +
+            "\n" +
+            "\tfunction d(bucket, samples) {\n" +
+            "\t\tdata.push({bucket: bucket, samples: samples});\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction s(id, frames) {\n" +
+            "\t\tstacks[id] = frames;\n" +
+            "\t}\n" +
+            "\n" +
+            "\tconst heatmap = document.getElementById('heatmap');\n" +
+            "\tconst hc = heatmap.getContext('2d');\n" +
+            "\tconst canvas = document.getElementById('canvas');\n" +
+            "\tconst c = canvas.getContext('2d');\n" +
+            "\tconst hl = document.getElementById('hl');\n" +
+            "\tconst status = document.getElementById('status');\n" +
+            "\tconst groupSelect = document.getElementById('group');\n" +
+            "\tconst range = document.getElementById('range');\n" +
+            "\tconst canvasWidth = canvas.offsetWidth;\n" +
+            "\tcanvas.style.width = canvasWidth + 'px';\n" +
+            "\n" +
+            FlameGraph.PALETTE +
+            "\tfunction formatTime(bucket) {\n" +
+            "\t\treturn (bucket * bucketMs / 1000).toFixed(3) + ' s';\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction init(bucketCount) {\n" +
+            "\t\tgroups.forEach(function(name, i) {\n" +
+            "\t\t\tconst option = document.createElement('option');\n" +
+            "\t\t\toption.value = i;\n" +
+            "\t\t\toption.textContent = name;\n" +
+            "\t\t\tgroupSelect.appendChild(option);\n" +
+            "\t\t});\n" +
+            "\n" +
+            "\t\tcounts = new Array(bucketCount);\n" +
+            "\t\theatmap.width = Math.ceil(bucketCount / rows) * cellWidth;\n" +
+            "\t\theatmap.height = rows * cellHeight;\n" +
+            "\t\tupdateCounts();\n" +
+            "\t\tdrawHeatmap();\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction updateCounts() {\n" +
+            "\t\tconst group = +groupSelect.value;\n" +
+            "\t\tcounts.fill(0);\n" +
+            "\t\tdata.forEach(function(d) {\n" +
+            "\t\t\tconst samples = d.samples;\n" +
+            "\t\t\tfor (let i = 0; i < samples.length; i += 3) {\n" +
+            "\t\t\t\tif (group < 0 || samples[i] === group) {\n" +
+            "\t\t\t\t\tcounts[d.bucket] += samples[i + 2];\n" +
+            "\t\t\t\t}\n" +
+            "\t\t\t}\n" +
+            "\t\t});\n" +
+            "\n" +
+            "\t\tmaxCount = 0;\n" +
+            "\t\tfor (let b = 0; b < counts.length; b++) {\n" +
+            "\t\t\tmaxCount = Math.max(maxCount, counts[b]);\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction drawHeatmap() {\n" +
+            "\t\tconst lo = Math.min(first, last);\n" +
+            "\t\tconst hi = Math.max(first, last);\n" +
+            "\t\thc.fillStyle = '#ffffff';\n" +
+            "\t\thc.fillRect(0, 0, heatmap.width, heatmap.height);\n" +
+            "\n" +
+            "\t\tfor (let b = 0; b < counts.length; b++) {\n" +
+            "\t\t\tconst x = Math.floor(b / rows) * cellWidth;\n" +
+            "\t\t\tconst y = (b % rows) * cellHeight;\n" +
+            "\t\t\tconst v = counts[b] / maxCount;\n" +
+            "\t\t\thc.fillStyle = v > 0 ? 'rgb(255,' + Math.round(240 - 180 * v) + ',' + Math.round(220 - 220 * v) + ')' : '#f0f0f0';\n" +
+            "\t\t\thc.fillRect(x, y, cellWidth - 1, cellHeight - 1);\n" +
+            "\t\t\tif (b >= lo && b <= hi) {\n" +
+            "\t\t\t\thc.fillStyle = 'rgba(0, 0, 255, 0.4)';\n" +
+            "\t\t\t\thc.fillRect(x, y, cellWidth - 1, cellHeight - 1);\n" +
+            "\t\t\t}\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction bucketAt(x, y) {\n" +
+            "\t\tconst row = Math.floor(y / cellHeight);\n" +
+            "\t\tconst b = Math.floor(x / cellWidth) * rows + row;\n" +
+            "\t\treturn row < rows && b < counts.length ? b : -1;\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction renderRange() {\n" +
+            "\t\tconst lo = Math.min(first, last);\n" +
+            "\t\tconst hi = Math.max(first, last);\n" +
+            "\t\tconst group = +groupSelect.value;\n" +
+            "\t\tconst tree = {total: 0, children: {}};\n" +
+            "\n" +
+            "\t\tdata.forEach(function(d) {\n" +
+            "\t\t\tif (d.bucket >= lo && d.bucket <= hi) {\n" +
+            "\t\t\t\tconst samples = d.samples;\n" +
+            "\t\t\t\tfor (let i = 0; i < samples.length; i += 3) {\n" +
+            "\t\t\t\t\tconst frames = stacks[samples[i + 1]];\n" +
+            "\t\t\t\t\tif (frames && (group < 0 || samples[i] === group)) {\n" +
+            "\t\t\t\t\t\tconst n = samples[i + 2];\n" +
+            "\t\t\t\t\t\tlet node = tree;\n" +
+            "\t\t\t\t\t\tnode.total += n;\n" +
+            "\t\t\t\t\t\tfor (let j = 0; j < frames.length; j++) {\n" +
+            "\t\t\t\t\t\t\tconst f = frames[j];\n" +
+            "\t\t\t\t\t\t\tnode = node.children[f] || (node.children[f] = {frame: f, total: 0, children: {}});\n" +
+            "\t\t\t\t\t\t\tnode.total += n;\n" +
+            "\t\t\t\t\t\t}\n" +
+            "\t\t\t\t\t}\n" +
+            "\t\t\t\t}\n" +
+            "\t\t\t}\n" +
+            "\t\t});\n" +
+            "\n" +
+            "\t\trange.textContent = formatTime(lo) + ' - ' + formatTime(hi + 1) + ': ' + samples(tree.total);\n" +
+            "\t\tlevels = [];\n" +
+            "\t\tlayout(tree, 0, 0);\n" +
+            "\n" +
+            "\t\tcanvasHeight = tree.total > 0 ? levels.length * 16 : 0;\n" +
+            "\t\tcanvas.style.height = canvasHeight + 'px';\n" +
+            "\t\tcanvas.width = canvasWidth * (devicePixelRatio || 1);\n" +
+            "\t\tcanvas.height = canvasHeight * (devicePixelRatio || 1);\n" +
+            "\t\tif (devicePixelRatio) c.scale(devicePixelRatio, devicePixelRatio);\n" +
+            "\t\tc.font = document.body.style.font;\n" +
+            "\t\tconst matched = render();\n" +
+            "\t\tif (pattern) {\n" +
+            "\t\t\tdocument.getElementById('matchval').textContent = pct(matched, root.width) + '%';\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tfunction layout(node, level, left) {\n" +
+            "\t\tconst title = node.frame === undefined ? 'all' : titles[node.frame];\n" +
+            "\t\tconst type = node.frame === undefined ? 4 : types[node.frame];\n" +
+            "\t\t(levels[level] || (levels[level] = [])).push({left: left, width: node.total, color: getColor(palette[type]), title: title});\n" +
+            "\n" +
+            "\t\tconst children = Object.keys(node.children).map(function(f) { return node.children[f]; });\n" +
+            "\t\tchildren.sort(function(a, b) { return titles[a.frame] < titles[b.frame] ? -1 : titles[a.frame] > titles[b.frame] ? 1 : 0; });\n" +
+            "\n" +
+            "\t\tlet x = left + node.total;\n" +
+            "\t\tchildren.forEach(function(child) { x -= child.total; });\n" +
+            "\t\tchildren.forEach(function(child) {\n" +
+            "\t\t\tlayout(child, level + 1, x);\n" +
+            "\t\t\tx += child.total;\n" +
+            "\t\t});\n" +
+            "\t}\n" +
+            "\n" +
+            "\theatmap.onmousemove = function() {\n" +
+            "\t\tconst b = bucketAt(event.offsetX, event.offsetY);\n" +
+            "\t\tstatus.textContent = b >= 0 ? 'Time: ' + formatTime(b) + ' (' + samples(counts[b]) + ')' : '\\xa0';\n" +
+            "\t\theatmap.style.cursor = b >= 0 ? 'pointer' : '';\n" +
+            "\t}\n" +
+            "\n" +
+            "\theatmap.onmouseout = function() {\n" +
+            "\t\tstatus.textContent = '\\xa0';\n" +
+            "\t}\n" +
+            "\n" +
+            "\theatmap.onclick = function() {\n" +
+            "\t\tconst b = bucketAt(event.offsetX, event.offsetY);\n" +
+            "\t\tif (b >= 0) {\n" +
+            "\t\t\tif (event.shiftKey && first >= 0) {\n" +
+            "\t\t\t\tlast = b;\n" +
+            "\t\t\t} else {\n" +
+            "\t\t\t\tfirst = last = b;\n" +
+            "\t\t\t}\n" +
+            "\t\t\tdrawHeatmap();\n" +
+            "\t\t\trenderRange();\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            "\tgroupSelect.onchange = function() {\n" +
+            "\t\tupdateCounts();\n" +
+            "\t\tdrawHeatmap();\n" +
+            "\t\tif (first >= 0) {\n" +
+            "\t\t\trenderRange();\n" +
+            "\t\t}\n" +
+            "\t}\n" +
+            "\n" +
+            FlameGraph.RENDERER;
+}
@@ -14,21 +14,22 @@
  * limitations under the License.
  */
 
+import one.jfr.ChunkHeader;
 import one.jfr.ClassRef;
+import one.jfr.Dictionary;
 import one.jfr.JfrReader;
 import one.jfr.MethodRef;
 import one.jfr.StackTrace;
-import one.jfr.event.Event;
-import one.jfr.event.EventAggregator;
+import one.jfr.event.EventStore;
 import one.jfr.event.ExecutionSample;
 import one.proto.Proto;
+import one.proto.ProtoWriter;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * Converts .jfr output produced by async-profiler to nflxprofile format
@@ -42,58 +43,114 @@ public class jfr2nflx {
     private static final byte[] UNKNOWN = "[unknown]".getBytes();
 
     private final JfrReader jfr;
-    private final List<ExecutionSample> samples;
+    private final EventStore samples;
 
-    public jfr2nflx(JfrReader jfr) throws IOException {
+    public jfr2nflx(JfrReader jfr) {
+        this(jfr, false);
+    }
+
+    // Samples of one chunk at a time are kept in columns rather than in ExecutionSample objects,
+    // optionally outside of the Java heap
+    public jfr2nflx(JfrReader jfr, boolean offHeap) {
         this.jfr = jfr;
-        this.samples = jfr.readAllEvents(ExecutionSample.class);
+        this.samples = new EventStore(offHeap);
     }
 
+    // Samples are read and written chunk by chunk, so memory use depends on the size of a chunk
+    // and on the number of distinct stack traces, but not on the total number of samples.
+    // Every chunk adds its own part of the packed sample fields: protobuf parsers concatenate them.
+    // Chunks of concatenated recordings may go back in time; a negative delta keeps sample times exact
     public void dump(OutputStream out) throws IOException {
         long startTime = System.nanoTime();
 
-        int size = samples.size();
-        long durationTicks = size == 0 ? 0 : samples.get(size - 1).time - jfr.startTicks + 1;
+        final ProtoWriter profile = new ProtoWriter(out);
+        profile.field(1, 0.0);
 
-        final Proto profile = new Proto(200000)
-                .field(1, 0.0)
-                .field(2, Math.max(jfr.durationNanos() / 1e9, durationTicks / (double) jfr.ticksPerSec))
-                .field(3, packSamples())
-                .field(4, packDeltas())
-                .field(6, "async-profiler")
+        long startTicks = jfr.startTicks;
+        for (ChunkHeader header : jfr.chunkHeaders()) {
+            startTicks = Math.min(startTicks, header.startTicks);
+        }
+
+        Dictionary<Boolean> sampledStackTraces = new Dictionary<>();
+        long prevTime = startTicks;
+        long endTicks = startTicks;
+        boolean hasMoreChunks;
+        do {
+            samples.clear();
+            hasMoreChunks = jfr.readChunkEvents(ExecutionSample.class, samples);
+            if (samples.size() > 0) {
+                samples.sortByTime();
+                prevTime = writeChunkSamples(profile, prevTime);
+                endTicks = Math.max(endTicks, prevTime);
+                for (EventStore.Cursor sample = samples.cursor(); sample.next(); ) {
+                    if (sample.stackTraceId() != 0) {
+                        sampledStackTraces.put(sample.stackTraceId(), Boolean.TRUE);
+                    }
+                }
+            }
+        } while (hasMoreChunks);
+
+        long durationTicks = endTicks - startTicks + 1;
+        profile.field(2, Math.max(jfr.durationNanos() / 1e9, durationTicks / (double) jfr.ticksPerSec));
+
+        profile.field(6, "async-profiler")
                 .field(8, new Proto(32).field(1, "has_node_stack").field(2, "true"))
-                .field(8, new Proto(32).field(1, "has_samples_tid").field(2, "true"))
-                .field(11, packTids());
+                .field(8, new Proto(32).field(1, "has_samples_tid").field(2, "true"));
 
         final Proto nodes = new Proto(10000);
         final Proto node = new Proto(10000);
 
-        EventAggregator agg = new EventAggregator(false, false);
-        for (ExecutionSample sample : samples) {
-            agg.collect(sample);
-        }
-
         // Don't use lambda for faster startup
-        agg.forEach(new EventAggregator.Visitor() {
+        final IOException[] error = new IOException[1];
+        sampledStackTraces.forEach(new Dictionary.Visitor<Boolean>() {
             @Override
-            public void visit(Event event, long value) {
-                StackTrace stackTrace = jfr.stackTraces.get(event.stackTraceId);
-                if (stackTrace != null) {
-                    profile.field(5, nodes
-                            .field(1, event.stackTraceId)
-                            .field(2, packNode(node, stackTrace)));
+            public void visit(long stackTraceId, Boolean value) {
+                StackTrace stackTrace = jfr.stackTraces.get(stackTraceId);
+                if (stackTrace != null && error[0] == null) {
+                    try {
+                        profile.field(5, nodes
+                                .field(1, (int) stackTraceId)
+                                .field(2, packNode(node, stackTrace)));
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
                     nodes.reset();
                     node.reset();
                 }
             }
         });
 
-        out.write(profile.buffer(), 0, profile.size());
+        if (error[0] != null) {
+            throw error[0];
+        }
+        profile.flush();
 
         long endTime = System.nanoTime();
         System.out.println("Wrote " + profile.size() + " bytes in " + (endTime - startTime) / 1e9 + " s");
     }
 
+    // Writes samples, time deltas and thread ids of the current chunk. Returns the time of the last sample
+    private long writeChunkSamples(ProtoWriter profile, long prevTime) throws IOException {
+        // Pre-pass to find lengths of the packed sample fields
+        long samplesLength = 0;
+        long tidsLength = 0;
+        for (EventStore.Cursor sample = samples.cursor(); sample.next(); ) {
+            samplesLength += ProtoWriter.intSize(sample.stackTraceId());
+            tidsLength += ProtoWriter.intSize(sample.tid());
+        }
+
+        profile.beginField(3, samplesLength);
+        writeSamples(profile);
+
+        profile.beginField(4, samples.size() * 8L);
+        prevTime = writeDeltas(profile, prevTime);
+
+        profile.beginField(11, tidsLength);
+        writeTids(profile);
+
+        return prevTime;
+    }
+
     private Proto packNode(Proto node, StackTrace stackTrace) {
         long[] methods = stackTrace.methods;
         byte[] types = stackTrace.types;
@@ -112,31 +169,25 @@ public class jfr2nflx {
         return node;
     }
 
-    private Proto packSamples() {
-        Proto proto = new Proto(10000);
-        for (ExecutionSample sample : samples) {
-            proto.writeInt(sample.stackTraceId);
+    private void writeSamples(ProtoWriter profile) throws IOException {
+        for (EventStore.Cursor sample = samples.cursor(); sample.next(); ) {
+            profile.writeInt(sample.stackTraceId());
         }
-        return proto;
     }
 
-    private Proto packDeltas() {
-        Proto proto = new Proto(10000);
+    private long writeDeltas(ProtoWriter profile, long prevTime) throws IOException {
         double ticksPerSec = jfr.ticksPerSec;
-        long prevTime = jfr.startTicks;
-        for (ExecutionSample sample : samples) {
-            proto.writeDouble((sample.time - prevTime) / ticksPerSec);
-            prevTime = sample.time;
+        for (EventStore.Cursor sample = samples.cursor(); sample.next(); ) {
+            profile.writeDouble((sample.time() - prevTime) / ticksPerSec);
+            prevTime = sample.time();
         }
-        return proto;
+        return prevTime;
     }
 
-    private Proto packTids() {
-        Proto proto = new Proto(10000);
-        for (ExecutionSample sample : samples) {
-            proto.writeInt(sample.tid);
+    private void writeTids(ProtoWriter profile) throws IOException {
+        for (EventStore.Cursor sample = samples.cursor(); sample.next(); ) {
+            profile.writeInt(sample.tid());
         }
-        return proto;
     }
 
     private byte[] getMethodName(long methodId) {
@@ -170,9 +221,11 @@ public class jfr2nflx {
             dst = new File(dst, new File(args[0]).getName().replace(".jfr", ".nflx"));
         }
 
+        // Samples are kept off heap, and the profile is streamed to the file,
+        // so that Java heap usage does not depend on the number of samples
         try (JfrReader jfr = new JfrReader(args[0]);
              FileOutputStream out = new FileOutputStream(dst)) {
-            new jfr2nflx(jfr).dump(out);
+            new jfr2nflx(jfr, true).dump(out);
         }
     }
 }
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import one.jfr.ClassRef;
+import one.jfr.IntDictionary;
+import one.jfr.JfrReader;
+import one.jfr.MethodRef;
+import one.jfr.StackTrace;
+import one.jfr.event.EventCollector;
+import one.jfr.event.PackedEventAggregator;
+import one.proto.Proto;
+import one.proto.ProtoWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Converts .jfr output produced by async-profiler to pprof format
+ * as described in https://github.com/google/pprof/blob/master/proto/profile.proto.
+ * CPU, allocation and lock samples of the recording end up in one profile
+ * with five sample types, so that any of them can be selected in pprof.
+ */
+public class jfr2pprof {
+
+    // Indices of sample values, in the order of sample types
+    private static final int CPU_SAMPLES = 0;
+    private static final int ALLOC_OBJECTS = 1;
+    private static final int ALLOC_SPACE = 2;
+    private static final int LOCK_CONTENTIONS = 3;
+    private static final int LOCK_DELAY = 4;
+    private static final long DEFAULT_INTERVAL = 10000000;  // 10 ms, as in async-profiler
+    private static final String[][] SAMPLE_TYPES = {
+            {"cpu", "samples"},
+            {"alloc_objects", "count"},
+            {"alloc_space", "bytes"},
+            {"contentions", "count"},
+            {"delay", "nanoseconds"}
+    };
+
+    private final JfrReader jfr;
+    private final boolean threads;
+    private final PackedEventAggregator agg;
+
+    // Output is written as soon as a string, function or location is first seen.
+    // Repeated fields may interleave in protobuf, only the order of strings matters
+    private final HashMap<String, Integer> strings = new HashMap<>();
+    private final IntDictionary functionIds = new IntDictionary();
+    private final IntDictionary locationIds = new IntDictionary();
+    private final Proto message = new Proto(1000);
+    private final Proto packed = new Proto(1000);
+    private ProtoWriter profile;
+    private int functionCount;
+    private int locationCount;
+
+    public jfr2pprof(JfrReader jfr, boolean threads) throws IOException {
+        this.jfr = jfr;
+        this.threads = threads;
+        this.agg = new PackedEventAggregator(threads, true, true);
+        jfr.readEvents(null, agg);
+    }
+
+    public void dump(OutputStream out) throws IOException {
+        long startTime = System.nanoTime();
+
+        profile = new ProtoWriter(out);
+        getString("");
+
+        for (String[] type : SAMPLE_TYPES) {
+            message.reset();
+            profile.field(1, message.field(1, getString(type[0])).field(2, getString(type[1])));
+        }
+
+        final double ticksToNanos = 1e9 / jfr.ticksPerSec;
+        final long[] values = new long[SAMPLE_TYPES.length];
+        final IOException[] error = new IOException[1];
+
+        // Don't use lambda for faster startup
+        agg.forEach(new PackedEventAggregator.CountingVisitor() {
+            @Override
+            public void visit(int kind, int stackTraceId, int tid, int classId, long value, long count) {
+                StackTrace stackTrace = jfr.stackTraces.get(stackTraceId);
+                if (stackTrace == null || error[0] != null) {
+                    return;
+                }
+
+                values[CPU_SAMPLES] = values[ALLOC_OBJECTS] = values[ALLOC_SPACE] = 0;
+                values[LOCK_CONTENTIONS] = values[LOCK_DELAY] = 0;
+                switch (kind) {
+                    case EventCollector.EXECUTION_SAMPLE:
+                        values[CPU_SAMPLES] = count;
+                        break;
+                    case EventCollector.ALLOCATION_IN_NEW_TLAB:
+                    case EventCollector.ALLOCATION_OUTSIDE_TLAB:
+                        values[ALLOC_OBJECTS] = count;
+                        values[ALLOC_SPACE] = value;
+                        break;
+                    case EventCollector.CONTENDED_LOCK:
+                        values[LOCK_CONTENTIONS] = count;
+                        values[LOCK_DELAY] = (long) (value * ticksToNanos);
+                        break;
+                }
+
+                try {
+                    writeSample(stackTrace, kind == EventCollector.EXECUTION_SAMPLE ? 0 : classId, tid, values);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+
+        writePeriod();
+        profile.field(9, jfr.startNanos)
+                .field(10, jfr.durationNanos());
+        profile.flush();
+
+        long endTime = System.nanoTime();
+        System.out.println("Wrote " + profile.size() + " bytes in " + (endTime - startTime) / 1e9 + " s");
+    }
+
+    // CPU samples are taken every interval of CPU or wall clock time, other sampled events
+    // every interval of their counter. Recordings without execution samples have no period
+    private void writePeriod() throws IOException {
+        String event = jfr.settings.get("event");
+        if (event == null) {
+            return;
+        }
+
+        String interval = jfr.settings.get("interval");
+        long period = interval != null ? Long.parseLong(interval) : 0;
+
+        message.reset();
+        if (event.equals("cpu") || event.equals("itimer") || event.equals("wall")) {
+            if (period <= 0) {
+                period = event.equals("wall") ? DEFAULT_INTERVAL * 5 : DEFAULT_INTERVAL;
+            }
+            message.field(1, getString("cpu")).field(2, getString("nanoseconds"));
+        } else {
+            message.field(1, getString(event)).field(2, getString("count"));
+        }
+        profile.field(11, message);
+
+        // The default interval of hardware counters depends on the event
+        if (period > 0) {
+            profile.field(12, period);
+        }
+    }
+
+    private void writeSample(StackTrace stackTrace, int classId, int tid, long[] values) throws IOException {
+        long[] methods = stackTrace.methods;
+        int[] locations = stackTrace.locations;
+
+        // Location ids of all frames must be known before the sample is written
+        int classLocation = classId != 0 ? getClassLocationId(classId) : 0;
+        int[] ids = new int[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            ids[i] = getLocationId(methods[i], locations[i] >>> 16);
+        }
+        int threadName = threads ? getString(getThreadName(tid)) : 0;
+
+        // The leaf frame goes first; the allocated or contended class is shown below the top method
+        packed.reset();
+        if (classLocation != 0) {
+            packed.writeInt(classLocation);
+        }
+        for (int id : ids) {
+            packed.writeInt(id);
+        }
+        message.reset();
+        message.field(1, packed);
+
+        packed.reset();
+        for (long value : values) {
+            packed.writeLong(value);
+        }
+        message.field(2, packed);
+
+        if (threads) {
+            packed.reset();
+            message.field(3, packed.field(1, getString("thread")).field(2, threadName));
+        }
+
+        profile.field(2, message);
+    }
+
+    private int getLocationId(long methodId, int line) throws IOException {
+        // Method ids start from 1, and line numbers take 16 bits in StackTrace.locations
+        long key = methodId << 16 | line;
+        int id = locationIds.get(key, 0);
+        if (id == 0) {
+            int functionId = getFunctionId(methodId);
+            locationIds.put(key, id = ++locationCount);
+            writeLocation(id, functionId, line);
+        }
+        return id;
+    }
+
+    // Class frames use negative keys to stay apart from method locations
+    private int getClassLocationId(int classId) throws IOException {
+        long key = -(classId & 0xffffffffL);
+        int id = locationIds.get(key, 0);
+        if (id == 0) {
+            int functionId = getFunctionId(key);
+            locationIds.put(key, id = ++locationCount);
+            writeLocation(id, functionId, 0);
+        }
+        return id;
+    }
+
+    private int getFunctionId(long key) throws IOException {
+        int id = functionIds.get(key, 0);
+        if (id == 0) {
+            String name = key < 0 ? getClassName(-key) : getMethodName(key);
+            int nameIndex = getString(name);
+            functionIds.put(key, id = ++functionCount);
+
+            message.reset();
+            profile.field(5, message.field(1, id).field(2, nameIndex).field(3, nameIndex));
+        }
+        return id;
+    }
+
+    private void writeLocation(int id, int functionId, int line) throws IOException {
+        packed.reset();
+        packed.field(1, functionId);
+        if (line != 0) {
+            packed.field(2, line);
+        }
+        message.reset();
+        profile.field(4, message.field(1, id).field(4, packed));
+    }
+
+    private int getString(String s) throws IOException {
+        Integer index = strings.get(s);
+        if (index == null) {
+            strings.put(s, index = strings.size());
+            profile.field(6, s.getBytes(StandardCharsets.UTF_8));
+        }
+        return index;
+    }
+
+    private String getThreadName(int tid) {
+        String threadName = jfr.threads.get(tid);
+        return threadName == null ? "[tid=" + tid + ']' : threadName;
+    }
+
+    private String getClassName(long classId) {
+        ClassRef cls = jfr.classes.get(classId);
+        if (cls == null) {
+            return "null";
+        }
+        byte[] className = jfr.symbols.get(cls.name);
+        return className == null ? "null" : toJavaClassName(new String(className, StandardCharsets.UTF_8));
+    }
+
+    private String getMethodName(long methodId) {
+        MethodRef method = jfr.methods.get(methodId);
+        if (method == null) {
+            return "unknown";
+        }
+
+        ClassRef cls = jfr.classes.get(method.cls);
+        byte[] className = jfr.symbols.get(cls.name);
+        byte[] methodName = jfr.symbols.get(method.name);
+
+        if (className == null || className.length == 0) {
+            return new String(methodName, StandardCharsets.UTF_8);
+        } else {
+            return new String(className, StandardCharsets.UTF_8).replace('/', '.') + '.' + new String(methodName, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Converts a JVM class name like [[Ljava/lang/String; to java.lang.String[][], as jfr2flame does
+    private static String toJavaClassName(String name) {
+        int arrayDepth = 0;
+        while (arrayDepth < name.length() && name.charAt(arrayDepth) == '[') {
+            arrayDepth++;
+        }
+        if (arrayDepth == 0) {
+            return name.replace('/', '.');
+        }
+
+        StringBuilder sb = new StringBuilder();
+        switch (arrayDepth < name.length() ? name.charAt(arrayDepth) : 0) {
+            case 'B':
+                sb.append("byte");
+                break;
+            case 'C':
+                sb.append("char");
+                break;
+            case 'S':
+                sb.append("short");
+                break;
+            case 'I':
+                sb.append("int");
+                break;
+            case 'J':
+                sb.append("long");
+                break;
+            case 'Z':
+                sb.append("boolean");
+                break;
+            case 'F':
+                sb.append("float");
+                break;
+            case 'D':
+                sb.append("double");
+                break;
+            case 'L':
+                sb.append(name.substring(arrayDepth + 1, name.length() - 1).replace('/', '.'));
+                break;
+            default:
+                sb.append(name.substring(arrayDepth).replace('/', '.'));
+        }
+
+        while (arrayDepth-- > 0) {
+            sb.append("[]");
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean threads = args.length > 0 && args[0].equals("--threads");
+        int argIndex = threads ? 1 : 0;
+        if (args.length - argIndex < 2) {
+            System.out.println("Usage: java " + jfr2pprof.class.getName() + " [--threads] input.jfr output.pb.gz");
+            System.exit(1);
+        }
+
+        File dst = new File(args[argIndex + 1]);
+        if (dst.isDirectory()) {
+            dst = new File(dst, new File(args[argIndex]).getName().replace(".jfr", ".pb.gz"));
+        }
+
+        // Only aggregated samples stay in memory, the profile itself is streamed to the file
+        try (JfrReader jfr = new JfrReader(args[argIndex]);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(dst), 65536)) {
+            new jfr2pprof(jfr, threads).dump(out);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size header at the beginning of every JFR chunk.
+ */
+public class ChunkHeader {
+    public final long offset;
+    public final long size;
+    public final long cpOffset;
+    public final long metaOffset;
+    public final long startNanos;
+    public final long durationNanos;
+    public final long startTicks;
+    public final long ticksPerSec;
+
+    ChunkHeader(long offset, ByteBuffer buf, int pos) {
+        this(offset, buf.getLong(pos + 8), buf.getLong(pos + 16), buf.getLong(pos + 24),
+                buf.getLong(pos + 32), buf.getLong(pos + 40), buf.getLong(pos + 48), buf.getLong(pos + 56));
+    }
+
+    ChunkHeader(long offset, long size, long cpOffset, long metaOffset,
+                long startNanos, long durationNanos, long startTicks, long ticksPerSec) {
+        this.offset = offset;
+        this.size = size;
+        this.cpOffset = cpOffset;
+        this.metaOffset = metaOffset;
+        this.startNanos = startNanos;
+        this.durationNanos = durationNanos;
+        this.startTicks = startTicks;
+        this.ticksPerSec = ticksPerSec;
+    }
+
+    // A chunk that is still being written has zero size and constant pool offset
+    public boolean isFinished() {
+        return size != 0 && cpOffset != 0 && metaOffset != 0;
+    }
+
+    public long endNanos() {
+        return startNanos + durationNanos;
+    }
+
+    // Walks the file from one chunk header to another without reading chunk contents.
+    // The list ends with the first unfinished chunk, if any
+    public static List<ChunkHeader> readAll(FileChannel ch) throws IOException {
+        List<ChunkHeader> chunks = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocate(JfrReader.CHUNK_HEADER_SIZE);
+
+        for (long offset = 0, fileSize = ch.size(); offset + JfrReader.CHUNK_HEADER_SIZE <= fileSize; ) {
+            buf.clear();
+            while (buf.hasRemaining() && ch.read(buf, offset + buf.position()) > 0) {
+                // keep reading
+            }
+            if (buf.hasRemaining() || buf.getInt(0) != JfrReader.CHUNK_SIGNATURE) {
+                throw new IOException("Not a valid JFR file");
+            }
+
+            ChunkHeader chunk = new ChunkHeader(offset, buf, 0);
+            chunks.add(chunk);
+            if (!chunk.isFinished()) {
+                break;
+            }
+            offset += chunk.size;
+        }
+
+        return chunks;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-chunk summary of a JFR file: chunk location, time span, event counts by type
+ * and thread ids that appear in samples. The index is persisted in a small
+ * sidecar file next to the recording, so that time range and thread queries
+ * can skip irrelevant chunks without reading them.
+ */
+public class ChunkIndex {
+    private static final int MAGIC = 0x4a465249;  // JFRI
+    private static final int VERSION = 1;
+
+    public final long fileSize;
+    public final long lastModified;
+    public final List<Entry> entries;
+
+    private ChunkIndex(long fileSize, long lastModified, List<Entry> entries) {
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.entries = entries;
+    }
+
+    public static String sidecarFileName(String fileName) {
+        return fileName + ".idx";
+    }
+
+    // Loads the sidecar index if it is up to date, otherwise builds a new one and tries to save it
+    public static ChunkIndex forFile(String fileName) throws IOException {
+        ChunkIndex index = load(fileName);
+        if (index == null) {
+            index = build(fileName);
+            try {
+                index.save(fileName);
+            } catch (IOException e) {
+                // The directory may be read-only; the index is still usable in memory
+            }
+        }
+        return index;
+    }
+
+    public static ChunkIndex build(String fileName) throws IOException {
+        long lastModified = new File(fileName).lastModified();
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            List<Entry> entries = new ArrayList<>();
+            for (ChunkHeader header : ChunkHeader.readAll(ch)) {
+                if (!header.isFinished()) {
+                    break;
+                }
+                entries.add(new JfrReader(ch, JfrReader.LAZY, header, null).indexChunk(header));
+            }
+            return new ChunkIndex(ch.size(), lastModified, entries);
+        }
+    }
+
+    // Returns null if there is no sidecar file, it does not match the recording or cannot be read,
+    // so that a damaged index is rebuilt rather than breaking every conversion
+    public static ChunkIndex load(String fileName) {
+        File jfrFile = new File(fileName);
+        File indexFile = new File(sidecarFileName(fileName));
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        long maxCount = indexFile.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            long fileSize = in.readLong();
+            long lastModified = in.readLong();
+            if (fileSize != jfrFile.length() || lastModified != jfrFile.lastModified()) {
+                return null;
+            }
+
+            List<Entry> entries = new ArrayList<>();
+            for (int count = readCount(in, maxCount); count > 0; count--) {
+                ChunkHeader header = new ChunkHeader(in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong(), in.readLong());
+
+                Map<String, Long> eventCounts = new TreeMap<>();
+                for (int types = readCount(in, maxCount); types > 0; types--) {
+                    eventCounts.put(in.readUTF(), in.readLong());
+                }
+
+                int[] threads = new int[readCount(in, maxCount)];
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i] = in.readInt();
+                }
+
+                entries.add(new Entry(header, eventCounts, threads));
+            }
+            return new ChunkIndex(fileSize, lastModified, entries);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // A count cannot exceed the size of the file it is read from
+    private static int readCount(DataInputStream in, long maxCount) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > maxCount) {
+            throw new IOException("Corrupted index");
+        }
+        return count;
+    }
+
+    // Writes a temporary file and renames it, so that an interrupted save never leaves a truncated index
+    public void save(String fileName) throws IOException {
+        File indexFile = new File(sidecarFileName(fileName)).getAbsoluteFile();
+        File tmpFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+        try {
+            write(tmpFile);
+            Files.move(tmpFile.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileSize);
+            out.writeLong(lastModified);
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                ChunkHeader header = entry.header;
+                out.writeLong(header.offset);
+                out.writeLong(header.size);
+                out.writeLong(header.cpOffset);
+                out.writeLong(header.metaOffset);
+                out.writeLong(header.startNanos);
+                out.writeLong(header.durationNanos);
+                out.writeLong(header.startTicks);
+                out.writeLong(header.ticksPerSec);
+
+                out.writeInt(entry.eventCounts.size());
+                for (Map.Entry<String, Long> e : entry.eventCounts.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+
+                out.writeInt(entry.threads.length);
+                for (int tid : entry.threads) {
+                    out.writeInt(tid);
+                }
+            }
+        }
+    }
+
+    public long startNanos() {
+        return entries.isEmpty() ? 0 : entries.get(0).header.startNanos;
+    }
+
+    public long endNanos() {
+        long endNanos = 0;
+        for (Entry entry : entries) {
+            endNanos = Math.max(endNanos, entry.header.endNanos());
+        }
+        return endNanos;
+    }
+
+    // Finds the first chunk at or after the given file offset that may contain events accepted by the filter
+    Entry next(long offset, EventFilter filter) {
+        for (Entry entry : entries) {
+            if (entry.header.offset >= offset && (filter == null || filter.acceptsChunk(entry))) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public static class Entry {
+        public final ChunkHeader header;
+        public final Map<String, Long> eventCounts;
+        public final int[] threads;
+
+        Entry(ChunkHeader header, Map<String, Long> eventCounts, int[] threads) {
+            this.header = header;
+            this.eventCounts = Collections.unmodifiableMap(eventCounts);
+            this.threads = threads;
+        }
+    }
+}
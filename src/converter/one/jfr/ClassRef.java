@@ -18,8 +18,16 @@ package one.jfr;
 
 public class ClassRef {
     public final long name;
+    // Id of the class loader constant, which is the same in all chunks of a recording;
+    // 0 for the bootstrap loader or if unknown. Equal names of different loaders are different classes
+    public final long loader;
 
     public ClassRef(long name) {
+        this(name, 0);
+    }
+
+    public ClassRef(long name, long loader) {
         this.name = name;
+        this.loader = loader;
     }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.util.Arrays;
+
+/**
+ * Merges constant pools of individual chunks into one global id space.
+ * Every chunk repeats symbols, classes, methods and stack traces of the previous ones
+ * under its own ids. Constants are deduplicated by content, so that each of them
+ * is stored once and keeps the same global id in all chunks.
+ *
+ * A constant is identified by its fields with ids already remapped to the global space.
+ * These fields are encoded as varints and interned in a SymbolTable, which compares them
+ * by content without a key object per constant; the interned id becomes the global id.
+ */
+class ConstantMerger {
+    private final SymbolTable classKeys = new SymbolTable();
+    private final SymbolTable methodKeys = new SymbolTable();
+    private final SymbolTable stackTraceKeys = new SymbolTable();
+    private byte[] key = new byte[256];
+    private int keyLength;
+
+    private final SymbolTable symbols;
+    private final Dictionary<ClassRef> classes;
+    final Dictionary<MethodRef> methods;
+    final Dictionary<StackTrace> stackTraces;
+    private final boolean packed;
+
+    // With a non-zero cache size, merged methods and stack traces are not kept as objects,
+    // but decoded from their keys on access; see MergedDictionary
+    ConstantMerger(SymbolTable symbols, Dictionary<ClassRef> classes, int cacheSize) {
+        this.symbols = symbols;
+        this.classes = classes;
+        this.packed = cacheSize > 0;
+
+        if (packed) {
+            this.methods = new MergedDictionary<MethodRef>(methodKeys, cacheSize) {
+                @Override
+                MethodRef decode() {
+                    return new MethodRef(getVarlong(), getVarlong(), getVarlong());
+                }
+            };
+            this.stackTraces = new MergedDictionary<StackTrace>(stackTraceKeys, cacheSize) {
+                @Override
+                StackTrace decode() {
+                    int depth = remainingVarlongs() / 3;
+                    long[] methods = new long[depth];
+                    byte[] types = new byte[depth];
+                    int[] locations = new int[depth];
+                    for (int i = 0; i < depth; i++) {
+                        methods[i] = getVarlong();
+                        types[i] = (byte) getVarlong();
+                        locations[i] = (int) getVarlong();
+                    }
+                    return new StackTrace(methods, types, locations);
+                }
+            };
+        } else {
+            this.methods = new Dictionary<>();
+            this.stackTraces = new Dictionary<>();
+        }
+    }
+
+    void clear() {
+        symbols.clear();
+        classes.clear();
+        methods.clear();
+        stackTraces.clear();
+        classKeys.clear();
+        methodKeys.clear();
+        stackTraceKeys.clear();
+    }
+
+    // Symbols are deduplicated by the symbol table itself
+    void mergeSymbols(final SymbolTable chunkSymbols, final IdMap ids) {
+        chunkSymbols.forEach(new SymbolTable.Visitor() {
+            @Override
+            public void visit(long id) {
+                ids.symbols.put(id, symbols.intern(chunkSymbols, id));
+            }
+        });
+    }
+
+    // Adds constants of one chunk and records their global ids in the map.
+    // Pools refer to each other, so they are merged in the order of dependencies;
+    // symbols must be already merged
+    void merge(Dictionary<ClassRef> chunkClasses, final Dictionary<MethodRef> chunkMethods,
+               Dictionary<StackTrace> chunkStackTraces, final IdMap ids) {
+        mergeClasses(chunkClasses, ids);
+
+        chunkMethods.forEach(new Dictionary.Visitor<MethodRef>() {
+            @Override
+            public void visit(long key, MethodRef value) {
+                ids.methods.put(key, mergeMethod(value, ids));
+            }
+        });
+
+        chunkStackTraces.forEach(new Dictionary.Visitor<StackTrace>() {
+            @Override
+            public void visit(long key, StackTrace value) {
+                ids.stackTraces.put(key, mergeStackTrace(value, chunkMethods, ids));
+            }
+        });
+    }
+
+    void mergeClasses(Dictionary<ClassRef> chunkClasses, final IdMap ids) {
+        chunkClasses.forEach(new Dictionary.Visitor<ClassRef>() {
+            @Override
+            public void visit(long key, ClassRef value) {
+                ids.classes.put(key, mergeClass(value, ids));
+            }
+        });
+    }
+
+    // With lazy constant pools, methods and stack traces are merged one by one when first referenced,
+    // so that constants no event refers to are never decoded. Returns 0 for an unknown id
+    long methodId(long key, Dictionary<MethodRef> chunkMethods, IdMap ids) {
+        long id = ids.methodId(key);
+        if (id == 0) {
+            MethodRef value = chunkMethods.get(key);
+            if (value != null) {
+                ids.methods.put(key, id = mergeMethod(value, ids));
+            }
+        }
+        return id;
+    }
+
+    int stackTraceId(int key, Dictionary<MethodRef> chunkMethods, Dictionary<StackTrace> chunkStackTraces, IdMap ids) {
+        int id = ids.stackTraceId(key);
+        if (id == 0) {
+            StackTrace value = chunkStackTraces.get(key);
+            if (value != null) {
+                ids.stackTraces.put(key, id = mergeStackTrace(value, chunkMethods, ids));
+            }
+        }
+        return id;
+    }
+
+    private long mergeClass(ClassRef value, IdMap ids) {
+        long name = ids.symbolId(value.name);
+        keyLength = 0;
+        putVarlong(name);
+        putVarlong(value.loader);
+
+        int count = classKeys.size();
+        long id = classKeys.intern(key, 0, keyLength);
+        if (id > count) {
+            classes.put(id, new ClassRef(name, value.loader));
+        }
+        return id;
+    }
+
+    private long mergeMethod(MethodRef value, IdMap ids) {
+        long cls = ids.classId(value.cls);
+        long name = ids.symbolId(value.name);
+        long sig = ids.symbolId(value.sig);
+        keyLength = 0;
+        putVarlong(cls);
+        putVarlong(name);
+        putVarlong(sig);
+
+        int count = methodKeys.size();
+        long id = methodKeys.intern(key, 0, keyLength);
+        if (id > count && !packed) {
+            methods.put(id, new MethodRef(cls, name, sig));
+        }
+        return id;
+    }
+
+    // StackTrace is owned by the chunk and merged only once, so it is safe to update it in place
+    private int mergeStackTrace(StackTrace value, Dictionary<MethodRef> chunkMethods, IdMap ids) {
+        long[] methods = value.methods;
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = methodId(methods[i], chunkMethods, ids);
+        }
+
+        // Three varints per frame, as MergedDictionary of stack traces decodes them
+        keyLength = 0;
+        for (int i = 0; i < methods.length; i++) {
+            putVarlong(methods[i]);
+            putVarlong(value.types[i] & 0xffL);
+            putVarlong(value.locations[i] & 0xffffffffL);
+        }
+
+        int count = stackTraceKeys.size();
+        int id = (int) stackTraceKeys.intern(key, 0, keyLength);
+        if (id > count && !packed) {
+            stackTraces.put(id, value);
+        }
+        return id;
+    }
+
+    private void putVarlong(long v) {
+        if (keyLength + 10 > key.length) {
+            key = Arrays.copyOf(key, key.length * 2);
+        }
+        while ((v >>> 7) != 0) {
+            key[keyLength++] = (byte) (v | 0x80);
+            v >>>= 7;
+        }
+        key[keyLength++] = (byte) v;
+    }
+
+    /**
+     * Chunk-local id -> global id
+     */
+    static class IdMap {
+        final LongDictionary symbols = new LongDictionary();
+        final LongDictionary classes = new LongDictionary();
+        final LongDictionary methods = new LongDictionary();
+        final IntDictionary stackTraces = new IntDictionary();
+
+        void clear() {
+            symbols.clear();
+            classes.clear();
+            methods.clear();
+            stackTraces.clear();
+        }
+
+        long symbolId(long id) {
+            return symbols.get(id, 0);
+        }
+
+        long classId(long id) {
+            return classes.get(id, 0);
+        }
+
+        long methodId(long id) {
+            return methods.get(id, 0);
+        }
+
+        int stackTraceId(int id) {
+            return stackTraces.get(id, 0);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2020 Andrei Pangin
+ * Copyright 2021 Andrei Pangin
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,99 +16,58 @@
 
 package one.jfr;
 
+import java.util.Arrays;
+
 /**
  * Fast and compact long->Object map.
  */
-public class Dictionary<T> {
-    private static final int INITIAL_CAPACITY = 16;
-
-    private long[] keys;
-    private Object[] values;
-    private int size;
-
-    public Dictionary() {
-        this.keys = new long[INITIAL_CAPACITY];
-        this.values = new Object[INITIAL_CAPACITY];
+public class Dictionary<T> extends LongHashTable {
+    @Override
+    Object newValues(int length) {
+        return new Object[length];
     }
 
-    public void clear() {
-        keys = new long[INITIAL_CAPACITY];
-        values = new Object[INITIAL_CAPACITY];
-        size = 0;
+    @Override
+    void moveValue(Object from, int fromIndex, Object to, int toIndex) {
+        ((Object[]) to)[toIndex] = ((Object[]) from)[fromIndex];
     }
 
-    public void put(long key, T value) {
-        if (key == 0) {
-            throw new IllegalArgumentException("Zero key not allowed");
-        }
-
-        int mask = keys.length - 1;
-        int i = hashCode(key) & mask;
-        while (keys[i] != 0) {
-            if (keys[i] == key) {
-                values[i] = value;
-                return;
+    @Override
+    public void clear() {
+        super.clear();
+        for (Object segment : values) {
+            if (segment != null) {
+                Arrays.fill((Object[]) segment, null);
             }
-            i = (i + 1) & mask;
         }
-        keys[i] = key;
-        values[i] = value;
+    }
 
-        if (++size * 2 > keys.length) {
-            resize(keys.length * 2);
-        }
+    public void put(long key, T value) {
+        int i = insert(key);
+        ((Object[]) values[i >>> SEGMENT_BITS])[i & SEGMENT_MASK] = value;
     }
 
     @SuppressWarnings("unchecked")
     public T get(long key) {
-        int mask = keys.length - 1;
-        int i = hashCode(key) & mask;
-        while (keys[i] != key && keys[i] != 0) {
-            i = (i + 1) & mask;
-        }
-        return (T) values[i];
+        int i = find(key);
+        return i >= 0 ? (T) ((Object[]) values[i >>> SEGMENT_BITS])[i & SEGMENT_MASK] : null;
     }
 
     @SuppressWarnings("unchecked")
     public void forEach(Visitor<T> visitor) {
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] != 0) {
-                visitor.visit(keys[i], (T) values[i]);
-            }
-        }
-    }
-
-    public int preallocate(int count) {
-        if (count * 2 > keys.length) {
-            resize(Integer.highestOneBit(count * 4 - 1));
-        }
-        return count;
-    }
-
-    private void resize(int newCapacity) {
-        long[] newKeys = new long[newCapacity];
-        Object[] newValues = new Object[newCapacity];
-        int mask = newKeys.length - 1;
-
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] != 0) {
-                for (int j = hashCode(keys[i]) & mask; ; j = (j + 1) & mask) {
-                    if (newKeys[j] == 0) {
-                        newKeys[j] = keys[i];
-                        newValues[j] = values[i];
-                        break;
+        finishRehash();
+
+        for (int s = 0; s < keys.length; s++) {
+            long[] segmentKeys = keys[s];
+            if (segmentKeys != null) {
+                Object[] segmentValues = (Object[]) values[s];
+                for (int i = 0; i < segmentKeys.length; i++) {
+                    if (segmentKeys[i] != 0) {
+                        visitor.visit(segmentKeys[i], (T) segmentValues[i]);
                     }
                 }
             }
         }
-
-        keys = newKeys;
-        values = newValues;
-    }
-
-    private static int hashCode(long key) {
-        key *= 0xc6a4a7935bd1e995L;
-        return (int) (key ^ (key >>> 32));
     }
 
     public interface Visitor<T> {
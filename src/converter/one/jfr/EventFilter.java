@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.util.Arrays;
+
+/**
+ * Selects events by wall clock time and by thread id.
+ */
+public class EventFilter {
+    public final long fromNanos;
+    public final long toNanos;
+    private final int[] threads;
+
+    // threads == null accepts all threads
+    public EventFilter(long fromNanos, long toNanos, int[] threads) {
+        this.fromNanos = fromNanos;
+        this.toNanos = toNanos;
+        if (threads != null) {
+            this.threads = threads.clone();
+            Arrays.sort(this.threads);
+        } else {
+            this.threads = null;
+        }
+    }
+
+    public boolean acceptsThread(int tid) {
+        return threads == null || Arrays.binarySearch(threads, tid) >= 0;
+    }
+
+    public boolean acceptsChunk(ChunkIndex.Entry chunk) {
+        if (chunk.header.startNanos > toNanos || chunk.header.endNanos() < fromNanos) {
+            return false;
+        }
+        if (threads != null) {
+            for (int tid : chunk.threads) {
+                if (acceptsThread(tid)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // Converts the time range to ticks of a particular chunk
+    long fromTicks(ChunkHeader chunk) {
+        return toTicks(chunk, fromNanos);
+    }
+
+    long toTicks(ChunkHeader chunk) {
+        return toTicks(chunk, toNanos);
+    }
+
+    private static long toTicks(ChunkHeader chunk, long nanos) {
+        double ticks = chunk.startTicks + (nanos - (double) chunk.startNanos) * chunk.ticksPerSec / 1e9;
+        return ticks <= Long.MIN_VALUE ? Long.MIN_VALUE : ticks >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) ticks;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.util.Arrays;
+
+/**
+ * Reusable view of an event of any JFR type. A handler registered with
+ * {@link JfrReader#addRecordHandler} receives the same object for every event of its type,
+ * filled with values of the requested fields, which are addressed by their position
+ * in the request. A field missing in the recording reads as 0 or null.
+ *
+ * Constant pool references are returned as ids; ids of stack traces, classes, methods
+ * and symbols are the ones used by JfrReader dictionaries. For a reference to a pool
+ * of names, like jdk.types.GCName, jdk.types.ThreadState or jdk.types.FrameType,
+ * getString() returns the name. A java.lang.Thread reference is the id from the recording,
+ * which is not remapped between chunks: it is the key of JfrReader.threads, and getString()
+ * returns null for it. An array field reads as its length.
+ */
+public class EventRecord {
+    private final String typeName;
+    private final String[] fieldNames;
+    final Handler handler;
+    final long[] values;
+    final String[] strings;
+
+    EventRecord(String typeName, String[] fieldNames, Handler handler) {
+        this.typeName = typeName;
+        this.fieldNames = fieldNames;
+        this.handler = handler;
+        this.values = new long[fieldNames.length];
+        this.strings = new String[fieldNames.length];
+    }
+
+    public String typeName() {
+        return typeName;
+    }
+
+    public int fieldCount() {
+        return fieldNames.length;
+    }
+
+    public String fieldName(int field) {
+        return fieldNames[field];
+    }
+
+    String[] fieldNames() {
+        return fieldNames;
+    }
+
+    public long getLong(int field) {
+        return values[field];
+    }
+
+    public int getInt(int field) {
+        return (int) values[field];
+    }
+
+    public boolean getBoolean(int field) {
+        return values[field] != 0;
+    }
+
+    // Float fields are stored as double
+    public double getDouble(int field) {
+        return Double.longBitsToDouble(values[field]);
+    }
+
+    public float getFloat(int field) {
+        return (float) getDouble(field);
+    }
+
+    public String getString(int field) {
+        return strings[field];
+    }
+
+    void clear() {
+        Arrays.fill(values, 0);
+        Arrays.fill(strings, null);
+    }
+
+    public interface Handler {
+        void handle(EventRecord record);
+    }
+}
@@ -19,48 +19,93 @@ package one.jfr;
 import one.jfr.event.AllocationSample;
 import one.jfr.event.ContendedLock;
 import one.jfr.event.Event;
+import one.jfr.event.EventCollector;
 import one.jfr.event.ExecutionSample;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Parses JFR output produced by async-profiler.
  */
 public class JfrReader implements Closeable {
-    private static final int BUFFER_SIZE = 2 * 1024 * 1024;
-    private static final int CHUNK_HEADER_SIZE = 68;
-    private static final int CHUNK_SIGNATURE = 0x464c5200;
+    // Map the file directly instead of copying it through an intermediate buffer
+    public static final int MMAP = 1;
+    // Decode stack traces and methods only when they are first looked up. Decoded objects
+    // are kept in LRU caches of a bounded size; merged constants are stored in a packed form
+    public static final int LAZY = 2;
+    // Open a recording that is still being written; see follow()
+    public static final int FOLLOW = 4;
 
-    private final FileChannel ch;
+    private static final int BUFFER_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+    private static final int LAZY_CACHE_SIZE = 65536;
+    static final int CHUNK_HEADER_SIZE = 68;
+    static final int CHUNK_SIGNATURE = 0x464c5200;
+
+    final FileChannel ch;
+    final int flags;
+    private final boolean mmap;
+    private final boolean lazy;
+    private final boolean follow;
+    private final long endPosition;
+    final EventFilter filter;
+    final ChunkIndex index;
     private ByteBuffer buf;
+    private ByteBuffer lazyBuf;
     private long filePosition;
+    private long chunkEnd;
+    private long fromTicks = Long.MIN_VALUE;
+    private long toTicks = Long.MAX_VALUE;
+    private int chunksRead;
 
     public boolean incomplete;
     public long startNanos = Long.MAX_VALUE;
     public long endNanos = Long.MIN_VALUE;
     public long startTicks = Long.MAX_VALUE;
     public long ticksPerSec;
+    // Start of the chunk being read. Ticks of concatenated recordings are not comparable,
+    // so event times are converted to nanoseconds relative to these values
+    public long chunkStartNanos;
+    public long chunkStartTicks;
 
     public final Dictionary<JfrClass> types = new Dictionary<>();
     public final Map<String, JfrClass> typesByName = new HashMap<>();
     public final Dictionary<String> threads = new Dictionary<>();
+    // Ids of classes, symbols, methods and stack traces, including those in events,
+    // are global ids shared by all chunks, not the ids written in the file
     public final Dictionary<ClassRef> classes = new Dictionary<>();
-    public final Dictionary<byte[]> symbols = new Dictionary<>();
-    public final Dictionary<MethodRef> methods = new Dictionary<>();
-    public final Dictionary<StackTrace> stackTraces = new Dictionary<>();
+    public final SymbolTable symbols = new SymbolTable();
+    public final Dictionary<MethodRef> methods;
+    public final Dictionary<StackTrace> stackTraces;
     public final Map<Integer, String> frameTypes = new HashMap<>();
     public final Map<Integer, String> threadStates = new HashMap<>();
+    // Values of jdk.ActiveSetting events by setting name, e.g. "interval".
+    // Settings of a later recording in the file override the earlier ones
+    public final Map<String, String> settings = new HashMap<>();
+
+    // When chunks are merged into one id space, constants of the current chunk
+    // are read into the chunk* dictionaries first and then deduplicated.
+    // Symbols are interned as they are read
+    final ConstantMerger merger;
+    private final ConstantMerger.IdMap chunkIds;
+    private final Dictionary<ClassRef> chunkClasses;
+    private final Dictionary<MethodRef> chunkMethods;
+    private final Dictionary<StackTrace> chunkStackTraces;
 
     private int executionSample;
     private int nativeMethodSample;
@@ -69,17 +114,87 @@ public class JfrReader implements Closeable {
     private int allocationSample;
     private int monitorEnter;
     private int threadPark;
+    private int activeSetting;
 
     private boolean hasPreviousOwner;
     private boolean hasParkUntil;
 
+    // Handlers of arbitrary event types by event name, and their layouts in the current chunk by type id
+    private final Map<String, EventRecord> records = new LinkedHashMap<>();
+    private EventRecord[] recordsByType = new EventRecord[0];
+    private RecordLayout[] layoutsByType = new RecordLayout[0];
+
+    // Constant pools whose values are single strings, like jdk.types.GCName, by type id.
+    // Dictionary does not allow zero keys, so values are stored under id + 1
+    private final Map<Integer, Dictionary<String>> stringPools = new HashMap<>();
+
     public JfrReader(String fileName) throws IOException {
-        this.ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
-        this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this(fileName, 0);
+    }
+
+    public JfrReader(String fileName, int flags) throws IOException {
+        this(fileName, flags, null, null);
+    }
+
+    // Reads only events accepted by the filter. With the chunk index, chunks
+    // that cannot contain such events are skipped without being read at all.
+    // Constants of all chunks share one id space. In LAZY mode, methods and
+    // stack traces join it only when an event refers to them
+    public JfrReader(String fileName, int flags, EventFilter filter, ChunkIndex index) throws IOException {
+        this(FileChannel.open(Paths.get(fileName), StandardOpenOption.READ), flags,
+                0, Long.MAX_VALUE, filter, index, true);
+    }
+
+    // Reads a single chunk of a file shared with other readers.
+    // All file access is positional, so such readers may run concurrently
+    JfrReader(FileChannel ch, int flags, ChunkHeader chunk, EventFilter filter) throws IOException {
+        this(ch, flags, chunk.offset, chunk.offset + chunk.size, filter, null, false);
+    }
+
+    private JfrReader(FileChannel ch, int flags, long startPosition, long endPosition,
+                      EventFilter filter, ChunkIndex index, boolean mergeChunks) throws IOException {
+        this.ch = ch;
+        this.flags = flags;
+        this.mmap = (flags & MMAP) != 0;
+        this.lazy = (flags & LAZY) != 0;
+        this.follow = (flags & FOLLOW) != 0;
+        this.endPosition = endPosition;
+        this.filter = filter;
+        this.index = index;
+
+        if (mergeChunks) {
+            this.merger = new ConstantMerger(symbols, classes, lazy ? LAZY_CACHE_SIZE : 0);
+            this.methods = merger.methods;
+            this.stackTraces = merger.stackTraces;
+            this.chunkIds = new ConstantMerger.IdMap();
+            this.chunkClasses = new Dictionary<>();
+            this.chunkMethods = lazy ? lazyMethods() : new Dictionary<MethodRef>();
+            this.chunkStackTraces = lazy ? lazyStackTraces() : new Dictionary<StackTrace>();
+        } else {
+            this.methods = lazy ? lazyMethods() : new Dictionary<MethodRef>();
+            this.stackTraces = lazy ? lazyStackTraces() : new Dictionary<StackTrace>();
+            this.merger = null;
+            this.chunkIds = null;
+            this.chunkClasses = classes;
+            this.chunkMethods = methods;
+            this.chunkStackTraces = stackTraces;
+        }
+
+        if (mmap) {
+            map(startPosition);
+        } else {
+            buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            seek(startPosition);
+        }
+
+        // A live recording may have no finished chunks yet, so they are all read by follow()
+        if (follow) {
+            chunkEnd = startPosition;
+            return;
+        }
 
-        buf.flip();
         ensureBytes(CHUNK_HEADER_SIZE);
-        if (!readChunk(0)) {
+        if (!nextChunk(buf.position()) && index == null) {
             throw new IOException("Incomplete JFR file");
         }
     }
@@ -89,10 +204,64 @@ public class JfrReader implements Closeable {
         ch.close();
     }
 
+    private Dictionary<MethodRef> lazyMethods() {
+        return new LazyDictionary<MethodRef>(LAZY_CACHE_SIZE) {
+            @Override
+            MethodRef decode(long position, int length) throws IOException {
+                ByteBuffer saved = readLazy(position, length);
+                try {
+                    return new MethodRef(getVarlong(), getVarlong(), getVarlong());
+                } finally {
+                    buf = saved;
+                }
+            }
+        };
+    }
+
+    private Dictionary<StackTrace> lazyStackTraces() {
+        return new LazyDictionary<StackTrace>(LAZY_CACHE_SIZE) {
+            @Override
+            StackTrace decode(long position, int length) throws IOException {
+                ByteBuffer saved = readLazy(position, length);
+                try {
+                    return readStackTrace();
+                } finally {
+                    buf = saved;
+                }
+            }
+        };
+    }
+
     public long durationNanos() {
         return endNanos - startNanos;
     }
 
+    // Headers of all chunks in the file, read without parsing the chunks
+    public List<ChunkHeader> chunkHeaders() throws IOException {
+        return ChunkHeader.readAll(ch);
+    }
+
+    // Reads a recording that is still being written, like tail -f. The profiler writes metadata
+    // and constant pools at the end of a chunk, so events of every chunk are passed to the collector
+    // as soon as the chunk is finished. The file is polled until the listener asks to stop
+    public void follow(Class<? extends Event> cls, EventCollector collector, long pollMillis,
+                       FollowListener listener) throws IOException {
+        while (true) {
+            int before = chunksRead;
+            readEvents(cls, collector);
+            if (!listener.chunksRead(chunksRead - before)) {
+                return;
+            }
+
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+    }
+
     public List<Event> readAllEvents() throws IOException {
         return readAllEvents(null);
     }
@@ -118,22 +287,29 @@ public class JfrReader implements Closeable {
             int type = getVarint();
 
             if (type == 'L' && buf.getInt(pos) == CHUNK_SIGNATURE) {
-                if (readChunk(pos)) {
+                if (nextChunk(pos)) {
                     continue;
                 }
                 break;
             }
 
+            Event event = null;
             if (type == executionSample || type == nativeMethodSample) {
-                if (cls == null || cls == ExecutionSample.class) return (E) readExecutionSample();
+                if (cls == null || cls == ExecutionSample.class) event = readExecutionSample();
             } else if (type == allocationInNewTLAB) {
-                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(true);
+                if (cls == null || cls == AllocationSample.class) event = readAllocationSample(true);
             } else if (type == allocationOutsideTLAB || type == allocationSample) {
-                if (cls == null || cls == AllocationSample.class) return (E) readAllocationSample(false);
+                if (cls == null || cls == AllocationSample.class) event = readAllocationSample(false);
             } else if (type == monitorEnter) {
-                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(false, hasPreviousOwner);
+                if (cls == null || cls == ContendedLock.class) event = readContendedLock(false, hasPreviousOwner);
             } else if (type == threadPark) {
-                if (cls == null || cls == ContendedLock.class) return (E) readContendedLock(true, hasParkUntil);
+                if (cls == null || cls == ContendedLock.class) event = readContendedLock(true, hasParkUntil);
+            } else if (type == activeSetting) {
+                pos = readActiveSetting(pos, size);
+            }
+
+            if (event != null && (filter == null || accept(event))) {
+                return (E) event;
             }
 
             if ((pos += size) <= buf.limit()) {
@@ -145,19 +321,298 @@ public class JfrReader implements Closeable {
         return null;
     }
 
-    private ExecutionSample readExecutionSample() {
+    // Decodes events straight into the collector without creating Event objects
+    public void readEvents(Class<? extends Event> cls, EventCollector collector) throws IOException {
+        while (readChunkEvents(cls, collector)) {
+            // continue with the next chunk
+        }
+    }
+
+    // Same as readEvents, but stops at the end of the current chunk. Ids of all chunks
+    // share one space, so collected events can be processed chunk by chunk.
+    // Returns false if there are no more chunks
+    public boolean readChunkEvents(Class<? extends Event> cls, EventCollector collector) throws IOException {
+        while (ensureBytes(CHUNK_HEADER_SIZE)) {
+            int pos = buf.position();
+            // The next chunk header of a live recording may be written only in part,
+            // so it is not parsed as an event
+            if (follow && filePosition + pos == chunkEnd) {
+                return nextChunk(pos);
+            }
+
+            int size = getVarint();
+            int type = getVarint();
+
+            if (type == 'L' && buf.getInt(pos) == CHUNK_SIGNATURE) {
+                return nextChunk(pos);
+            }
+
+            if (type == executionSample || type == nativeMethodSample) {
+                if (cls == null || cls == ExecutionSample.class) collectExecutionSample(collector);
+            } else if (type == allocationInNewTLAB) {
+                if (cls == null || cls == AllocationSample.class) collectAllocationSample(collector, true);
+            } else if (type == allocationOutsideTLAB || type == allocationSample) {
+                if (cls == null || cls == AllocationSample.class) collectAllocationSample(collector, false);
+            } else if (type == monitorEnter) {
+                if (cls == null || cls == ContendedLock.class) collectContendedLock(collector, false, hasPreviousOwner);
+            } else if (type == threadPark) {
+                if (cls == null || cls == ContendedLock.class) collectContendedLock(collector, true, hasParkUntil);
+            } else if (type == activeSetting) {
+                pos = readActiveSetting(pos, size);
+            }
+
+            if ((pos += size) <= buf.limit()) {
+                buf.position(pos);
+            } else {
+                seek(filePosition + pos);
+            }
+        }
+        return false;
+    }
+
+    // Registers a handler for every event of the given type, e.g. "jdk.GarbageCollection".
+    // Only the requested fields are decoded; see EventRecord. Events are passed by readRecords()
+    public void addRecordHandler(String eventName, String[] fieldNames, EventRecord.Handler handler) {
+        records.put(eventName, new EventRecord(eventName, fieldNames.clone(), handler));
+        if (chunksRead > 0) {
+            compileRecordLayouts();
+        }
+    }
+
+    // Passes events of all registered types to their handlers. The time and thread filter
+    // applies only to built-in event types
+    public void readRecords() throws IOException {
+        while (ensureBytes(CHUNK_HEADER_SIZE)) {
+            int pos = buf.position();
+            int size = getVarint();
+            int type = getVarint();
+
+            if (type == 'L' && buf.getInt(pos) == CHUNK_SIGNATURE) {
+                if (nextChunk(pos)) {
+                    continue;
+                }
+                break;
+            }
+
+            if (type >= 0 && type < recordsByType.length && recordsByType[type] != null) {
+                if (pos + size > buf.limit()) {
+                    // Unlike built-in events, a record may contain long strings
+                    buf.position(pos);
+                    ensureBytes(size);
+                    pos = buf.position();
+                    getVarint();
+                    getVarint();
+                }
+                EventRecord record = recordsByType[type];
+                record.clear();
+                readRecord(layoutsByType[type], record);
+                record.handler.handle(record);
+            }
+
+            if ((pos += size) <= buf.limit()) {
+                buf.position(pos);
+            } else {
+                seek(filePosition + pos);
+            }
+        }
+    }
+
+    // Fields that are not requested (record == null for nested values) are skipped
+    private void readRecord(RecordLayout layout, EventRecord record) {
+        int[] kinds = layout.kinds;
+        for (int i = 0; i < kinds.length; i++) {
+            int slot = record != null ? layout.slots[i] : -1;
+            if (layout.arrays[i]) {
+                int length = getVarint();
+                for (int j = 0; j < length; j++) {
+                    readValue(layout, i);
+                }
+                if (slot >= 0) {
+                    record.values[slot] = length;
+                }
+            } else if (slot < 0) {
+                readValue(layout, i);
+            } else if (kinds[i] == RecordLayout.STRING) {
+                record.strings[slot] = getString();
+            } else {
+                long value = readValue(layout, i);
+                record.values[slot] = value;
+                if (layout.stringPools[i] != null) {
+                    record.strings[slot] = (String) layout.stringPools[i].get(value + 1);
+                }
+            }
+        }
+    }
+
+    private long readValue(RecordLayout layout, int field) {
+        switch (layout.kinds[field]) {
+            case RecordLayout.BYTE:
+                return buf.get();
+            case RecordLayout.FLOAT:
+                return Double.doubleToRawLongBits(buf.getFloat());
+            case RecordLayout.DOUBLE:
+                return Double.doubleToRawLongBits(buf.getDouble());
+            case RecordLayout.STRING:
+                skipString();
+                return 0;
+            case RecordLayout.STACK_TRACE:
+                return stackTraceId((int) getVarlong());
+            case RecordLayout.CLASS:
+                return classId((int) getVarlong());
+            case RecordLayout.METHOD:
+                return methodId(getVarlong());
+            case RecordLayout.SYMBOL:
+                return chunkIds == null ? getVarlong() : chunkIds.symbolId(getVarlong());
+            case RecordLayout.STRUCT:
+                readRecord(layout.structs[field], null);
+                return 0;
+            default:
+                return getVarlong();
+        }
+    }
+
+    private void collectExecutionSample(EventCollector collector) {
         long time = getVarlong();
         int tid = getVarint();
         int stackTraceId = getVarint();
         int threadState = getVarint();
+        if (filter == null || accept(time, tid)) {
+            collector.collect(EventCollector.EXECUTION_SAMPLE, time, tid, stackTraceId(stackTraceId), threadState, 1);
+        }
+    }
+
+    private void collectAllocationSample(EventCollector collector, boolean tlab) {
+        long time = getVarlong();
+        int tid = getVarint();
+        int stackTraceId = getVarint();
+        int classId = classId(getVarint());
+        long allocationSize = getVarlong();
+        long tlabSize = tlab ? getVarlong() : 0;
+        if (filter == null || accept(time, tid)) {
+            if (tlabSize != 0) {
+                collector.collect(EventCollector.ALLOCATION_IN_NEW_TLAB, time, tid, stackTraceId(stackTraceId), classId, tlabSize);
+            } else {
+                collector.collect(EventCollector.ALLOCATION_OUTSIDE_TLAB, time, tid, stackTraceId(stackTraceId), classId, allocationSize);
+            }
+        }
+    }
+
+    private void collectContendedLock(EventCollector collector, boolean hasTimeout, boolean hasExtraField) {
+        long time = getVarlong();
+        long duration = getVarlong();
+        int tid = getVarint();
+        int stackTraceId = getVarint();
+        int classId = classId(getVarint());
+        if (filter == null || accept(time, tid)) {
+            collector.collect(EventCollector.CONTENDED_LOCK, time, tid, stackTraceId(stackTraceId), classId, duration);
+        }
+    }
+
+    private int stackTraceId(int id) {
+        if (chunkIds == null) {
+            return id;
+        }
+        return lazy ? merger.stackTraceId(id, chunkMethods, chunkStackTraces, chunkIds) : chunkIds.stackTraceId(id);
+    }
+
+    private long methodId(long id) {
+        if (chunkIds == null) {
+            return id;
+        }
+        return lazy ? merger.methodId(id, chunkMethods, chunkIds) : chunkIds.methodId(id);
+    }
+
+    private int classId(int id) {
+        return chunkIds == null ? id : (int) chunkIds.classId(id);
+    }
+
+    private boolean accept(Event event) {
+        return accept(event.time, event.tid);
+    }
+
+    private boolean accept(long time, int tid) {
+        return time >= fromTicks && time <= toTicks && filter.acceptsThread(tid);
+    }
+
+    // Counts events of every type in the current chunk and collects thread ids of samples
+    ChunkIndex.Entry indexChunk(ChunkHeader header) throws IOException {
+        long[] counts = new long[64];
+        int[] threads = new int[16];
+        int threadCount = 0;
+
+        while (ensureBytes(CHUNK_HEADER_SIZE)) {
+            int pos = buf.position();
+            int size = getVarint();
+            int type = getVarint();
+
+            if (type == 'L' && buf.getInt(pos) == CHUNK_SIGNATURE) {
+                break;
+            }
+
+            if (type >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(type + 1, counts.length * 2));
+            }
+            counts[type]++;
+
+            int tid = 0;
+            if (type == executionSample || type == nativeMethodSample || type == allocationInNewTLAB
+                    || type == allocationOutsideTLAB || type == allocationSample) {
+                getVarlong();
+                tid = getVarint();
+            } else if (type == monitorEnter || type == threadPark) {
+                getVarlong();
+                getVarlong();
+                tid = getVarint();
+            }
+
+            if (tid != 0) {
+                if (threadCount == threads.length) {
+                    threads = Arrays.copyOf(threads, threadCount * 2);
+                }
+                threads[threadCount++] = tid;
+            }
+
+            if ((pos += size) <= buf.limit()) {
+                buf.position(pos);
+            } else {
+                seek(filePosition + pos);
+            }
+        }
+
+        Map<String, Long> eventCounts = new TreeMap<>();
+        for (JfrClass cls : typesByName.values()) {
+            if (cls.id >= 0 && cls.id < counts.length && counts[cls.id] > 0) {
+                eventCounts.put(cls.name, counts[cls.id]);
+            }
+        }
+
+        return new ChunkIndex.Entry(header, eventCounts, distinct(threads, threadCount));
+    }
+
+    private static int[] distinct(int[] array, int length) {
+        Arrays.sort(array, 0, length);
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (count == 0 || array[i] != array[count - 1]) {
+                array[count++] = array[i];
+            }
+        }
+        return Arrays.copyOf(array, count);
+    }
+
+    private ExecutionSample readExecutionSample() {
+        long time = getVarlong();
+        int tid = getVarint();
+        int stackTraceId = stackTraceId(getVarint());
+        int threadState = getVarint();
         return new ExecutionSample(time, tid, stackTraceId, threadState);
     }
 
     private AllocationSample readAllocationSample(boolean tlab) {
         long time = getVarlong();
         int tid = getVarint();
-        int stackTraceId = getVarint();
-        int classId = getVarint();
+        int stackTraceId = stackTraceId(getVarint());
+        int classId = classId(getVarint());
         long allocationSize = getVarlong();
         long tlabSize = tlab ? getVarlong() : 0;
         return new AllocationSample(time, tid, stackTraceId, classId, allocationSize, tlabSize);
@@ -167,15 +622,38 @@ public class JfrReader implements Closeable {
         long time = getVarlong();
         long duration = getVarlong();
         int tid = getVarint();
-        int stackTraceId = getVarint();
-        int classId = getVarint();
+        int stackTraceId = stackTraceId(getVarint());
+        int classId = classId(getVarint());
         if (hasTimeout) getVarlong();
         if (hasExtraField) getVarlong();
         long address = getVarlong();
         return new ContendedLock(time, tid, stackTraceId, duration, classId);
     }
 
+    // Moves to the next chunk that may contain events of interest and reads its metadata
+    private boolean nextChunk(int pos) throws IOException {
+        long offset = filePosition + pos;
+        if (index != null) {
+            ChunkIndex.Entry next = index.next(offset, filter);
+            if (next == null) {
+                return false;
+            }
+            if (next.header.offset != offset) {
+                seek(offset = next.header.offset);
+                ensureBytes(CHUNK_HEADER_SIZE);
+                pos = buf.position();
+            }
+        }
+        return offset < endPosition && readChunk(pos);
+    }
+
     private boolean readChunk(int pos) throws IOException {
+        if (follow && pos + CHUNK_HEADER_SIZE > buf.limit()) {
+            // The header is not written yet
+            seek(filePosition + pos);
+            incomplete = true;
+            return false;
+        }
         if (pos + CHUNK_HEADER_SIZE > buf.limit() || buf.getInt(pos) != CHUNK_SIGNATURE) {
             throw new IOException("Not a valid JFR file");
         }
@@ -188,32 +666,72 @@ public class JfrReader implements Closeable {
         long cpOffset = buf.getLong(pos + 16);
         long metaOffset = buf.getLong(pos + 24);
         if (cpOffset == 0 || metaOffset == 0) {
+            // Stay at the chunk header and drop the buffered data, so that a later read sees the finished chunk
+            seek(filePosition + pos);
             incomplete = true;
             return false;
         }
 
-        startNanos = Math.min(startNanos, buf.getLong(pos + 32));
-        endNanos = Math.max(endNanos, buf.getLong(pos + 32) + buf.getLong(pos + 40));
-        startTicks = Math.min(startTicks, buf.getLong(pos + 48));
+        chunkStartNanos = buf.getLong(pos + 32);
+        chunkStartTicks = buf.getLong(pos + 48);
+        startNanos = Math.min(startNanos, chunkStartNanos);
+        endNanos = Math.max(endNanos, chunkStartNanos + buf.getLong(pos + 40));
+        startTicks = Math.min(startTicks, chunkStartTicks);
         ticksPerSec = buf.getLong(pos + 56);
 
+        if (filter != null) {
+            ChunkHeader header = new ChunkHeader(filePosition + pos, buf, pos);
+            fromTicks = filter.fromTicks(header);
+            toTicks = filter.toTicks(header);
+        }
+
         types.clear();
         typesByName.clear();
+        stringPools.clear();
 
         long chunkStart = filePosition + pos;
+        chunkEnd = chunkStart + buf.getLong(pos + 8);
         readMeta(chunkStart + metaOffset);
+        if (chunkIds != null) {
+            chunkIds.clear();
+        }
+        if (lazy) {
+            chunkMethods.clear();
+            chunkStackTraces.clear();
+        }
         readConstantPool(chunkStart + cpOffset);
+        mergeConstants();
         cacheEventTypes();
+        compileRecordLayouts();
 
         seek(chunkStart + CHUNK_HEADER_SIZE);
+        chunksRead++;
         return true;
     }
 
+    // Lazy methods and stack traces stay in the chunk pools until the next chunk,
+    // since they are merged only when events refer to them
+    private void mergeConstants() {
+        if (merger == null) {
+            return;
+        }
+
+        if (lazy) {
+            merger.mergeClasses(chunkClasses, chunkIds);
+        } else {
+            merger.merge(chunkClasses, chunkMethods, chunkStackTraces, chunkIds);
+            chunkMethods.clear();
+            chunkStackTraces.clear();
+        }
+        chunkClasses.clear();
+    }
+
     private void readMeta(long metaOffset) throws IOException {
         seek(metaOffset);
         ensureBytes(5);
 
-        ensureBytes(getVarint() - buf.position());
+        int start = buf.position();
+        ensureBytes(getVarint() - (buf.position() - start));
         getVarint();
         getVarlong();
         getVarlong();
@@ -266,7 +784,8 @@ public class JfrReader implements Closeable {
             seek(cpOffset);
             ensureBytes(5);
 
-            ensureBytes(getVarint() - buf.position());
+            int start = buf.position();
+            ensureBytes(getVarint() - (buf.position() - start));
             getVarint();
             getVarlong();
             getVarlong();
@@ -302,13 +821,13 @@ public class JfrReader implements Closeable {
                 readStackTraces();
                 break;
             case "jdk.types.FrameType":
-                readMap(frameTypes);
+                readMap(frameTypes, type);
                 break;
             case "jdk.types.ThreadState":
-                readMap(threadStates);
+                readMap(threadStates, type);
                 break;
             default:
-                readOtherConstants(type.fields);
+                readOtherConstants(type);
         }
     }
 
@@ -326,7 +845,7 @@ public class JfrReader implements Closeable {
     }
 
     private void readClasses(boolean hasHidden) {
-        int count = classes.preallocate(getVarint());
+        int count = chunkClasses.preallocate(getVarint());
         for (int i = 0; i < count; i++) {
             long id = getVarlong();
             long loader = getVarlong();
@@ -334,30 +853,46 @@ public class JfrReader implements Closeable {
             long pkg = getVarlong();
             int modifiers = getVarint();
             if (hasHidden) getVarint();
-            classes.put(id, new ClassRef(name));
+            chunkClasses.put(id, new ClassRef(name, loader));
         }
     }
 
     private void readMethods() {
-        int count = methods.preallocate(getVarint());
+        int count = chunkMethods.preallocate(getVarint());
         for (int i = 0; i < count; i++) {
             long id = getVarlong();
+            if (lazy) {
+                int start = buf.position();
+                getVarlong();
+                getVarlong();
+                getVarlong();
+                getVarint();
+                getVarint();
+                putLocation(chunkMethods, id, start);
+                continue;
+            }
             long cls = getVarlong();
             long name = getVarlong();
             long sig = getVarlong();
             int modifiers = getVarint();
             int hidden = getVarint();
-            methods.put(id, new MethodRef(cls, name, sig));
+            chunkMethods.put(id, new MethodRef(cls, name, sig));
         }
     }
 
     private void readStackTraces() {
-        int count = stackTraces.preallocate(getVarint());
+        int count = chunkStackTraces.preallocate(getVarint());
         for (int i = 0; i < count; i++) {
             long id = getVarlong();
             int truncated = getVarint();
+            if (lazy) {
+                int start = buf.position();
+                skipStackTrace();
+                putLocation(chunkStackTraces, id, start);
+                continue;
+            }
             StackTrace stackTrace = readStackTrace();
-            stackTraces.put(id, stackTrace);
+            chunkStackTraces.put(id, stackTrace);
         }
     }
 
@@ -376,47 +911,87 @@ public class JfrReader implements Closeable {
         return new StackTrace(methods, types, locations);
     }
 
+    private void skipStackTrace() {
+        for (int depth = getVarint(); depth > 0; depth--) {
+            getVarlong();
+            getVarint();
+            getVarint();
+            buf.get();
+        }
+    }
+
+    // Symbol bytes are copied straight from the buffer into the symbol table.
+    // When chunks are merged, equal symbols of all chunks get the same id
     private void readSymbols() {
-        int count = symbols.preallocate(getVarint());
+        int count = getVarint();
         for (int i = 0; i < count; i++) {
             long id = getVarlong();
             if (buf.get() != 3) {
                 throw new IllegalArgumentException("Invalid symbol encoding");
             }
-            symbols.put(id, getBytes());
+            int length = getVarint();
+            int start = buf.position();
+            if (chunkIds != null) {
+                chunkIds.symbols.put(id, symbols.intern(buf, start, length));
+            } else {
+                symbols.put(id, buf, start, length);
+            }
+            buf.position(start + length);
         }
     }
 
-    private void readMap(Map<Integer, String> map) {
-        int count = getVarint();
-        for (int i = 0; i < count; i++) {
-            map.put(getVarint(), getString());
-        }
+    private void putLocation(Dictionary<?> dictionary, long id, int start) {
+        ((LazyDictionary<?>) dictionary).putLocation(id, filePosition + start, buf.position() - start);
     }
 
-    private void readOtherConstants(List<JfrField> fields) {
-        int stringType = getTypeId("java.lang.String");
-
-        boolean[] numeric = new boolean[fields.size()];
-        for (int i = 0; i < numeric.length; i++) {
-            JfrField f = fields.get(i);
-            numeric[i] = f.constantPool || f.type != stringType;
+    // Reads a lazily decoded constant into a separate buffer and makes it current.
+    // Returns the main buffer, which the caller must restore afterwards
+    private ByteBuffer readLazy(long position, int length) throws IOException {
+        if (lazyBuf == null || lazyBuf.capacity() < length) {
+            lazyBuf = ByteBuffer.allocate(Math.max(length, 4096));
+        }
+        lazyBuf.clear();
+        lazyBuf.limit(length);
+        while (lazyBuf.hasRemaining() && ch.read(lazyBuf, position + lazyBuf.position()) > 0) {
+            // keep reading
         }
+        lazyBuf.flip();
+
+        ByteBuffer saved = buf;
+        buf = lazyBuf;
+        return saved;
+    }
 
+    // Frame types and thread states are pools of names too, so they are also kept for EventRecord
+    private void readMap(Map<Integer, String> map, JfrClass type) {
+        Dictionary<String> pool = new Dictionary<>();
         int count = getVarint();
         for (int i = 0; i < count; i++) {
-            getVarlong();
-            readFields(numeric);
+            int id = getVarint();
+            String name = getString();
+            map.put(id, name);
+            pool.put(id + 1, name);
         }
+        stringPools.put(type.id, pool);
     }
 
-    private void readFields(boolean[] numeric) {
-        for (boolean n : numeric) {
-            if (n) {
-                getVarlong();
-            } else {
-                getString();
+    // Pools of names are kept for EventRecord; other pools are decoded only to be skipped
+    private void readOtherConstants(JfrClass type) {
+        if (RecordLayout.isStringValue(type, types)) {
+            Dictionary<String> pool = new Dictionary<>();
+            int count = getVarint();
+            for (int i = 0; i < count; i++) {
+                pool.put(getVarlong() + 1, getString());
             }
+            stringPools.put(type.id, pool);
+            return;
+        }
+
+        RecordLayout layout = RecordLayout.compile(type, null, types, stringPools);
+        int count = getVarint();
+        for (int i = 0; i < count; i++) {
+            getVarlong();
+            readRecord(layout, null);
         }
     }
 
@@ -428,11 +1003,32 @@ public class JfrReader implements Closeable {
         allocationSample = getTypeId("jdk.ObjectAllocationSample");
         monitorEnter = getTypeId("jdk.JavaMonitorEnter");
         threadPark = getTypeId("jdk.ThreadPark");
+        activeSetting = getTypeId("jdk.ActiveSetting");
 
         hasPreviousOwner = hasField("jdk.JavaMonitorEnter", "previousOwner");
         hasParkUntil = hasField("jdk.ThreadPark", "until");
     }
 
+    private void compileRecordLayouts() {
+        int maxId = -1;
+        for (String name : records.keySet()) {
+            JfrClass type = typesByName.get(name);
+            if (type != null) {
+                maxId = Math.max(maxId, type.id);
+            }
+        }
+
+        recordsByType = new EventRecord[maxId + 1];
+        layoutsByType = new RecordLayout[maxId + 1];
+        for (EventRecord record : records.values()) {
+            JfrClass type = typesByName.get(record.typeName());
+            if (type != null) {
+                recordsByType[type.id] = record;
+                layoutsByType[type.id] = RecordLayout.compile(type, record.fieldNames(), types, stringPools);
+            }
+        }
+    }
+
     private int getTypeId(String typeName) {
         JfrClass type = typesByName.get(typeName);
         return type != null ? type.id : -1;
@@ -466,6 +1062,30 @@ public class JfrReader implements Closeable {
         return result | (buf.get() & 0xffL) << 56;
     }
 
+    // Returns the event position, which moves if the buffer is refilled
+    private int readActiveSetting(int pos, int size) throws IOException {
+        if (pos + size > buf.limit()) {
+            // Settings may contain long strings, like include patterns
+            buf.position(pos);
+            ensureBytes(size);
+            pos = buf.position();
+            getVarint();
+            getVarint();
+        }
+
+        // Fields before the setting name are numbers or constant pool references
+        for (JfrField field : typesByName.get("jdk.ActiveSetting").fields) {
+            getVarlong();
+            if ("id".equals(field.name)) {
+                break;
+            }
+        }
+        String name = getString();
+        String value = getString();
+        settings.put(name, value);
+        return pos;
+    }
+
     private String getString() {
         switch (buf.get()) {
             case 0:
@@ -488,15 +1108,44 @@ public class JfrReader implements Closeable {
         }
     }
 
+    private void skipString() {
+        switch (buf.get()) {
+            case 3:
+            case 5: {
+                int length = getVarint();
+                buf.position(buf.position() + length);
+                break;
+            }
+            case 4:
+                for (int length = getVarint(); length > 0; length--) {
+                    getVarint();
+                }
+                break;
+            case 0:
+            case 1:
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid string encoding");
+        }
+    }
+
     private byte[] getBytes() {
         byte[] bytes = new byte[getVarint()];
         buf.get(bytes);
         return bytes;
     }
 
-    private void seek(long pos) throws IOException {
+    void seek(long pos) throws IOException {
+        if (mmap) {
+            if (pos >= filePosition && pos <= filePosition + buf.limit()) {
+                buf.position((int) (pos - filePosition));
+            } else {
+                map(pos);
+            }
+            return;
+        }
+
         filePosition = pos;
-        ch.position(pos);
         buf.rewind().flip();
     }
 
@@ -505,6 +1154,14 @@ public class JfrReader implements Closeable {
             return true;
         }
 
+        if (mmap) {
+            // Move the window so that it starts at the current position, unless it already ends at EOF
+            if (filePosition + buf.limit() < Math.min(ch.size(), endPosition)) {
+                map(filePosition + buf.position());
+            }
+            return buf.hasRemaining();
+        }
+
         filePosition += buf.position();
 
         if (buf.capacity() < needed) {
@@ -515,10 +1172,24 @@ public class JfrReader implements Closeable {
             buf.compact();
         }
 
-        while (ch.read(buf) > 0 && buf.position() < needed) {
+        while (ch.read(buf, filePosition + buf.position()) > 0 && buf.position() < needed) {
             // keep reading
         }
         buf.flip();
         return buf.limit() > 0;
     }
+
+    // Files larger than 2 GB are mapped by windows; a window is remapped when
+    // a seek goes outside of it or when a read crosses its end
+    private void map(long pos) throws IOException {
+        filePosition = pos;
+        long size = Math.min(ch.size(), endPosition) - pos;
+        buf = ch.map(MapMode.READ_ONLY, pos, Math.max(Math.min(size, MAX_MAPPING_SIZE), 0));
+    }
+
+    public interface FollowListener {
+        // Called after every poll with the number of chunks whose events have just been collected.
+        // Returns false to stop following
+        boolean chunksRead(int count) throws IOException;
+    }
 }
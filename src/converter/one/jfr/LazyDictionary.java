@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Dictionary that keeps only the file location of each constant and decodes it on first access.
+ * Decoded values are cached, least recently used ones are evicted when the cache is full.
+ * Values added with put() are stored as is.
+ */
+abstract class LazyDictionary<T> extends Dictionary<T> {
+    private final Cache<T> cache;
+    private final Locations locations;
+
+    LazyDictionary(int cacheSize) {
+        this.cache = new Cache<>(cacheSize);
+        this.locations = new Locations();
+    }
+
+    abstract T decode(long position, int length) throws IOException;
+
+    @Override
+    public void clear() {
+        super.clear();
+        cache.clear();
+        locations.clear();
+    }
+
+    public void putLocation(long key, long position, int length) {
+        cache.remove(key);
+
+        int i = locations.insert(key);
+        long[] segment = (long[]) locations.values[i >>> SEGMENT_BITS];
+        segment[(i & SEGMENT_MASK) * 2] = position;
+        segment[(i & SEGMENT_MASK) * 2 + 1] = length;
+    }
+
+    @Override
+    public T get(long key) {
+        T value = super.get(key);
+        if (value != null) {
+            return value;
+        }
+
+        value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+
+        int i = locations.find(key);
+        if (i < 0) {
+            return null;
+        }
+
+        value = decodeAt((long[]) locations.values[i >>> SEGMENT_BITS], i & SEGMENT_MASK);
+        cache.put(key, value);
+        return value;
+    }
+
+    // Decodes every constant, but does not pollute the cache with them
+    @Override
+    public void forEach(Visitor<T> visitor) {
+        super.forEach(visitor);
+
+        locations.finishRehash();
+        long[][] keys = locations.keys;
+        for (int s = 0; s < keys.length; s++) {
+            long[] segmentKeys = keys[s];
+            if (segmentKeys != null) {
+                long[] segmentLocations = (long[]) locations.values[s];
+                for (int i = 0; i < segmentKeys.length; i++) {
+                    if (segmentKeys[i] != 0) {
+                        T value = cache.get(segmentKeys[i]);
+                        visitor.visit(segmentKeys[i], value != null ? value : decodeAt(segmentLocations, i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int preallocate(int count) {
+        return locations.preallocate(count);
+    }
+
+    private T decodeAt(long[] segment, int i) {
+        try {
+            return decode(segment[i * 2], (int) segment[i * 2 + 1]);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read constant pool", e);
+        }
+    }
+
+    // Position and length of each constant, stored as a pair of longs per slot
+    static class Locations extends LongHashTable {
+        @Override
+        Object newValues(int length) {
+            return new long[length * 2];
+        }
+
+        @Override
+        void moveValue(Object from, int fromIndex, Object to, int toIndex) {
+            ((long[]) to)[toIndex * 2] = ((long[]) from)[fromIndex * 2];
+            ((long[]) to)[toIndex * 2 + 1] = ((long[]) from)[fromIndex * 2 + 1];
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class Cache<T> extends LinkedHashMap<Long, T> {
+        private final int maxSize;
+
+        Cache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+/**
+ * Same as {@link Dictionary}, but values are primitive longs, so that no wrapper object
+ * is created per entry.
+ */
+public class LongDictionary extends LongHashTable {
+    @Override
+    Object newValues(int length) {
+        return new long[length];
+    }
+
+    @Override
+    void moveValue(Object from, int fromIndex, Object to, int toIndex) {
+        ((long[]) to)[toIndex] = ((long[]) from)[fromIndex];
+    }
+
+    public void put(long key, long value) {
+        int i = insert(key);
+        ((long[]) values[i >>> SEGMENT_BITS])[i & SEGMENT_MASK] = value;
+    }
+
+    // Returns defaultValue if there is no such key
+    public long get(long key, long defaultValue) {
+        int i = find(key);
+        return i >= 0 ? ((long[]) values[i >>> SEGMENT_BITS])[i & SEGMENT_MASK] : defaultValue;
+    }
+
+    public void forEach(Visitor visitor) {
+        finishRehash();
+
+        for (int s = 0; s < keys.length; s++) {
+            long[] segmentKeys = keys[s];
+            if (segmentKeys != null) {
+                long[] segmentValues = (long[]) values[s];
+                for (int i = 0; i < segmentKeys.length; i++) {
+                    if (segmentKeys[i] != 0) {
+                        visitor.visit(segmentKeys[i], segmentValues[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table of non-zero long keys, shared by all dictionaries.
+ * Subclasses keep values in arrays parallel to the keys: the table only asks them
+ * to allocate such an array and to move a value between two arrays.
+ * The table is split into segments that are allocated on first use, and large tables are resized
+ * incrementally: entries of the old table are moved a few slots per insert. This way no single put
+ * has to allocate or rehash a table of millions of entries. Capacity is retained across clear(),
+ * so that the table does not grow from scratch for every chunk.
+ */
+abstract class LongHashTable {
+    static final int SEGMENT_BITS = 12;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int REHASH_STEP = 16;
+
+    // Segments of keys and values; a missing segment has no entries
+    long[][] keys;
+    Object[] values;
+    private int mask;
+    private int size;
+
+    // Table being migrated during resize; slots below rehashIndex are already moved
+    private long[][] oldKeys;
+    private Object[] oldValues;
+    private int oldMask;
+    private int rehashIndex;
+
+    LongHashTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    // Allocates a value array for a segment of the given number of slots
+    abstract Object newValues(int length);
+
+    abstract void moveValue(Object from, int fromIndex, Object to, int toIndex);
+
+    public int size() {
+        return size;
+    }
+
+    // Keeps the capacity for reuse
+    public void clear() {
+        for (long[] segment : keys) {
+            if (segment != null) {
+                Arrays.fill(segment, 0);
+            }
+        }
+        oldKeys = null;
+        oldValues = null;
+        size = 0;
+    }
+
+    public int preallocate(int count) {
+        if ((size + count) * 2 > mask + 1) {
+            resize(Integer.highestOneBit((size + count) * 4 - 1));
+        }
+        return count;
+    }
+
+    // Returns the slot of the key, taking a free one if the key is new.
+    // The table grows beforehand, so the slot remains valid for storing the value.
+    final int insert(long key) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Zero key not allowed");
+        }
+
+        if (oldKeys != null) {
+            rehash(Math.min(rehashIndex + REHASH_STEP, oldMask + 1));
+        }
+        if ((size + 1) * 2 > mask + 1) {
+            resize((mask + 1) * 2);
+        }
+
+        int i = indexOf(keys, mask, key);
+        if (keyAt(keys, i) != key) {
+            setKey(i, key);
+            // The key is not new either if it is still waiting to be moved from the old table
+            if (oldKeys == null || keyAt(oldKeys, indexOf(oldKeys, oldMask, key)) != key) {
+                size++;
+            }
+        }
+        return i;
+    }
+
+    // Returns the slot of the key, or -1 if there is no such key
+    final int find(long key) {
+        long[][] keys = this.keys;
+        int mask = this.mask;
+        int i = hashCode(key) & mask;
+        while (true) {
+            long[] segment = keys[i >>> SEGMENT_BITS];
+            long k;
+            if (segment == null || (k = segment[i & SEGMENT_MASK]) == 0) {
+                return oldKeys == null ? -1 : findOld(key, i);
+            } else if (k == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // A key found in the old table is moved right away to the free slot where the probe has ended
+    private int findOld(long key, int freeSlot) {
+        int j = indexOf(oldKeys, oldMask, key);
+        if (key == 0 || keyAt(oldKeys, j) != key) {
+            return -1;
+        }
+
+        setKey(freeSlot, key);
+        moveValue(oldValues[j >>> SEGMENT_BITS], j & SEGMENT_MASK, values[freeSlot >>> SEGMENT_BITS], freeSlot & SEGMENT_MASK);
+        return freeSlot;
+    }
+
+    // Completes pending resize, so that all entries can be iterated over keys and values
+    final void finishRehash() {
+        if (oldKeys != null) {
+            rehash(oldMask + 1);
+        }
+    }
+
+    private void allocate(int capacity) {
+        int segmentSize = Math.min(capacity, SEGMENT_SIZE);
+        keys = new long[capacity / segmentSize][];
+        values = new Object[capacity / segmentSize];
+        mask = capacity - 1;
+        if (capacity <= SEGMENT_SIZE) {
+            keys[0] = new long[capacity];
+            values[0] = newValues(capacity);
+        }
+    }
+
+    private void resize(int newCapacity) {
+        finishRehash();
+
+        oldKeys = keys;
+        oldValues = values;
+        oldMask = mask;
+        rehashIndex = 0;
+        allocate(newCapacity);
+
+        // A single segment is cheap to move at once
+        if (oldMask < SEGMENT_SIZE) {
+            rehash(oldMask + 1);
+        }
+    }
+
+    // Moves old slots up to 'end' into the new table, unless the new table already has a newer value
+    private void rehash(int end) {
+        long[][] oldKeys = this.oldKeys;
+        for (int i = rehashIndex; i < end; i++) {
+            long key = keyAt(oldKeys, i);
+            if (key != 0) {
+                int j = indexOf(keys, mask, key);
+                if (keyAt(keys, j) == 0) {
+                    setKey(j, key);
+                    moveValue(oldValues[i >>> SEGMENT_BITS], i & SEGMENT_MASK, values[j >>> SEGMENT_BITS], j & SEGMENT_MASK);
+                }
+            }
+        }
+
+        rehashIndex = end;
+        if (end == oldMask + 1) {
+            this.oldKeys = null;
+            this.oldValues = null;
+        }
+    }
+
+    private void setKey(int i, long key) {
+        int s = i >>> SEGMENT_BITS;
+        if (keys[s] == null) {
+            keys[s] = new long[SEGMENT_SIZE];
+            values[s] = newValues(SEGMENT_SIZE);
+        }
+        keys[s][i & SEGMENT_MASK] = key;
+    }
+
+    // Slot of the key, or the empty slot where the probe ends
+    private static int indexOf(long[][] keys, int mask, long key) {
+        int i = hashCode(key) & mask;
+        while (true) {
+            long[] segment = keys[i >>> SEGMENT_BITS];
+            long k;
+            if (segment == null || (k = segment[i & SEGMENT_MASK]) == key || k == 0) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private static long keyAt(long[][] keys, int i) {
+        long[] segment = keys[i >>> SEGMENT_BITS];
+        return segment == null ? 0 : segment[i & SEGMENT_MASK];
+    }
+
+    private static int hashCode(long key) {
+        key *= 0xc6a4a7935bd1e995L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+/**
+ * Global pool of merged constants in LAZY mode. Constants are not kept as objects:
+ * each of them is stored only as its merge key in ConstantMerger, i.e. its fields
+ * encoded as varints, and is decoded from the key on access. Decoded values are cached,
+ * least recently used ones are evicted when the cache is full.
+ */
+abstract class MergedDictionary<T> extends Dictionary<T> {
+    private final SymbolTable encoded;
+    private final LazyDictionary.Cache<T> cache;
+    private byte[] buf = new byte[256];
+    private int pos;
+    private int limit;
+
+    MergedDictionary(SymbolTable encoded, int cacheSize) {
+        this.encoded = encoded;
+        this.cache = new LazyDictionary.Cache<>(cacheSize);
+    }
+
+    // Reads fields of the constant with getVarlong()
+    abstract T decode();
+
+    @Override
+    public int size() {
+        return encoded.size();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        cache.clear();
+    }
+
+    @Override
+    public T get(long key) {
+        T value = cache.get(key);
+        if (value == null && prepare(key)) {
+            cache.put(key, value = decode());
+        }
+        return value;
+    }
+
+    // Decodes every constant, but does not pollute the cache with them
+    @Override
+    public void forEach(Visitor<T> visitor) {
+        for (long key = 1, size = encoded.size(); key <= size; key++) {
+            T value = cache.get(key);
+            if (value == null && prepare(key)) {
+                value = decode();
+            }
+            visitor.visit(key, value);
+        }
+    }
+
+    // Number of varints left in the key of the constant being decoded
+    int remainingVarlongs() {
+        int count = 0;
+        for (int i = pos; i < limit; i++) {
+            if (buf[i] >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    long getVarlong() {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf[pos++];
+            result |= (b & 0x7fL) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+    }
+
+    private boolean prepare(long key) {
+        int length = encoded.length(key);
+        if (length < 0) {
+            return false;
+        }
+        if (length > buf.length) {
+            buf = new byte[length];
+        }
+        encoded.copy(key, buf, 0);
+        pos = 0;
+        limit = length;
+        return true;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import one.jfr.event.AllocationSample;
+import one.jfr.event.ContendedLock;
+import one.jfr.event.Event;
+import one.jfr.event.EventCollector;
+import one.jfr.event.EventStore;
+import one.jfr.event.ExecutionSample;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses chunks of a JFR file concurrently. Every chunk has its own metadata
+ * and constant pools, so chunks are decoded independently on a fork-join pool,
+ * and then their dictionaries are merged into the global id space of the given JfrReader.
+ * The reader is left at the end of file.
+ */
+public class ParallelReader {
+    private final JfrReader jfr;
+    private final int parallelism;
+
+    public ParallelReader(JfrReader jfr) {
+        this(jfr, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelReader(JfrReader jfr, int parallelism) {
+        this.jfr = jfr;
+        this.parallelism = parallelism;
+    }
+
+    public List<Event> readAllEvents() throws IOException {
+        return readAllEvents(null);
+    }
+
+    public <E extends Event> List<E> readAllEvents(final Class<E> cls) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            List<List<E>> chunks = readChunks(pool, new ChunkReader<List<E>>() {
+                @Override
+                public List<E> read(JfrReader reader) throws IOException {
+                    return reader.readAllEvents(cls);
+                }
+
+                @Override
+                public List<E> remap(List<E> events, ConstantMerger.IdMap ids) {
+                    return remapEvents(events, ids);
+                }
+            });
+
+            int count = 0;
+            for (List<E> list : chunks) {
+                count += list.size();
+            }
+
+            ArrayList<E> events = new ArrayList<>(count);
+            for (List<E> list : chunks) {
+                events.addAll(list);
+            }
+
+            // Chunks follow each other in time, so the list is almost sorted already
+            Collections.sort(events);
+            jfr.seek(jfr.ch.size());
+            return events;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Passes events to the collector in time order. Every chunk collects its events
+    // into a columnar EventStore, where ids are then rewritten in place, so that
+    // no Event object is created on the way
+    public void readEvents(final Class<? extends Event> cls, EventCollector collector) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            List<EventStore> chunks = readChunks(pool, new ChunkReader<EventStore>() {
+                @Override
+                public EventStore read(JfrReader reader) throws IOException {
+                    EventStore events = new EventStore();
+                    reader.readEvents(cls, events);
+                    return events;
+                }
+
+                @Override
+                public EventStore remap(EventStore events, ConstantMerger.IdMap ids) {
+                    remapEvents(events, ids);
+                    events.sortByTime();
+                    return events;
+                }
+            });
+
+            collectInTimeOrder(chunks, collector);
+            jfr.seek(jfr.ch.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Parses chunks on the pool in batches of one chunk per thread. Constants of a batch
+    // are merged into the global id space in file order, then its events are remapped.
+    // A chunk reader with its buffer and dictionaries is dropped as soon as its chunk is merged,
+    // so no more than one batch of readers is alive at a time
+    private <T> List<T> readChunks(ForkJoinPool pool, final ChunkReader<T> chunkReader) throws IOException {
+        List<ChunkHeader> headers = selectChunks();
+        List<T> result = new ArrayList<>(headers.size());
+        clearDictionaries();
+
+        for (int start = 0; start < headers.size() && !jfr.incomplete; start += parallelism) {
+            List<ChunkHeader> batch = headers.subList(start, Math.min(start + parallelism, headers.size()));
+            List<Callable<Chunk<T>>> parseTasks = new ArrayList<>(batch.size());
+            for (final ChunkHeader header : batch) {
+                if (!header.isFinished()) {
+                    jfr.incomplete = true;
+                    break;
+                }
+                parseTasks.add(new Callable<Chunk<T>>() {
+                    @Override
+                    public Chunk<T> call() throws Exception {
+                        JfrReader reader = new JfrReader(jfr.ch, jfr.flags & JfrReader.MMAP, header, jfr.filter);
+                        return new Chunk<>(reader, chunkReader.read(reader));
+                    }
+                });
+            }
+
+            List<Callable<T>> remapTasks = new ArrayList<>(parseTasks.size());
+            for (final Chunk<T> chunk : getAll(pool.invokeAll(parseTasks))) {
+                merge(chunk);
+                chunk.reader = null;
+                remapTasks.add(new Callable<T>() {
+                    @Override
+                    public T call() {
+                        return chunkReader.remap(chunk.events, chunk.ids);
+                    }
+                });
+            }
+            result.addAll(getAll(pool.invokeAll(remapTasks)));
+        }
+        return result;
+    }
+
+    private List<ChunkHeader> selectChunks() throws IOException {
+        if (jfr.index == null) {
+            return ChunkHeader.readAll(jfr.ch);
+        }
+
+        List<ChunkHeader> headers = new ArrayList<>();
+        for (ChunkIndex.Entry entry : jfr.index.entries) {
+            if (jfr.filter == null || jfr.filter.acceptsChunk(entry)) {
+                headers.add(entry.header);
+            }
+        }
+        return headers;
+    }
+
+    private void clearDictionaries() {
+        jfr.threads.clear();
+        jfr.merger.clear();
+        jfr.startNanos = Long.MAX_VALUE;
+        jfr.endNanos = Long.MIN_VALUE;
+        jfr.startTicks = Long.MAX_VALUE;
+    }
+
+    // Assigns global ids to the chunk constants. Must be called for chunks in file order
+    private void merge(Chunk<?> chunk) {
+        JfrReader src = chunk.reader;
+
+        jfr.startNanos = Math.min(jfr.startNanos, src.startNanos);
+        jfr.endNanos = Math.max(jfr.endNanos, src.endNanos);
+        jfr.startTicks = Math.min(jfr.startTicks, src.startTicks);
+        jfr.ticksPerSec = src.ticksPerSec;
+        jfr.frameTypes.putAll(src.frameTypes);
+        jfr.threadStates.putAll(src.threadStates);
+
+        // Thread ids are OS thread ids, they do not need remapping
+        src.threads.forEach(new Dictionary.Visitor<String>() {
+            @Override
+            public void visit(long key, String value) {
+                jfr.threads.put(key, value);
+            }
+        });
+
+        jfr.merger.mergeSymbols(src.symbols, chunk.ids);
+        jfr.merger.merge(src.classes, src.methods, src.stackTraces, chunk.ids);
+    }
+
+    private static <T> List<T> getAll(List<Future<T>> futures) throws IOException {
+        List<T> result = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                result.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        return result;
+    }
+
+    // Chunks usually follow each other in time, but concatenated recordings may overlap.
+    // Events of a chunk are passed in a row until another chunk has an earlier event
+    private static void collectInTimeOrder(List<EventStore> chunks, EventCollector collector) {
+        PriorityQueue<EventStore.Cursor> queue = new PriorityQueue<>(Math.max(chunks.size(), 1),
+                new Comparator<EventStore.Cursor>() {
+                    @Override
+                    public int compare(EventStore.Cursor c1, EventStore.Cursor c2) {
+                        return Long.compare(c1.time(), c2.time());
+                    }
+                });
+
+        for (EventStore events : chunks) {
+            EventStore.Cursor cursor = events.cursor();
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+
+        EventStore.Cursor cursor;
+        while ((cursor = queue.poll()) != null) {
+            EventStore.Cursor next = queue.peek();
+            long limit = next == null ? Long.MAX_VALUE : next.time();
+            boolean hasMore;
+            do {
+                collector.collect(cursor.kind(), cursor.time(), cursor.tid(), cursor.stackTraceId(),
+                        cursor.extra(), cursor.value());
+            } while ((hasMore = cursor.next()) && cursor.time() <= limit);
+
+            if (hasMore) {
+                queue.add(cursor);
+            }
+        }
+    }
+
+    private static <E extends Event> List<E> remapEvents(List<E> events, ConstantMerger.IdMap ids) {
+        List<E> result = new ArrayList<>(events.size());
+        for (E e : events) {
+            result.add(remap(e, ids));
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Event> E remap(E e, ConstantMerger.IdMap ids) {
+        int stackTraceId = ids.stackTraceId(e.stackTraceId);
+        if (e instanceof ExecutionSample) {
+            ExecutionSample s = (ExecutionSample) e;
+            return (E) new ExecutionSample(s.time, s.tid, stackTraceId, s.threadState);
+        } else if (e instanceof AllocationSample) {
+            AllocationSample a = (AllocationSample) e;
+            int classId = (int) ids.classId(a.classId);
+            return (E) new AllocationSample(a.time, a.tid, stackTraceId, classId, a.allocationSize, a.tlabSize);
+        } else if (e instanceof ContendedLock) {
+            ContendedLock c = (ContendedLock) e;
+            int classId = (int) ids.classId(c.classId);
+            return (E) new ContendedLock(c.time, c.tid, stackTraceId, c.duration, classId);
+        }
+        throw new IllegalArgumentException("Unexpected event type: " + e.getClass().getName());
+    }
+
+    // Thread state of execution samples is not an id and stays as is
+    private static void remapEvents(EventStore events, ConstantMerger.IdMap ids) {
+        EventStore.Cursor cursor = events.cursor();
+        while (cursor.next()) {
+            cursor.setStackTraceId(ids.stackTraceId(cursor.stackTraceId()));
+            if (cursor.kind() != EventCollector.EXECUTION_SAMPLE) {
+                cursor.setClassId((int) ids.classId(cursor.classId()));
+            }
+        }
+    }
+
+    interface ChunkReader<T> {
+        T read(JfrReader reader) throws IOException;
+
+        // Rewrites chunk-local ids of the events once the chunk is merged
+        T remap(T events, ConstantMerger.IdMap ids);
+    }
+
+    // Events of a chunk, either a list or a store, with chunk-local ids until remapped
+    static class Chunk<T> {
+        JfrReader reader;
+        final T events;
+
+        final ConstantMerger.IdMap ids = new ConstantMerger.IdMap();
+
+        Chunk(JfrReader reader, T events) {
+            this.reader = reader;
+            this.events = events;
+        }
+    }
+}
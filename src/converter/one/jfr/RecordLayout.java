@@ -0,0 +1,142 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoding of every field of a JFR type, compiled once per chunk from the metadata,
+ * so that values are decoded by a loop over field kinds without looking at the metadata again.
+ */
+class RecordLayout {
+    static final int BYTE = 1;
+    static final int VARINT = 2;
+    static final int FLOAT = 3;
+    static final int DOUBLE = 4;
+    static final int STRING = 5;
+    static final int CONSTANT = 6;
+    static final int STACK_TRACE = 7;
+    static final int CLASS = 8;
+    static final int METHOD = 9;
+    static final int SYMBOL = 10;
+    static final int STRUCT = 11;
+
+    final int[] kinds;
+    final boolean[] arrays;
+    final RecordLayout[] structs;
+    final Dictionary<?>[] stringPools;
+    // Position of the field in EventRecord, or -1 if the field is not requested
+    final int[] slots;
+
+    private RecordLayout(int fieldCount) {
+        this.kinds = new int[fieldCount];
+        this.arrays = new boolean[fieldCount];
+        this.structs = new RecordLayout[fieldCount];
+        this.stringPools = new Dictionary<?>[fieldCount];
+        this.slots = new int[fieldCount];
+    }
+
+    // Returns true if values of the type are just strings, like in a pool of GC names
+    static boolean isStringValue(JfrClass type, Dictionary<JfrClass> types) {
+        List<JfrField> fields = type.fields;
+        if (fields.size() != 1 || fields.get(0).constantPool || fields.get(0).array) {
+            return false;
+        }
+        JfrClass fieldType = types.get(fields.get(0).type);
+        return fieldType != null && "java.lang.String".equals(fieldType.name);
+    }
+
+    // requested may be null when values are only skipped
+    static RecordLayout compile(JfrClass type, String[] requested, Dictionary<JfrClass> types,
+                                Map<Integer, Dictionary<String>> stringPools) {
+        List<JfrField> fields = type.fields;
+        RecordLayout layout = new RecordLayout(fields.size());
+
+        for (int i = 0; i < fields.size(); i++) {
+            JfrField field = fields.get(i);
+            JfrClass fieldType = types.get(field.type);
+            String typeName = fieldType != null ? fieldType.name : "";
+
+            layout.arrays[i] = field.array;
+            layout.slots[i] = indexOf(requested, field.name);
+
+            if (field.constantPool) {
+                layout.kinds[i] = constantKind(typeName);
+                layout.stringPools[i] = stringPools.get(field.type);
+                continue;
+            }
+
+            switch (typeName) {
+                case "boolean":
+                case "byte":
+                    layout.kinds[i] = BYTE;
+                    break;
+                case "char":
+                case "short":
+                case "int":
+                case "long":
+                    layout.kinds[i] = VARINT;
+                    break;
+                case "float":
+                    layout.kinds[i] = FLOAT;
+                    break;
+                case "double":
+                    layout.kinds[i] = DOUBLE;
+                    break;
+                case "java.lang.String":
+                    layout.kinds[i] = STRING;
+                    break;
+                default:
+                    if (fieldType == null) {
+                        throw new IllegalArgumentException("Unknown type of field " + type.name + '.' + field.name);
+                    }
+                    // Nested values are decoded only to be skipped
+                    layout.kinds[i] = STRUCT;
+                    layout.structs[i] = compile(fieldType, null, types, stringPools);
+            }
+        }
+
+        return layout;
+    }
+
+    private static int constantKind(String typeName) {
+        switch (typeName) {
+            case "jdk.types.StackTrace":
+                return STACK_TRACE;
+            case "java.lang.Class":
+                return CLASS;
+            case "jdk.types.Method":
+                return METHOD;
+            case "jdk.types.Symbol":
+                return SYMBOL;
+            default:
+                return CONSTANT;
+        }
+    }
+
+    private static int indexOf(String[] requested, String name) {
+        if (requested != null) {
+            for (int i = 0; i < requested.length; i++) {
+                if (requested[i].equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+}
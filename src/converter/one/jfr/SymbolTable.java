@@ -0,0 +1,352 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * UTF-8 symbols packed back to back into large byte arrays instead of an object per symbol.
+ * Equal symbols are stored once. Symbols are compared, hashed and written out by id
+ * without creating String or byte[] objects.
+ *
+ * Ids are either assigned by the caller with put(), as in a JFR constant pool,
+ * or returned by intern(), which numbers distinct symbols from 1 on.
+ * The two ways cannot be mixed in one table.
+ */
+public class SymbolTable {
+    private static final int PAGE_SIZE = 65536;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private byte[][] pages = new byte[16][];
+    private int pageCount;
+    private int pageOffset = PAGE_SIZE;
+
+    // Distinct symbols by slot; slot 0 is unused
+    private int[] symbolPage = new int[INITIAL_CAPACITY];
+    private int[] symbolOffset = new int[INITIAL_CAPACITY];
+    private int[] symbolLength = new int[INITIAL_CAPACITY];
+    private int[] symbolHash = new int[INITIAL_CAPACITY];
+    private int count;
+
+    // Open-addressing table of slots by content; 0 marks an empty entry
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    // Caller-assigned id -> slot; null while ids are slots themselves
+    private IntDictionary ids;
+
+    public interface Visitor {
+        void visit(long id);
+    }
+
+    // Number of distinct symbols
+    public int size() {
+        return count;
+    }
+
+    // Keeps the allocated pages for reuse. Ids may be assigned either way afterwards
+    public void clear() {
+        Arrays.fill(table, 0);
+        pageCount = 0;
+        pageOffset = PAGE_SIZE;
+        count = 0;
+        ids = null;
+    }
+
+    public void put(long id, ByteBuffer buf, int offset, int length) {
+        if (ids == null) {
+            if (count > 0) {
+                throw new IllegalStateException("Symbols are already interned");
+            }
+            ids = new IntDictionary();
+        }
+        ids.put(id, add(buf, offset, length));
+    }
+
+    public long intern(ByteBuffer buf, int offset, int length) {
+        checkInterned();
+        return add(buf, offset, length);
+    }
+
+    public long intern(byte[] bytes, int offset, int length) {
+        checkInterned();
+        return add(bytes, offset, length);
+    }
+
+    // Adds a symbol of another table and returns its id in this table
+    public long intern(SymbolTable src, long srcId) {
+        checkInterned();
+        int srcSlot = src.slot(srcId);
+        if (srcSlot == 0) {
+            return 0;
+        }
+
+        byte[] srcPage = src.pages[src.symbolPage[srcSlot]];
+        int srcOffset = src.symbolOffset[srcSlot];
+        int length = src.symbolLength[srcSlot];
+        int hash = src.symbolHash[srcSlot];
+
+        int mask = table.length - 1;
+        int i = mix(hash) & mask;
+        for (int slot; (slot = table[i]) != 0; i = (i + 1) & mask) {
+            if (symbolHash[slot] == hash && symbolLength[slot] == length
+                    && regionMatches(pages[symbolPage[slot]], symbolOffset[slot], srcPage, srcOffset, length)) {
+                return slot;
+            }
+        }
+
+        int slot = allocate(length, hash);
+        System.arraycopy(srcPage, srcOffset, pages[symbolPage[slot]], symbolOffset[slot], length);
+        return insert(i, slot);
+    }
+
+    public void forEach(Visitor visitor) {
+        if (ids != null) {
+            // Don't use lambda for faster startup
+            final Visitor target = visitor;
+            ids.forEach(new IntDictionary.Visitor() {
+                @Override
+                public void visit(long key, int value) {
+                    target.visit(key);
+                }
+            });
+        } else {
+            for (int slot = 1; slot <= count; slot++) {
+                visitor.visit(slot);
+            }
+        }
+    }
+
+    public boolean contains(long id) {
+        return slot(id) != 0;
+    }
+
+    // Returns -1 if there is no such symbol
+    public int length(long id) {
+        int slot = slot(id);
+        return slot != 0 ? symbolLength[slot] : -1;
+    }
+
+    public byte byteAt(long id, int index) {
+        int slot = slot(id);
+        return pages[symbolPage[slot]][symbolOffset[slot] + index];
+    }
+
+    // Returns -1 if the byte is not found
+    public int indexOf(long id, int b, int fromIndex) {
+        int slot = slot(id);
+        byte[] page = pages[symbolPage[slot]];
+        int offset = symbolOffset[slot];
+        for (int i = fromIndex, length = symbolLength[slot]; i < length; i++) {
+            if (page[offset + i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int hashCode(long id) {
+        return symbolHash[slot(id)];
+    }
+
+    // Interned symbols are equal only if their ids are; ids passed to put() may share a slot
+    public boolean equals(long id1, long id2) {
+        return slot(id1) == slot(id2);
+    }
+
+    // Lexicographic order of unsigned bytes, which is also the order of Unicode code points
+    public int compare(long id1, long id2) {
+        int slot1 = slot(id1);
+        int slot2 = slot(id2);
+        byte[] page1 = pages[symbolPage[slot1]];
+        byte[] page2 = pages[symbolPage[slot2]];
+        int offset1 = symbolOffset[slot1];
+        int offset2 = symbolOffset[slot2];
+        int length1 = symbolLength[slot1];
+        int length2 = symbolLength[slot2];
+
+        for (int i = 0, length = Math.min(length1, length2); i < length; i++) {
+            int b1 = page1[offset1 + i] & 0xff;
+            int b2 = page2[offset2 + i] & 0xff;
+            if (b1 != b2) {
+                return b1 - b2;
+            }
+        }
+        return length1 - length2;
+    }
+
+    // Copies the symbol to dst and returns its length
+    public int copy(long id, byte[] dst, int dstOffset) {
+        int slot = slot(id);
+        System.arraycopy(pages[symbolPage[slot]], symbolOffset[slot], dst, dstOffset, symbolLength[slot]);
+        return symbolLength[slot];
+    }
+
+    public void write(long id, PrintStream out) {
+        int slot = slot(id);
+        out.write(pages[symbolPage[slot]], symbolOffset[slot], symbolLength[slot]);
+    }
+
+    public void write(long id, int fromIndex, int toIndex, PrintStream out) {
+        int slot = slot(id);
+        out.write(pages[symbolPage[slot]], symbolOffset[slot] + fromIndex, toIndex - fromIndex);
+    }
+
+    // Creates a copy of the symbol, or returns null if there is no such symbol
+    public byte[] get(long id) {
+        int slot = slot(id);
+        if (slot == 0) {
+            return null;
+        }
+        int offset = symbolOffset[slot];
+        return Arrays.copyOfRange(pages[symbolPage[slot]], offset, offset + symbolLength[slot]);
+    }
+
+    private int slot(long id) {
+        if (ids != null) {
+            return ids.get(id, 0);
+        }
+        return id > 0 && id <= count ? (int) id : 0;
+    }
+
+    private void checkInterned() {
+        if (ids != null) {
+            throw new IllegalStateException("Symbols are added by id");
+        }
+    }
+
+    private int add(ByteBuffer buf, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + buf.get(offset + i);
+        }
+
+        int mask = table.length - 1;
+        int i = mix(hash) & mask;
+        for (int slot; (slot = table[i]) != 0; i = (i + 1) & mask) {
+            if (symbolHash[slot] == hash && symbolLength[slot] == length
+                    && regionMatches(pages[symbolPage[slot]], symbolOffset[slot], buf, offset, length)) {
+                return slot;
+            }
+        }
+
+        int slot = allocate(length, hash);
+        byte[] page = pages[symbolPage[slot]];
+        for (int j = 0, pos = symbolOffset[slot]; j < length; j++) {
+            page[pos + j] = buf.get(offset + j);
+        }
+        return insert(i, slot);
+    }
+
+    private int add(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = hash * 31 + bytes[offset + i];
+        }
+
+        int mask = table.length - 1;
+        int i = mix(hash) & mask;
+        for (int slot; (slot = table[i]) != 0; i = (i + 1) & mask) {
+            if (symbolHash[slot] == hash && symbolLength[slot] == length
+                    && regionMatches(pages[symbolPage[slot]], symbolOffset[slot], bytes, offset, length)) {
+                return slot;
+            }
+        }
+
+        int slot = allocate(length, hash);
+        System.arraycopy(bytes, offset, pages[symbolPage[slot]], symbolOffset[slot], length);
+        return insert(i, slot);
+    }
+
+    // Reserves space for a new symbol. A symbol never crosses a page boundary
+    private int allocate(int length, int hash) {
+        if (pageCount == 0 || pageOffset + length > pages[pageCount - 1].length) {
+            nextPage(length);
+        }
+
+        if (++count == symbolPage.length) {
+            int newCapacity = count * 2;
+            symbolPage = Arrays.copyOf(symbolPage, newCapacity);
+            symbolOffset = Arrays.copyOf(symbolOffset, newCapacity);
+            symbolLength = Arrays.copyOf(symbolLength, newCapacity);
+            symbolHash = Arrays.copyOf(symbolHash, newCapacity);
+        }
+
+        symbolPage[count] = pageCount - 1;
+        symbolOffset[count] = pageOffset;
+        symbolLength[count] = length;
+        symbolHash[count] = hash;
+        pageOffset += length;
+        return count;
+    }
+
+    private void nextPage(int length) {
+        if (pageCount == pages.length) {
+            pages = Arrays.copyOf(pages, pageCount * 2);
+        }
+        // Pages retained by clear() are reused unless the symbol does not fit
+        if (pages[pageCount] == null || pages[pageCount].length < length) {
+            pages[pageCount] = new byte[Math.max(PAGE_SIZE, length)];
+        }
+        pageCount++;
+        pageOffset = 0;
+    }
+
+    private int insert(int index, int slot) {
+        table[index] = slot;
+        if (count * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        return slot;
+    }
+
+    private void resize(int newCapacity) {
+        int[] newTable = new int[newCapacity];
+        int mask = newCapacity - 1;
+        for (int slot = 1; slot <= count; slot++) {
+            int i = mix(symbolHash[slot]) & mask;
+            while (newTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            newTable[i] = slot;
+        }
+        table = newTable;
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean regionMatches(byte[] page, int offset, ByteBuffer buf, int bufOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (page[offset + i] != buf.get(bufOffset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] page, int offset, byte[] other, int otherOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (page[offset + i] != other[otherOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
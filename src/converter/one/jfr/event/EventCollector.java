@@ -0,0 +1,34 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+/**
+ * Receives decoded events as primitive values, without creating an Event object per record.
+ */
+public interface EventCollector {
+    int EXECUTION_SAMPLE = 0;
+    int ALLOCATION_IN_NEW_TLAB = 1;
+    int ALLOCATION_OUTSIDE_TLAB = 2;
+    int CONTENDED_LOCK = 3;
+
+    /**
+     * @param kind one of the event kinds above
+     * @param extra thread state for execution samples, class id for allocations and locks
+     * @param value the same as {@link Event#value()}
+     */
+    void collect(int kind, long time, int tid, int stackTraceId, int extra, long value);
+}
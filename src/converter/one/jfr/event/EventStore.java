@@ -0,0 +1,276 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Columnar storage of events: one primitive column per event field instead of an object per event.
+ * Columns are backed either by Java arrays or by direct memory outside of the Java heap.
+ */
+public class EventStore implements EventCollector {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final boolean offHeap;
+    private LongBuffer time;
+    private IntBuffer tid;
+    private IntBuffer stackTraceId;
+    private IntBuffer extra;
+    private LongBuffer value;
+    private ByteBuffer kind;
+    private IntBuffer order;
+    private int size;
+
+    public EventStore() {
+        this(false);
+    }
+
+    public EventStore(boolean offHeap) {
+        this.offHeap = offHeap;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    @Override
+    public void collect(int kind, long time, int tid, int stackTraceId, int extra, long value) {
+        if (size == this.time.capacity()) {
+            allocate(size * 2);
+        }
+
+        int i = size++;
+        this.time.put(i, time);
+        this.tid.put(i, tid);
+        this.stackTraceId.put(i, stackTraceId);
+        this.extra.put(i, extra);
+        this.value.put(i, value);
+        this.kind.put(i, (byte) kind);
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    // Sorts events by time, as Event.compareTo does. Like Collections.sort, the sort is stable:
+    // the original position of an event is the second key, so events with equal time keep their order
+    public void sortByTime() {
+        order = offHeap ? directBuffer(size * 4).asIntBuffer() : IntBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            order.put(i, i);
+        }
+        sort(0, size - 1);
+        order = null;
+    }
+
+    private void allocate(int capacity) {
+        LongBuffer newTime = offHeap ? directBuffer(capacity * 8).asLongBuffer() : LongBuffer.allocate(capacity);
+        IntBuffer newTid = offHeap ? directBuffer(capacity * 4).asIntBuffer() : IntBuffer.allocate(capacity);
+        IntBuffer newStackTraceId = offHeap ? directBuffer(capacity * 4).asIntBuffer() : IntBuffer.allocate(capacity);
+        IntBuffer newExtra = offHeap ? directBuffer(capacity * 4).asIntBuffer() : IntBuffer.allocate(capacity);
+        LongBuffer newValue = offHeap ? directBuffer(capacity * 8).asLongBuffer() : LongBuffer.allocate(capacity);
+        ByteBuffer newKind = offHeap ? directBuffer(capacity) : ByteBuffer.allocate(capacity);
+
+        if (size > 0) {
+            newTime.put(slice(time));
+            newTid.put(slice(tid));
+            newStackTraceId.put(slice(stackTraceId));
+            newExtra.put(slice(extra));
+            newValue.put(slice(value));
+            newKind.put(slice(kind));
+        }
+
+        time = newTime;
+        tid = newTid;
+        stackTraceId = newStackTraceId;
+        extra = newExtra;
+        value = newValue;
+        kind = newKind;
+    }
+
+    private static ByteBuffer directBuffer(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    private LongBuffer slice(LongBuffer buf) {
+        LongBuffer dup = buf.duplicate();
+        dup.position(0);
+        dup.limit(size);
+        return dup;
+    }
+
+    private IntBuffer slice(IntBuffer buf) {
+        IntBuffer dup = buf.duplicate();
+        dup.position(0);
+        dup.limit(size);
+        return dup;
+    }
+
+    private ByteBuffer slice(ByteBuffer buf) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(0);
+        dup.limit(size);
+        return dup;
+    }
+
+    // In-place quicksort that moves all columns together. The smaller partition is sorted
+    // recursively and the larger one in a loop, so the stack depth is O(log n)
+    private void sort(int left, int right) {
+        while (right - left >= INSERTION_SORT_THRESHOLD) {
+            int mid = (left + right) >>> 1;
+            if (compare(mid, left) < 0) swap(mid, left);
+            if (compare(right, left) < 0) swap(right, left);
+            if (compare(right, mid) < 0) swap(right, mid);
+
+            // The median of three becomes the pivot at position right - 1
+            swap(mid, right - 1);
+            int pivot = right - 1;
+            int i = left;
+            int j = right - 1;
+            while (true) {
+                while (compare(++i, pivot) < 0) ;
+                while (compare(--j, pivot) > 0) ;
+                if (i >= j) break;
+                swap(i, j);
+            }
+            swap(i, right - 1);
+
+            if (i - left < right - i) {
+                sort(left, i - 1);
+                left = i + 1;
+            } else {
+                sort(i + 1, right);
+                right = i - 1;
+            }
+        }
+
+        for (int i = left + 1; i <= right; i++) {
+            for (int j = i; j > left && compare(j, j - 1) < 0; j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private int compare(int i, int j) {
+        int result = Long.compare(time.get(i), time.get(j));
+        return result != 0 ? result : Integer.compare(order.get(i), order.get(j));
+    }
+
+    private void swap(int i, int j) {
+        long t = time.get(i);
+        time.put(i, time.get(j));
+        time.put(j, t);
+
+        int n = tid.get(i);
+        tid.put(i, tid.get(j));
+        tid.put(j, n);
+
+        n = stackTraceId.get(i);
+        stackTraceId.put(i, stackTraceId.get(j));
+        stackTraceId.put(j, n);
+
+        n = extra.get(i);
+        extra.put(i, extra.get(j));
+        extra.put(j, n);
+
+        t = value.get(i);
+        value.put(i, value.get(j));
+        value.put(j, t);
+
+        byte b = kind.get(i);
+        kind.put(i, kind.get(j));
+        kind.put(j, b);
+
+        n = order.get(i);
+        order.put(i, order.get(j));
+        order.put(j, n);
+    }
+
+    /**
+     * Iterates over stored events. A cursor starts before the first event.
+     */
+    public class Cursor {
+        private int index = -1;
+
+        public boolean next() {
+            return ++index < size;
+        }
+
+        public void reset() {
+            index = -1;
+        }
+
+        public void seek(int index) {
+            this.index = index;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public int kind() {
+            return kind.get(index);
+        }
+
+        public long time() {
+            return time.get(index);
+        }
+
+        public int tid() {
+            return tid.get(index);
+        }
+
+        public int stackTraceId() {
+            return stackTraceId.get(index);
+        }
+
+        public int classId() {
+            return extra.get(index);
+        }
+
+        public int threadState() {
+            return extra.get(index);
+        }
+
+        public long value() {
+            return value.get(index);
+        }
+
+        // Thread state or class id, as passed to EventCollector
+        public int extra() {
+            return extra.get(index);
+        }
+
+        // Ids may be rewritten in place, e.g. when merging constant pools of several chunks
+        public void setStackTraceId(int stackTraceId) {
+            EventStore.this.stackTraceId.put(index, stackTraceId);
+        }
+
+        public void setClassId(int classId) {
+            extra.put(index, classId);
+        }
+    }
+}
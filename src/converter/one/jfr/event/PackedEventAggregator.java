@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.jfr.event;
+
+import java.util.Arrays;
+
+/**
+ * Same as {@link EventAggregator}, but the group key is packed into two longs:
+ * (stackTraceId, tid) and (classId, kind). Keys live in open-addressing primitive tables,
+ * so aggregation does not allocate anything per event.
+ */
+public class PackedEventAggregator implements EventCollector {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final boolean threads;
+    private final boolean total;
+    private long[] keys;
+    private long[] extraKeys;
+    private long[] values;
+    private long[] counts;
+    private int size;
+
+    public PackedEventAggregator(boolean threads, boolean total) {
+        this(threads, total, false);
+    }
+
+    // With 'counts', the number of events in a group is tracked along with the accumulated value
+    public PackedEventAggregator(boolean threads, boolean total, boolean counts) {
+        this.threads = threads;
+        this.total = total;
+        this.keys = new long[INITIAL_CAPACITY];
+        this.extraKeys = new long[INITIAL_CAPACITY];
+        this.values = new long[INITIAL_CAPACITY];
+        this.counts = counts ? new long[INITIAL_CAPACITY] : null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Keeps the capacity for reuse
+    public void clear() {
+        Arrays.fill(extraKeys, 0);
+        size = 0;
+    }
+
+    @Override
+    public void collect(int kind, long time, int tid, int stackTraceId, int extra, long value) {
+        long key = (long) stackTraceId << 32 | (threads ? tid & 0xffffffffL : 0);
+        // Thread state does not split execution samples; the lowest bit marks an occupied slot
+        long extraKey = (kind == EXECUTION_SAMPLE ? 0 : (extra & 0xffffffffL) << 8) | kind << 1 | 1;
+        long increment = total ? value : 1;
+
+        int mask = keys.length - 1;
+        int i = hash(key, extraKey) & mask;
+        while (extraKeys[i] != 0) {
+            if (keys[i] == key && extraKeys[i] == extraKey) {
+                values[i] += increment;
+                if (counts != null) counts[i]++;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        extraKeys[i] = extraKey;
+        values[i] = increment;
+        if (counts != null) counts[i] = 1;
+
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            long extraKey = extraKeys[i];
+            if (extraKey != 0) {
+                long key = keys[i];
+                visitor.visit((int) (extraKey >>> 1) & 0x7f, (int) (key >>> 32), (int) key,
+                        (int) (extraKey >>> 8), values[i]);
+            }
+        }
+    }
+
+    public void forEach(CountingVisitor visitor) {
+        if (counts == null) {
+            throw new IllegalStateException("Events are not counted");
+        }
+        for (int i = 0; i < keys.length; i++) {
+            long extraKey = extraKeys[i];
+            if (extraKey != 0) {
+                long key = keys[i];
+                visitor.visit((int) (extraKey >>> 1) & 0x7f, (int) (key >>> 32), (int) key,
+                        (int) (extraKey >>> 8), values[i], counts[i]);
+            }
+        }
+    }
+
+    private static int hash(long key, long extraKey) {
+        long h = (key ^ extraKey * 31) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private void resize(int newCapacity) {
+        long[] newKeys = new long[newCapacity];
+        long[] newExtraKeys = new long[newCapacity];
+        long[] newValues = new long[newCapacity];
+        long[] newCounts = counts != null ? new long[newCapacity] : null;
+        int mask = newCapacity - 1;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (extraKeys[i] != 0) {
+                for (int j = hash(keys[i], extraKeys[i]) & mask; ; j = (j + 1) & mask) {
+                    if (newExtraKeys[j] == 0) {
+                        newKeys[j] = keys[i];
+                        newExtraKeys[j] = extraKeys[i];
+                        newValues[j] = values[i];
+                        if (counts != null) newCounts[j] = counts[i];
+                        break;
+                    }
+                }
+            }
+        }
+
+        keys = newKeys;
+        extraKeys = newExtraKeys;
+        values = newValues;
+        counts = newCounts;
+    }
+
+    public interface Visitor {
+        // classId is 0 for execution samples; tid is 0 unless aggregating by threads
+        void visit(int kind, int stackTraceId, int tid, int classId, long value);
+    }
+
+    public interface CountingVisitor {
+        void visit(int kind, int stackTraceId, int tid, int classId, long value, long count);
+    }
+}
@@ -48,6 +48,12 @@ public class Proto {
         return this;
     }
 
+    public Proto field(int index, long n) {
+        tag(index, 0);
+        writeLong(n);
+        return this;
+    }
+
     public Proto field(int index, double d) {
         tag(index, 1);
         writeDouble(d);
@@ -83,6 +89,16 @@ public class Proto {
         buf[pos++] = (byte) n;
     }
 
+    public void writeLong(long n) {
+        ensureCapacity(10);
+
+        while ((n & ~0x7fL) != 0) {
+            buf[pos++] = (byte) (0x80 | (n & 0x7f));
+            n >>>= 7;
+        }
+        buf[pos++] = (byte) n;
+    }
+
     public void writeDouble(double d) {
         ensureCapacity(8);
         long n = Double.doubleToRawLongBits(d);
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2021 Andrei Pangin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package one.proto;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Protobuf writer that encodes fields directly to an OutputStream through a small fixed buffer.
+ * Unlike {@link Proto}, an embedded message is not materialized: the caller announces
+ * its length with {@link #beginField} and then writes exactly that many bytes of content.
+ * Lengths are computed in a pre-pass with the static size helpers.
+ */
+public class ProtoWriter implements Flushable {
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos;
+    private long written;
+
+    public ProtoWriter(OutputStream out) {
+        this(out, 65536);
+    }
+
+    public ProtoWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buf = new byte[bufferSize];
+    }
+
+    // Total number of bytes written so far, including buffered ones
+    public long size() {
+        return written + pos;
+    }
+
+    public ProtoWriter field(int index, int n) throws IOException {
+        tag(index, 0);
+        writeInt(n);
+        return this;
+    }
+
+    public ProtoWriter field(int index, long n) throws IOException {
+        tag(index, 0);
+        writeLong(n);
+        return this;
+    }
+
+    public ProtoWriter field(int index, double d) throws IOException {
+        tag(index, 1);
+        writeDouble(d);
+        return this;
+    }
+
+    public ProtoWriter field(int index, String s) throws IOException {
+        tag(index, 2);
+        writeString(s);
+        return this;
+    }
+
+    public ProtoWriter field(int index, byte[] bytes) throws IOException {
+        tag(index, 2);
+        writeBytes(bytes, 0, bytes.length);
+        return this;
+    }
+
+    public ProtoWriter field(int index, Proto proto) throws IOException {
+        tag(index, 2);
+        writeBytes(proto.buffer(), 0, proto.size());
+        return this;
+    }
+
+    // Starts a length-delimited field; the caller must write exactly 'length' bytes next
+    public ProtoWriter beginField(int index, long length) throws IOException {
+        tag(index, 2);
+        writeLong(length);
+        return this;
+    }
+
+    public void writeInt(int n) throws IOException {
+        writeLong(n & 0xffffffffL);
+    }
+
+    public void writeLong(long n) throws IOException {
+        ensureCapacity(10);
+        while ((n & ~0x7fL) != 0) {
+            buf[pos++] = (byte) (0x80 | (n & 0x7f));
+            n >>>= 7;
+        }
+        buf[pos++] = (byte) n;
+    }
+
+    public void writeDouble(double d) throws IOException {
+        ensureCapacity(8);
+        long n = Double.doubleToRawLongBits(d);
+        buf[pos] = (byte) n;
+        buf[pos + 1] = (byte) (n >>> 8);
+        buf[pos + 2] = (byte) (n >>> 16);
+        buf[pos + 3] = (byte) (n >>> 24);
+        buf[pos + 4] = (byte) (n >>> 32);
+        buf[pos + 5] = (byte) (n >>> 40);
+        buf[pos + 6] = (byte) (n >>> 48);
+        buf[pos + 7] = (byte) (n >>> 56);
+        pos += 8;
+    }
+
+    public void writeString(String s) throws IOException {
+        int length = s.length();
+        writeInt(length);
+        ensureCapacity(length);
+
+        if (length > buf.length) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) s.charAt(i);
+            }
+            out.write(bytes);
+            written += length;
+            return;
+        }
+
+        for (int i = 0; i < length; i++) {
+            buf[pos++] = (byte) s.charAt(i);
+        }
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        writeInt(length);
+        ensureCapacity(length);
+
+        if (length > buf.length) {
+            out.write(bytes, offset, length);
+            written += length;
+        } else {
+            System.arraycopy(bytes, offset, buf, pos, length);
+            pos += length;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            written += pos;
+            pos = 0;
+        }
+        out.flush();
+    }
+
+    private void tag(int index, int type) throws IOException {
+        writeInt(index << 3 | type);
+    }
+
+    // Drains the buffer if it cannot fit 'length' more bytes.
+    // Writes longer than the whole buffer bypass it
+    private void ensureCapacity(int length) throws IOException {
+        if (pos + length > buf.length && pos > 0) {
+            out.write(buf, 0, pos);
+            written += pos;
+            pos = 0;
+        }
+    }
+
+    public static int intSize(int n) {
+        return longSize(n & 0xffffffffL);
+    }
+
+    public static int longSize(long n) {
+        return n == 0 ? 1 : (70 - Long.numberOfLeadingZeros(n)) / 7;
+    }
+
+    // Size of a length-delimited field with the given content length, including tag
+    public static long fieldSize(int index, long length) {
+        return intSize(index << 3 | 2) + longSize(length) + length;
+    }
+}
@@ -54,7 +54,7 @@ static const char FLAMEGRAPH_HEADER[] =
     "\t// Copyright 2020 Andrei Pangin\n"
     "\t// Licensed under the Apache License, Version 2.0.\n"
     "\t'use strict';\n"
-    "\tvar root, rootLevel, px, pattern;\n"
+    "\tvar root, rootLevel, px, pattern, maxDelta;\n"
     "\tvar reverse = %s;\n"
     "\tconst levels = Array(%d);\n"
     "\tfor (let h = 0; h < levels.length; h++) {\n"
@@ -87,8 +87,45 @@ static const char FLAMEGRAPH_HEADER[] =
     "\t\treturn '#' + (p[0] + ((p[1] * v) << 16 | (p[2] * v) << 8 | (p[3] * v))).toString(16);\n"
     "\t}\n"
     "\n"
-    "\tfunction f(level, left, width, type, title) {\n"
-    "\t\tlevels[level].push({left: left, width: width, color: getColor(palette[type]), title: title});\n"
+    "\tfunction getDiffColor(delta) {\n"
+    "\t\tconst v = maxDelta > 0 ? Math.round(200 * Math.min(Math.abs(delta) / maxDelta, 1)) : 0;\n"
+    "\t\treturn 'rgb(' + (delta > 0 ? [255, 255 - v, 255 - v] : [255 - v, 255 - v, 255]) + ')';\n"
+    "\t}\n"
+    "\n"
+    "\tfunction f(level, left, width, type, title, delta) {\n"
+    "\t\tlevels[level].push({left: left, width: width, color: delta === undefined ? getColor(palette[type]) : getDiffColor(delta), title: title, delta: delta});\n"
+    "\t}\n"
+    "\n"
+    "\tfunction unpack(titles, data) {\n"
+    "\t\tconst bytes = atob(data);\n"
+    "\t\tconst levelEnd = [];\n"
+    "\t\tlet pos = 0;\n"
+    "\t\tlet level = -1;\n"
+    "\n"
+    "\t\tfunction next() {\n"
+    "\t\t\tlet result = 0;\n"
+    "\t\t\tlet b, mul = 1;\n"
+    "\t\t\tdo {\n"
+    "\t\t\t\tb = bytes.charCodeAt(pos++);\n"
+    "\t\t\t\tresult += (b & 0x7f) * mul;\n"
+    "\t\t\t\tmul *= 128;\n"
+    "\t\t\t} while (b >= 0x80);\n"
+    "\t\t\treturn result;\n"
+    "\t\t}\n"
+    "\n"
+    "\t\twhile (pos < bytes.length) {\n"
+    "\t\t\tlevel = level + 1 - next();\n"
+    "\t\t\tconst left = (levelEnd[level] || 0) + next();\n"
+    "\t\t\tconst width = next();\n"
+    "\t\t\tconst title = next();\n"
+    "\t\t\tlet delta;\n"
+    "\t\t\tif (maxDelta !== undefined) {\n"
+    "\t\t\t\tconst d = next();\n"
+    "\t\t\t\tdelta = (d %% 2 ? -(d + 1) / 2 : d / 2) / 1000;\n"
+    "\t\t\t}\n"
+    "\t\t\tf(level, left, width, title %% 8, titles[Math.floor(title / 8)], delta);\n"
+    "\t\t\tlevelEnd[level] = left + width;\n"
+    "\t\t}\n"
     "\t}\n"
     "\n"
     "\tfunction samples(n) {\n"
@@ -203,7 +240,7 @@ static const char FLAMEGRAPH_HEADER[] =
     "\t\t\t\thl.style.top = ((reverse ? h * 16 : canvasHeight - (h + 1) * 16) + canvas.offsetTop) + 'px';\n"
     "\t\t\t\thl.firstChild.textContent = f.title;\n"
     "\t\t\t\thl.style.display = 'block';\n"
-    "\t\t\t\tcanvas.title = f.title + '\\n(' + samples(f.width) + ', ' + pct(f.width, levels[0][0].width) + '%%)';\n"
+    "\t\t\t\tcanvas.title = f.title + '\\n(' + samples(f.width) + ', ' + pct(f.width, levels[0][0].width) + '%%' + (f.delta === undefined ? '' : ', ' + (f.delta > 0 ? '+' : '') + f.delta + '%%') + ')';\n"
     "\t\t\t\tcanvas.style.cursor = 'pointer';\n"
     "\t\t\t\tcanvas.onclick = function() {\n"
     "\t\t\t\t\tif (f != root) {\n"
@@ -451,6 +488,70 @@ class Format {
 };
 
 
+// Frames of a compact Flame Graph: a table of distinct titles
+// and a base64 string of varints, see FlameGraph.java for the format
+class CompactWriter {
+  private:
+    std::map<std::string, u64> _index;
+
+  public:
+    std::vector<std::string> _titles;
+    std::vector<u64> _level_end;
+    std::string _data;
+    int _prev_level;
+
+    CompactWriter(int depth) : _level_end(depth + 2), _prev_level(-1) {
+    }
+
+    void putVarlong(u64 n) {
+        while ((n >> 7) != 0) {
+            _data += (char)(n | 0x80);
+            n >>= 7;
+        }
+        _data += (char)n;
+    }
+
+    // Returns title index << 3 | frame type
+    u64 titleKey(const std::string& name) {
+        std::map<std::string, u64>::iterator it = _index.find(name);
+        if (it != _index.end()) {
+            return it->second;
+        }
+
+        std::string title = name;
+        int type = FlameGraph::frameType(title);
+        StringUtils::replace(title, '\'', "\\'", 2);
+
+        u64 key = (u64)_titles.size() << 3 | type;
+        _titles.push_back(title);
+        _index[name] = key;
+        return key;
+    }
+
+    void printBase64(std::ostream& out) {
+        static const char BASE64[] = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+        char buf[4096];
+        size_t n = 0;
+        size_t size = _data.size();
+        const unsigned char* data = (const unsigned char*)_data.data();
+
+        for (size_t i = 0; i < size; i += 3) {
+            u32 b = data[i] << 16 | (i + 1 < size ? data[i + 1] << 8 : 0) | (i + 2 < size ? data[i + 2] : 0);
+            buf[n++] = BASE64[b >> 18];
+            buf[n++] = BASE64[(b >> 12) & 63];
+            buf[n++] = i + 1 < size ? BASE64[(b >> 6) & 63] : '=';
+            buf[n++] = i + 2 < size ? BASE64[b & 63] : '=';
+            if (n == sizeof(buf)) {
+                out.write(buf, n);
+                n = 0;
+            }
+        }
+        out.write(buf, n);
+    }
+};
+
+
 class Node {
   public:
     std::string _name;
@@ -486,7 +587,11 @@ void FlameGraph::dump(std::ostream& out, bool tree) {
                  std::min(depth * 16, MAX_CANVAS_HEIGHT), _reverse ? "true" : "false", depth);
         out << buf;
 
-        printFrame(out, "all", _root, 0, 0);
+        if (_compact) {
+            printCompact(out, depth);
+        } else {
+            printFrame(out, "all", _root, 0, 0);
+        }
 
         out << FLAMEGRAPH_FOOTER;
     }
@@ -509,6 +614,37 @@ void FlameGraph::printFrame(std::ostream& out, const std::string& name, const Tr
     }
 }
 
+void FlameGraph::printCompact(std::ostream& out, int depth) {
+    CompactWriter writer(depth);
+    packFrame(writer, "all", _root, 0, 0);
+
+    out << "unpack([";
+    for (size_t i = 0; i < writer._titles.size(); i++) {
+        if (i > 0) out << ',';
+        out << '\'' << writer._titles[i] << '\'';
+    }
+    out << "], '";
+    writer.printBase64(out);
+    out << "');\n";
+}
+
+void FlameGraph::packFrame(CompactWriter& writer, const std::string& name, const Trie& f, int level, u64 x) {
+    writer.putVarlong(writer._prev_level + 1 - level);
+    writer.putVarlong(x - writer._level_end[level]);
+    writer.putVarlong(f._total);
+    writer.putVarlong(writer.titleKey(name));
+    writer._prev_level = level;
+    writer._level_end[level] = x + f._total;
+
+    x += f._self;
+    for (std::map<std::string, Trie>::const_iterator it = f._children.begin(); it != f._children.end(); ++it) {
+        if (it->second._total >= _mintotal) {
+            packFrame(writer, it->first, it->second, level + 1, x);
+        }
+        x += it->second._total;
+    }
+}
+
 void FlameGraph::printTreeFrame(std::ostream& out, const Trie& f, int level) {
     std::vector<Node> subnodes;
     for (std::map<std::string, Trie>::const_iterator it = f._children.begin(); it != f._children.end(); ++it) {
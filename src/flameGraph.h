@@ -58,6 +58,8 @@ class Trie {
 };
 
 
+class CompactWriter;
+
 class FlameGraph {
   private:
     Trie _root;
@@ -68,18 +70,21 @@ class FlameGraph {
     Counter _counter;
     double _minwidth;
     bool _reverse;
+    bool _compact;
 
     void printFrame(std::ostream& out, const std::string& name, const Trie& f, int level, u64 x);
+    void printCompact(std::ostream& out, int depth);
+    void packFrame(CompactWriter& writer, const std::string& name, const Trie& f, int level, u64 x);
     void printTreeFrame(std::ostream& out, const Trie& f, int level);
-    int frameType(std::string& name);
 
   public:
-    FlameGraph(const char* title, Counter counter, double minwidth, bool reverse) :
+    FlameGraph(const char* title, Counter counter, double minwidth, bool reverse, bool compact) :
         _root(),
         _title(title),
         _counter(counter),
         _minwidth(minwidth),
-        _reverse(reverse) {
+        _reverse(reverse),
+        _compact(compact) {
         _buf[sizeof(_buf) - 1] = 0;
     }
 
@@ -88,6 +93,8 @@ class FlameGraph {
     }
 
     void dump(std::ostream& out, bool tree);
+
+    static int frameType(std::string& name);
 };
 
 #endif // _FLAMEGRAPH_H
@@ -20,6 +20,7 @@
 #include <cxxabi.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <poll.h>
 #include <pthread.h>
 #include <stdint.h>
 #include <stdlib.h>
@@ -30,6 +31,7 @@
 #include "flightRecorder.h"
 #include "jfrMetadata.h"
 #include "dictionary.h"
+#include "mutex.h"
 #include "os.h"
 #include "profiler.h"
 #include "spinLock.h"
@@ -52,6 +54,10 @@ const int BUFFER_SIZE = 1024;
 const int BUFFER_LIMIT = BUFFER_SIZE - 128;
 const int RECORDING_BUFFER_SIZE = 65536;
 const int RECORDING_BUFFER_LIMIT = RECORDING_BUFFER_SIZE - 4096;
+const int MIN_EVENT_BUFFER_SIZE = 16384;
+const int INITIAL_EVENT_CHUNKS = 4;
+const int MAX_EVENT_CHUNKS = 16;
+const int WRITER_INTERVAL = 100;  // ms
 const int MAX_STRING_LENGTH = 8191;
 const u64 MAX_JLONG = 0x7fffffffffffffffULL;
 
@@ -381,6 +387,83 @@ class RecordingBuffer : public Buffer {
 };
 
 
+// Bounded lock-free MPMC queue of buffers by D. Vyukov. Safe to use in a signal handler.
+// Capacity is a power of 2
+class BufferQueue {
+  private:
+    struct Cell {
+        u64 seq;
+        Buffer* buf;
+    };
+
+    Cell* _cells;
+    u64 _mask;
+    char _padding0[64];
+    volatile u64 _head;
+    char _padding1[64];
+    volatile u64 _tail;
+    char _padding2[64];
+
+  public:
+    BufferQueue(u32 capacity) : _mask(capacity - 1), _head(0), _tail(0) {
+        _cells = (Cell*)malloc(capacity * sizeof(Cell));
+        for (u32 i = 0; i < capacity; i++) {
+            _cells[i].seq = i;
+            _cells[i].buf = NULL;
+        }
+    }
+
+    ~BufferQueue() {
+        free(_cells);
+    }
+
+    // Approximate, when the queue is modified concurrently
+    u64 size() {
+        return _tail - _head;
+    }
+
+    bool push(Buffer* buf) {
+        u64 pos = _tail;
+        while (true) {
+            Cell* cell = &_cells[pos & _mask];
+            long long diff = (long long)(loadAcquire(cell->seq) - pos);
+            if (diff == 0) {
+                if (__sync_bool_compare_and_swap(&_tail, pos, pos + 1)) {
+                    cell->buf = buf;
+                    storeRelease(cell->seq, pos + 1);
+                    return true;
+                }
+                pos = _tail;
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = _tail;
+            }
+        }
+    }
+
+    Buffer* pop() {
+        u64 pos = _head;
+        while (true) {
+            Cell* cell = &_cells[pos & _mask];
+            long long diff = (long long)(loadAcquire(cell->seq) - (pos + 1));
+            if (diff == 0) {
+                if (__sync_bool_compare_and_swap(&_head, pos, pos + 1)) {
+                    Buffer* buf = cell->buf;
+                    storeRelease(cell->seq, pos + _mask + 1);
+                    return buf;
+                }
+                pos = _head;
+            } else if (diff < 0) {
+                return NULL;
+            } else {
+                pos = _head;
+            }
+        }
+    }
+};
+
+
 class Recording {
   private:
     static char* _agent_properties;
@@ -388,8 +471,28 @@ class Recording {
     static char* _jvm_flags;
     static char* _java_command;
 
-    RecordingBuffer _buf[CONCURRENCY_LEVEL];
+    RecordingBuffer* _buf;
     int _fd;
+
+    // Every sampling slot fills its current event buffer. In synchronous mode, the buffer
+    // is written to the file by the thread that filled it. In asynchronous mode, full buffers
+    // are replaced from the pool and written by the writer thread.
+    // The pool consists of chunks with one buffer per slot
+    Buffer** _event_buf;
+    char* _slot_buf_memory;
+    int _event_buf_count;
+    int _event_buf_size;
+    char* _event_chunks[MAX_EVENT_CHUNKS];
+    int _event_chunk_count;
+    BufferQueue* _free_queue;
+    BufferQueue* _full_queue;
+    u64 _dropped_buffers;
+    Mutex _writer_lock;
+    volatile bool _writer_is_running;
+    volatile int _writer_sleeping;
+    int _writer_pipe[2];
+    pthread_t _writer_thread;
+
     volatile bool _timer_is_running;
     pthread_t _timer_thread;
     char* _master_recording_file;
@@ -502,7 +605,14 @@ class Recording {
     }
 
   public:
-    Recording(int fd, Arguments& args) : _fd(fd), _thread_set(), _method_map() {
+    Recording(int fd, Arguments& args) : _fd(fd), _writer_lock(), _thread_set(), _method_map() {
+        // Event buffers are indexed by the sampling slot of the profiler
+        int concurrency_level = Profiler::instance()->concurrencyLevel();
+        if (args._jfr_async < 0 || !createEventPool(concurrency_level, args._jfr_async)) {
+            createSlotBuffers(concurrency_level);
+        }
+        _buf = new RecordingBuffer();
+
         _master_recording_file = args._jfr_sync == NULL ? NULL : strdup(args._file);
         _chunk_start = lseek(_fd, 0, SEEK_END);
         _start_time = OS::micros();
@@ -543,10 +653,19 @@ class Recording {
         }
 
         startTimer();
+        if (_full_queue != NULL) {
+            startWriter();
+        }
     }
 
     ~Recording() {
         stopTimer();
+        if (_full_queue != NULL) {
+            stopWriter();
+            if (_dropped_buffers > 0) {
+                Log::warn("JFR writer could not keep up, %lld event buffers dropped", _dropped_buffers);
+            }
+        }
 
         off_t chunk_end = finishChunk();
 
@@ -556,15 +675,198 @@ class Recording {
         }
 
         close(_fd);
+        delete _buf;
+        if (_full_queue != NULL) {
+            destroyEventPool();
+        } else {
+            destroySlotBuffers();
+        }
+    }
+
+    // With more CPUs, events are spread among more slots, so each buffer can be smaller
+    static int eventBufferSize(int concurrency_level, long buf_size) {
+        if (buf_size == 0) {
+            buf_size = RECORDING_BUFFER_SIZE * MIN_CONCURRENCY_LEVEL / concurrency_level;
+        }
+        if (buf_size < MIN_EVENT_BUFFER_SIZE) {
+            buf_size = MIN_EVENT_BUFFER_SIZE;
+        }
+        return (int)((buf_size + 7) & ~7L);
+    }
+
+    // Synchronous mode: one buffer per slot and no spare buffers
+    void createSlotBuffers(int concurrency_level) {
+        _event_buf_size = eventBufferSize(concurrency_level, 0);
+        _event_buf_count = concurrency_level;
+        _event_buf = (Buffer**)malloc(concurrency_level * sizeof(Buffer*));
+        _slot_buf_memory = new char[(size_t)concurrency_level * _event_buf_size];
+        _free_queue = NULL;
+        _full_queue = NULL;
+
+        for (int i = 0; i < concurrency_level; i++) {
+            _event_buf[i] = (Buffer*)(_slot_buf_memory + (size_t)i * _event_buf_size);
+            _event_buf[i]->reset();
+        }
+    }
+
+    void destroySlotBuffers() {
+        delete[] _slot_buf_memory;
+        free(_event_buf);
+        _event_buf = NULL;
+    }
+
+    // Sampling slots and spare buffers for them. The writer adds chunks to the pool
+    // when spare buffers run low
+    bool createEventPool(int concurrency_level, long buf_size) {
+        _event_buf_size = eventBufferSize(concurrency_level, buf_size);
+        _event_buf_count = concurrency_level;
+        _event_buf = (Buffer**)malloc(concurrency_level * sizeof(Buffer*));
+        _event_chunk_count = 0;
+        _free_queue = new BufferQueue(concurrency_level * MAX_EVENT_CHUNKS);
+        _full_queue = new BufferQueue(concurrency_level * MAX_EVENT_CHUNKS);
+        _dropped_buffers = 0;
+        _writer_sleeping = 0;
+
+        for (int i = 0; i < INITIAL_EVENT_CHUNKS; i++) {
+            if (!addEventChunk()) {
+                Log::warn("Not enough memory for JFR event buffers, writing synchronously");
+                destroyEventPool();
+                return false;
+            }
+        }
+
+        // Take buffers of the first chunk for the slots
+        for (int i = 0; i < concurrency_level; i++) {
+            _event_buf[i] = _free_queue->pop();
+        }
+        return true;
+    }
+
+    bool addEventChunk() {
+        size_t chunk_size = (size_t)_event_buf_count * _event_buf_size;
+        char* chunk = (char*)OS::safeAlloc(chunk_size);
+        if (chunk == NULL) {
+            return false;
+        }
+        _event_chunks[_event_chunk_count++] = chunk;
+
+        for (int i = 0; i < _event_buf_count; i++) {
+            Buffer* buf = (Buffer*)(chunk + (size_t)i * _event_buf_size);
+            buf->reset();
+            _free_queue->push(buf);
+        }
+        return true;
+    }
+
+    void destroyEventPool() {
+        delete _full_queue;
+        delete _free_queue;
+        _full_queue = NULL;
+        _free_queue = NULL;
+        for (int i = 0; i < _event_chunk_count; i++) {
+            OS::safeFree(_event_chunks[i], (size_t)_event_buf_count * _event_buf_size);
+        }
+        free(_event_buf);
+        _event_buf = NULL;
+    }
+
+    // Returns false if there was nothing to write
+    bool writeFullBuffers() {
+        MutexLocker ml(_writer_lock);
+        bool written = false;
+        for (Buffer* buf; (buf = _full_queue->pop()) != NULL; ) {
+            flush(buf);
+            _free_queue->push(buf);
+            written = true;
+        }
+        return written;
+    }
+
+    void writerLoop() {
+        while (_writer_is_running) {
+            bool written = writeFullBuffers();
+
+            // Less than one spare buffer per slot left: events are produced faster than written
+            if (_free_queue->size() < (u64)_event_buf_count && _event_chunk_count < MAX_EVENT_CHUNKS) {
+                addEventChunk();
+            }
+            if (written) {
+                continue;
+            }
+
+            // A signal handler wakes the writer after queueing a buffer. The queue is checked
+            // again after announcing sleep; a wakeup sent before poll() stays in the pipe
+            _writer_sleeping = 1;
+            __sync_synchronize();
+            if (_full_queue->size() == 0) {
+                struct pollfd fds = {_writer_pipe[0], POLLIN, 0};
+                poll(&fds, 1, WRITER_INTERVAL);
+            }
+            _writer_sleeping = 0;
+
+            char discard[64];
+            while (read(_writer_pipe[0], discard, sizeof(discard)) > 0) {
+                // Drain pending wakeups
+            }
+        }
+    }
+
+    // write() is async-signal-safe, unlike most other ways to wake a thread
+    void wakeupWriter() {
+        if (_writer_sleeping && __sync_bool_compare_and_swap(&_writer_sleeping, 1, 0)) {
+            ssize_t result = write(_writer_pipe[1], "", 1);
+            (void)result;
+        }
     }
 
+    static void* writerEntry(void* rec) {
+        ((Recording*)rec)->writerLoop();
+        return NULL;
+    }
+
+    void startWriter() {
+        _writer_is_running = false;
+        _writer_pipe[0] = _writer_pipe[1] = -1;
+        if (pipe(_writer_pipe) != 0) {
+            Log::warn("Unable to create JFR writer pipe: %s", strerror(errno));
+            return;
+        }
+        fcntl(_writer_pipe[0], F_SETFL, O_NONBLOCK);
+        fcntl(_writer_pipe[1], F_SETFL, O_NONBLOCK);
+
+        _writer_is_running = true;
+        if (pthread_create(&_writer_thread, NULL, writerEntry, this) != 0) {
+            Log::warn("Unable to create JFR writer thread");
+            _writer_is_running = false;
+        }
+    }
+
+    void stopWriter() {
+        if (_writer_is_running) {
+            _writer_is_running = false;
+            ssize_t result = write(_writer_pipe[1], "", 1);
+            (void)result;
+            pthread_join(_writer_thread, NULL);
+        }
+        if (_writer_pipe[0] >= 0) {
+            close(_writer_pipe[0]);
+            close(_writer_pipe[1]);
+        }
+    }
+
+    // Called when no signal handler is in progress
     off_t finishChunk() {
         flush(&_cpu_monitor_buf);
 
         writeNativeLibraries(_buf);
 
-        for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
-            flush(&_buf[i]);
+        flush(_buf);
+
+        if (_full_queue != NULL) {
+            writeFullBuffers();
+        }
+        for (int i = 0; i < _event_buf_count; i++) {
+            flush(_event_buf[i]);
         }
 
         _stop_time = OS::micros();
@@ -631,7 +933,31 @@ class Recording {
     }
 
     Buffer* buffer(int lock_index) {
-        return &_buf[lock_index];
+        return _event_buf[lock_index];
+    }
+
+    // In synchronous mode, a full event buffer is written right away. Otherwise, it is handed over
+    // to the writer thread. If the writer falls behind and the pool is exhausted, the events are dropped:
+    // in asynchronous mode, a signal handler never writes to the file
+    void flushEventsIfNeeded(int lock_index, Buffer* buf) {
+        if (buf->offset() < _event_buf_size - 4096) {
+            return;
+        }
+
+        if (_full_queue == NULL) {
+            flush(buf);
+            return;
+        }
+
+        Buffer* next = _free_queue->pop();
+        if (next == NULL) {
+            atomicInc(_dropped_buffers);
+            buf->reset();
+        } else {
+            _full_queue->push(buf);
+            _event_buf[lock_index] = next;
+            wakeupWriter();
+        }
     }
 
     bool parseAgentProperties() {
@@ -1314,7 +1640,7 @@ void FlightRecorder::recordEvent(int lock_index, int tid, u32 call_trace_id,
                 _rec->recordThreadPark(buf, tid, call_trace_id, (LockEvent*)event);
                 break;
         }
-        _rec->flushIfNeeded(buf);
+        _rec->flushEventsIfNeeded(lock_index, buf);
         _rec->addThread(tid);
     }
 }
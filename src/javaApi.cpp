@@ -90,6 +90,57 @@ Java_one_profiler_AsyncProfiler_execute0(JNIEnv* env, jobject unused, jstring co
     return NULL;
 }
 
+extern "C" JNIEXPORT jlong JNICALL
+Java_one_profiler_AsyncProfiler_dumpBinary0(JNIEnv* env, jobject unused, jstring options, jobject buffer,
+                                            jint offset, jint length, jboolean reset) {
+    Arguments args;
+    if (options != NULL) {
+        const char* options_str = env->GetStringUTFChars(options, NULL);
+        Error error = args.parse(options_str);
+        env->ReleaseStringUTFChars(options, options_str);
+
+        if (error) {
+            JavaAPI::throwNew(env, "java/lang/IllegalArgumentException", error.message());
+            return 0;
+        }
+    }
+
+    char* address = (char*)env->GetDirectBufferAddress(buffer);
+    if (address == NULL) {
+        JavaAPI::throwNew(env, "java/lang/IllegalArgumentException", "Not a direct buffer");
+        return 0;
+    }
+
+    size_t size;
+    Error error = Profiler::instance()->dumpBinary(args, address + offset, length, size, reset);
+    if (error) {
+        JavaAPI::throwNew(env, "java/lang/IllegalStateException", error.message());
+        return 0;
+    }
+    return (jlong)size;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_one_profiler_AsyncProfiler_enableSnapshots0(JNIEnv* env, jobject unused, jstring options, jboolean enable) {
+    // Check the options once, rather than failing on every snapshot
+    if (options != NULL) {
+        Arguments args;
+        const char* options_str = env->GetStringUTFChars(options, NULL);
+        Error error = args.parse(options_str);
+        env->ReleaseStringUTFChars(options, options_str);
+
+        if (error) {
+            JavaAPI::throwNew(env, "java/lang/IllegalArgumentException", error.message());
+            return;
+        }
+    }
+
+    Error error = Profiler::instance()->enableSnapshots(enable);
+    if (error) {
+        JavaAPI::throwNew(env, "java/lang/IllegalStateException", error.message());
+    }
+}
+
 extern "C" JNIEXPORT jlong JNICALL
 Java_one_profiler_AsyncProfiler_getSamples(JNIEnv* env, jobject unused) {
     return (jlong)Profiler::instance()->total_samples();
@@ -125,6 +176,8 @@ static const JNINativeMethod profiler_natives[] = {
     F(start0,        "(Ljava/lang/String;JZ)V"),
     F(stop0,         "()V"),
     F(execute0,      "(Ljava/lang/String;)Ljava/lang/String;"),
+    F(dumpBinary0,   "(Ljava/lang/String;Ljava/nio/ByteBuffer;IIZ)J"),
+    F(enableSnapshots0, "(Ljava/lang/String;Z)V"),
     F(getSamples,    "()J"),
     F(filterThread0, "(Ljava/lang/Thread;Z)V"),
 };
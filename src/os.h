@@ -73,6 +73,7 @@ class OS {
     static int getMaxThreadId();
     static int processId();
     static int threadId();
+    static int processorId();
     static const char* schedPolicy();
     static bool threadName(int thread_id, char* name_buf, size_t name_len);
     static ThreadState threadState(int thread_id);
@@ -86,6 +87,7 @@ class OS {
     static void* safeAlloc(size_t size);
     static void safeFree(void* addr, size_t size);
 
+    static int getCpuCount();
     static bool getCpuDescription(char* buf, size_t size);
     static u64 getProcessCpuTime(u64* utime, u64* stime);
     static u64 getTotalCpuTime(u64* utime, u64* stime);
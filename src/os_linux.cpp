@@ -183,6 +183,10 @@ int OS::threadId() {
     return syscall(__NR_gettid);
 }
 
+int OS::processorId() {
+    return sched_getcpu();
+}
+
 const char* OS::schedPolicy() {
     int sched_policy = sched_getscheduler(0);
     if (sched_policy >= SCHED_BATCH) {
@@ -270,6 +274,10 @@ void OS::safeFree(void* addr, size_t size) {
     syscall(__NR_munmap, addr, size);
 }
 
+int OS::getCpuCount() {
+    return sysconf(_SC_NPROCESSORS_CONF);
+}
+
 bool OS::getCpuDescription(char* buf, size_t size) {
     int fd = open("/proc/cpuinfo", O_RDONLY);
     if (fd == -1) {
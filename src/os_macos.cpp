@@ -174,6 +174,11 @@ int OS::threadId() {
     return (int)port;
 }
 
+int OS::processorId() {
+    // No cheap way to get the current CPU
+    return -1;
+}
+
 const char* OS::schedPolicy() {
     // Not used on macOS
     return "[SCHED_OTHER]";
@@ -252,6 +257,10 @@ void OS::safeFree(void* addr, size_t size) {
     munmap(addr, size);
 }
 
+int OS::getCpuCount() {
+    return sysconf(_SC_NPROCESSORS_CONF);
+}
+
 bool OS::getCpuDescription(char* buf, size_t size) {
     return sysctlbyname("machdep.cpu.brand_string", buf, &size, NULL, 0) == 0;
 }
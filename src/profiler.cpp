@@ -16,6 +16,7 @@
 
 #include <algorithm>
 #include <fstream>
+#include <arpa/inet.h>
 #include <dlfcn.h>
 #include <unistd.h>
 #include <stdint.h>
@@ -169,10 +170,15 @@ const char* Profiler::asgctError(int code) {
 }
 
 inline u32 Profiler::getLockIndex(int tid) {
+    int cpu = OS::processorId();
+    if (cpu >= 0) {
+        return cpu & (_concurrency_level - 1);
+    }
+
     u32 lock_index = tid;
     lock_index ^= lock_index >> 8;
     lock_index ^= lock_index >> 4;
-    return lock_index % CONCURRENCY_LEVEL;
+    return lock_index & (_concurrency_level - 1);
 }
 
 void Profiler::updateSymbols(bool kernel_symbols) {
@@ -578,8 +584,8 @@ void Profiler::recordSample(void* ucontext, u64 counter, jint event_type, Event*
     int tid = OS::threadId();
     u32 lock_index = getLockIndex(tid);
     if (!_locks[lock_index].tryLock() &&
-        !_locks[lock_index = (lock_index + 1) % CONCURRENCY_LEVEL].tryLock() &&
-        !_locks[lock_index = (lock_index + 2) % CONCURRENCY_LEVEL].tryLock())
+        !_locks[lock_index = (lock_index + 1) & (_concurrency_level - 1)].tryLock() &&
+        !_locks[lock_index = (lock_index + 2) & (_concurrency_level - 1)].tryLock())
     {
         // Too many concurrent signals already
         atomicInc(_failures[-ticks_skipped]);
@@ -637,7 +643,7 @@ void Profiler::recordSample(void* ucontext, u64 counter, jint event_type, Event*
         num_frames += makeEventFrame(frames + num_frames, BCI_NATIVE_FRAME, (uintptr_t)OS::schedPolicy());
     }
 
-    u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter);
+    u32 call_trace_id = _call_trace_storage.put(num_frames, frames, counter, lock_index);
     _jfr.recordEvent(lock_index, tid, call_trace_id, event_type, event, counter);
 
     _locks[lock_index].unlock();
@@ -976,7 +982,7 @@ Error Profiler::start(Arguments& args, bool reset) {
         _max_stack_depth = args._jstackdepth;
         size_t buffer_size = (_max_stack_depth + MAX_NATIVE_FRAMES + RESERVED_FRAMES) * sizeof(CallTraceBuffer);
 
-        for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
+        for (int i = 0; i < _concurrency_level; i++) {
             free(_calltrace_buffer[i]);
             _calltrace_buffer[i] = (CallTraceBuffer*)malloc(buffer_size);
             if (_calltrace_buffer[i] == NULL) {
@@ -1168,11 +1174,11 @@ Error Profiler::dump(std::ostream& out, Arguments& args) {
 }
 
 void Profiler::lockAll() {
-    for (int i = 0; i < CONCURRENCY_LEVEL; i++) _locks[i].lock();
+    for (int i = 0; i < _concurrency_level; i++) _locks[i].lock();
 }
 
 void Profiler::unlockAll() {
-    for (int i = 0; i < CONCURRENCY_LEVEL; i++) _locks[i].unlock();
+    for (int i = 0; i < _concurrency_level; i++) _locks[i].unlock();
 }
 
 void Profiler::switchThreadEvents(jvmtiEventMode mode) {
@@ -1221,7 +1227,7 @@ void Profiler::dumpFlameGraph(std::ostream& out, Arguments& args, bool tree) {
         }
     }
 
-    FlameGraph flamegraph(args._title == NULL ? title : args._title, args._counter, args._minwidth, args._reverse);
+    FlameGraph flamegraph(args._title == NULL ? title : args._title, args._counter, args._minwidth, args._reverse, args._compact);
     FrameName fn(args, args._style, _thread_names_lock, _thread_names);
 
     std::vector<CallTraceSample*> samples;
@@ -1348,6 +1354,150 @@ void Profiler::dumpText(std::ostream& out, Arguments& args) {
     }
 }
 
+// Writes into a buffer, which the caller has checked to be large enough
+class BufferWriter {
+  private:
+    char* _buf;
+    size_t _offset;
+
+  public:
+    BufferWriter(char* buf) : _buf(buf), _offset(0) {
+    }
+
+    size_t offset() {
+        return _offset;
+    }
+
+    void put(const void* data, size_t len) {
+        memcpy(_buf + _offset, data, len);
+        _offset += len;
+    }
+
+    void put32(u32 v) {
+        v = htonl(v);
+        put(&v, sizeof(v));
+    }
+
+    void put64(u64 v) {
+        v = OS::hton64(v);
+        put(&v, sizeof(v));
+    }
+};
+
+/*
+ * Dump samples in a binary form, all numbers big-endian:
+ *
+ * u32 magic 'ASPB', u32 version, u32 string count, u32 trace count
+ * strings: u32 length, UTF-8 bytes
+ * traces:  u64 samples, u64 counter, u32 frame count, u32 string index per frame (root first)
+ *
+ * With reset, only samples of the last snapshot interval are dumped: the storage switches
+ * to the other generation of counters, while the previous one is drained without stopping
+ * the sampling. If the dump does not fit in the buffer, the previous generation is kept
+ * for the caller to retry. Samples of excluded traces are dropped with the generation,
+ * but remain in the total counters. Before the profiler has started, a snapshot
+ * is empty, and the size is 0.
+ */
+Error Profiler::dumpBinary(Arguments& args, char* buf, size_t capacity, size_t& size, bool reset) {
+    MutexLocker ml(_state_lock);
+    if (reset && !_snapshots) {
+        return Error("Snapshots are not enabled");
+    }
+    if (_state != IDLE && _state != RUNNING) {
+        if (reset) {
+            size = 0;
+            return Error::OK;
+        }
+        return Error("Profiler has not started");
+    }
+
+    if (_state == RUNNING) {
+        updateJavaThreadNames();
+        updateNativeThreadNames();
+    }
+
+    FrameName fn(args, args._style, _thread_names_lock, _thread_names);
+
+    std::vector<CallTraceSample> samples;
+    if (reset) {
+        _call_trace_storage.collectPreviousGeneration(samples);
+    } else {
+        std::vector<CallTraceSample*> total;
+        _call_trace_storage.collectSamples(total);
+        for (std::vector<CallTraceSample*>::const_iterator it = total.begin(); it != total.end(); ++it) {
+            samples.push_back(**it);
+        }
+    }
+
+    // Frame names are resolved before writing, since the string table comes first
+    std::map<std::string, u32> index;
+    std::vector<const std::string*> strings;
+    std::vector<CallTraceSample> traces;
+    std::vector<u32> frames;
+
+    for (std::vector<CallTraceSample>::const_iterator it = samples.begin(); it != samples.end(); ++it) {
+        if (it->samples == 0) continue;
+
+        CallTrace* trace = it->trace;
+        if (excludeTrace(&fn, trace)) continue;
+
+        for (int j = trace->num_frames - 1; j >= 0; j--) {
+            std::pair<std::map<std::string, u32>::iterator, bool> entry =
+                index.insert(std::make_pair(std::string(fn.name(trace->frames[j])), (u32)strings.size()));
+            if (entry.second) {
+                strings.push_back(&entry.first->first);
+            }
+            frames.push_back(entry.first->second);
+        }
+        traces.push_back(*it);
+    }
+
+    // Nothing is written if the profile does not fit, the size tells the caller how much is needed
+    size = 16 + strings.size() * 4 + traces.size() * 20 + frames.size() * 4;
+    for (std::vector<const std::string*>::const_iterator it = strings.begin(); it != strings.end(); ++it) {
+        size += (*it)->size();
+    }
+    if (size > capacity) {
+        return Error::OK;
+    }
+
+    BufferWriter writer(buf);
+    writer.put32(0x41535042);
+    writer.put32(1);
+    writer.put32(strings.size());
+    writer.put32(traces.size());
+
+    for (std::vector<const std::string*>::const_iterator it = strings.begin(); it != strings.end(); ++it) {
+        writer.put32((*it)->size());
+        writer.put((*it)->data(), (*it)->size());
+    }
+
+    std::vector<u32>::const_iterator frame = frames.begin();
+    for (std::vector<CallTraceSample>::const_iterator it = traces.begin(); it != traces.end(); ++it) {
+        int num_frames = it->trace->num_frames;
+        writer.put64(it->samples);
+        writer.put64(it->counter);
+        writer.put32(num_frames);
+        for (int j = 0; j < num_frames; j++) {
+            writer.put32(*frame++);
+        }
+    }
+
+    if (reset) {
+        _call_trace_storage.resetPreviousGeneration();
+    }
+    return Error::OK;
+}
+
+Error Profiler::enableSnapshots(bool enabled) {
+    MutexLocker ml(_state_lock);
+    if (!_call_trace_storage.setDoubleBuffered(enabled, _concurrency_level)) {
+        return Error("Not enough memory to enable snapshots");
+    }
+    _snapshots = enabled;
+    return Error::OK;
+}
+
 Error Profiler::runInternal(Arguments& args, std::ostream& out) {
     switch (args._action) {
         case ACTION_START:
@@ -19,6 +19,7 @@
 
 #include <iostream>
 #include <map>
+#include <stdlib.h>
 #include <time.h>
 #include "arch.h"
 #include "arguments.h"
@@ -30,6 +31,7 @@
 #include "flightRecorder.h"
 #include "log.h"
 #include "mutex.h"
+#include "os.h"
 #include "spinLock.h"
 #include "threadFilter.h"
 #include "trap.h"
@@ -43,7 +45,16 @@ const char FULL_VERSION_STRING[] =
 const int MAX_NATIVE_FRAMES = 128;
 const int RESERVED_FRAMES   = 4;
 const int MAX_NATIVE_LIBS   = 2048;
-const int CONCURRENCY_LEVEL = 16;
+// Sampling slots; every slot has its own stack trace buffer and JFR event buffer
+const int MIN_CONCURRENCY_LEVEL = 16;
+const int MAX_CONCURRENCY_LEVEL = 256;
+
+
+// Sampling slot lock that occupies a whole cache line, so that CPUs do not share it
+class SlotLock : public SpinLock {
+  private:
+    char _padding[64 - sizeof(SpinLock)];
+};
 
 
 enum AddressType {
@@ -91,14 +102,18 @@ class Profiler {
     u64 _total_samples;
     u64 _failures[ASGCT_FAILURE_TYPES];
 
-    SpinLock _locks[CONCURRENCY_LEVEL];
-    CallTraceBuffer* _calltrace_buffer[CONCURRENCY_LEVEL];
+    // One slot per CPU: a signal handler normally finds the slot of its CPU free,
+    // unless another handler on that CPU has been preempted
+    int _concurrency_level;
+    SlotLock* _locks;
+    CallTraceBuffer** _calltrace_buffer;
     int _max_stack_depth;
     int _safe_mode;
     CStack _cstack;
     bool _add_thread_frame;
     bool _add_sched_frame;
     bool _update_thread_names;
+    bool _snapshots;
     volatile bool _thread_events_state;
 
     SpinLock _jit_lock;
@@ -175,6 +190,7 @@ class Profiler {
         _start_time(0),
         _max_stack_depth(0),
         _safe_mode(0),
+        _snapshots(false),
         _thread_events_state(JVMTI_DISABLE),
         _jit_lock(),
         _stubs_lock(),
@@ -183,9 +199,13 @@ class Profiler {
         _native_lib_count(0),
         _original_NativeLibrary_load(NULL) {
 
-        for (int i = 0; i < CONCURRENCY_LEVEL; i++) {
-            _calltrace_buffer[i] = NULL;
+        _concurrency_level = MIN_CONCURRENCY_LEVEL;
+        while (_concurrency_level < MAX_CONCURRENCY_LEVEL && _concurrency_level < OS::getCpuCount()) {
+            _concurrency_level *= 2;
         }
+        // Zeroed memory is unlocked; page alignment keeps every lock on its own cache line
+        _locks = (SlotLock*)OS::safeAlloc(_concurrency_level * sizeof(SlotLock));
+        _calltrace_buffer = (CallTraceBuffer**)calloc(_concurrency_level, sizeof(CallTraceBuffer*));
     }
 
     static Profiler* instance() {
@@ -197,6 +217,7 @@ class Profiler {
 
     Dictionary* classMap() { return &_class_map; }
     ThreadFilter* threadFilter() { return &_thread_filter; }
+    int concurrencyLevel() { return _concurrency_level; }
 
     Error run(Arguments& args);
     Error runInternal(Arguments& args, std::ostream& out);
@@ -206,6 +227,8 @@ class Profiler {
     Error stop();
     Error flushJfr();
     Error dump(std::ostream& out, Arguments& args);
+    Error dumpBinary(Arguments& args, char* buf, size_t capacity, size_t& size, bool reset);
+    Error enableSnapshots(bool enabled);
     void switchThreadEvents(jvmtiEventMode mode);
     void recordSample(void* ucontext, u64 counter, jint event_type, Event* event);
     void writeLog(LogLevel level, const char* message);
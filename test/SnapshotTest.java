@@ -0,0 +1,84 @@
+import one.profiler.AsyncProfiler;
+import one.profiler.SnapshotListener;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+class SnapshotTest {
+    private static final int MAGIC = 0x41535042;
+
+    private static final Set<String> frames = new TreeSet<>();
+    private static int snapshots;
+    private static long samples;
+
+    public static void main(String[] args) throws Exception {
+        AsyncProfiler profiler = AsyncProfiler.getInstance(new File(args[0]).getAbsolutePath());
+        profiler.start("itimer", 1000000);
+
+        profiler.startSnapshots(null, 500, TimeUnit.MILLISECONDS, new SnapshotListener() {
+            @Override
+            public void onSnapshot(ByteBuffer profile, long startMillis, long endMillis) {
+                if (endMillis < startMillis) {
+                    throw new IllegalStateException("Bad interval: " + startMillis + ".." + endMillis);
+                }
+                parse(profile);
+            }
+        });
+
+        long n = 0;
+        for (long deadline = System.currentTimeMillis() + 3000; System.currentTimeMillis() < deadline; ) {
+            n += burn();
+        }
+
+        profiler.stopSnapshots();
+        profiler.stop();
+
+        synchronized (SnapshotTest.class) {
+            System.out.println("snapshots " + snapshots);
+            System.out.println("samples " + samples);
+            for (String frame : frames) {
+                System.out.println("frame " + frame);
+            }
+        }
+        System.out.println("result " + n);
+    }
+
+    static long burn() {
+        long n = 0;
+        for (int i = 0; i < 1000000; i++) {
+            n += Long.numberOfTrailingZeros(i * 0x9E3779B97F4A7C15L);
+        }
+        return n;
+    }
+
+    static synchronized void parse(ByteBuffer buf) {
+        if (buf.getInt() != MAGIC || buf.getInt() != 1) {
+            throw new IllegalStateException("Bad binary profile header");
+        }
+
+        String[] strings = new String[buf.getInt()];
+        int traceCount = buf.getInt();
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        for (int i = 0; i < traceCount; i++) {
+            samples += buf.getLong();
+            buf.getLong();
+            for (int frameCount = buf.getInt(); frameCount > 0; frameCount--) {
+                frames.add(strings[buf.getInt()]);
+            }
+        }
+
+        if (buf.hasRemaining()) {
+            throw new IllegalStateException(buf.remaining() + " bytes after the last trace");
+        }
+        snapshots++;
+    }
+}
@@ -0,0 +1,56 @@
+#!/bin/bash
+
+set -e  # exit on any failure
+set -x  # print all executed lines
+
+if [ -z "${JAVA_HOME}" ]; then
+  echo "JAVA_HOME is not set"
+  exit 1
+fi
+
+(
+  cd $(dirname $0)
+
+  if [ "Target.class" -ot "Target.java" ]; then
+     ${JAVA_HOME}/bin/javac Target.java
+  fi
+
+  if [ "SnapshotTest.class" -ot "SnapshotTest.java" ]; then
+     ${JAVA_HOME}/bin/javac -cp ../build/async-profiler.jar SnapshotTest.java
+  fi
+
+  ${JAVA_HOME}/bin/java Target &
+
+  FILENAME=/tmp/java.trace
+  JAVAPID=$!
+
+  sleep 1     # allow the Java runtime to initialize
+  ../profiler.sh -f /tmp/java.jfr -d 5 -i 1ms --jfrasync $JAVAPID
+  ../profiler.sh -f /tmp/java.html -d 5 --compact $JAVAPID
+
+  kill $JAVAPID
+
+  function assert_string() {
+    if ! grep -q "$1" $FILENAME; then
+      exit 1
+    fi
+  }
+
+  # Events written by the background thread must form a valid recording
+  ${JAVA_HOME}/bin/java -cp ../build/converter.jar jfr2flame /tmp/java.jfr $FILENAME
+
+  assert_string "'Target.method1'"
+  assert_string "'Target.method2'"
+
+  cp /tmp/java.html $FILENAME
+
+  assert_string "^unpack(\['all',"
+  assert_string "'Target.method1'"
+  assert_string "'Target.method2'"
+
+  ${JAVA_HOME}/bin/java -cp ../build/async-profiler.jar:. SnapshotTest ../build/libasyncProfiler.so > $FILENAME
+
+  assert_string "^snapshots [1-9]"
+  assert_string "^samples [1-9]"
+  assert_string "^frame SnapshotTest.burn$"
+)